@@ -2,12 +2,42 @@ package com.kurtthealien.tfidf;
 
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public interface FileMonitor {
 
-	public Boolean configure(Path directory);
+	public default Boolean configure(Path directory) {
+		return configure(List.of(directory));
+	}
+	
+	// Watches every directory under the roots, including the ones created later on
+	public Boolean configure(List<Path> directories);
 	
 	public List<Path> retrieveCurrentTextFiles();
 	
-	public List<Path> retrieveNewTextFiles();
+	public default List<Path> retrieveNewTextFiles() {
+		return retrieveNewTextFiles(Integer.MAX_VALUE);
+	}
+	
+	// At most maxFiles of them, the rest being left for the next calls
+	public List<Path> retrieveNewTextFiles(int maxFiles);
+	
+	// Text files changed since they were last reported, each one once however many times it was written
+	public default List<Path> retrieveModifiedTextFiles() {
+		return retrieveModifiedTextFiles(Integer.MAX_VALUE);
+	}
+	
+	public List<Path> retrieveModifiedTextFiles(int maxFiles);
+	
+	// Files deleted since they were last reported
+	public default List<Path> retrieveDeletedFiles() {
+		return retrieveDeletedFiles(Integer.MAX_VALUE);
+	}
+	
+	public List<Path> retrieveDeletedFiles(int maxFiles);
+	
+	// Blocks until there may be something new to retrieve
+	public default void awaitChanges() throws InterruptedException {
+		TimeUnit.SECONDS.sleep(1);
+	}
 }
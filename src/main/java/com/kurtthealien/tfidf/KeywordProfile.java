@@ -0,0 +1,84 @@
+package com.kurtthealien.tfidf;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Named set of keywords reported with its own number of results and period. All the profiles of an app share
+// one index over the union of their keywords, so every file is read and tokenized once whatever their number.
+final class KeywordProfile {
+	
+	private final String name;   //null for the profile given by -t, -n and -p
+	
+	private final List<String> terms;
+	
+	private final int resultNumber;
+	
+	private final int reportPeriod;
+	
+	private final AtomicBoolean indexChanged = new AtomicBoolean();   //files changed since the last results
+	
+	private Map<Path, Double> results = new LinkedHashMap<>();   //only used by the report thread
+	
+	KeywordProfile(String name, String terms, int resultNumber, int reportPeriod) {
+		if (resultNumber <= 0 || reportPeriod <= 0) {
+			throw new IllegalArgumentException("Results and period of a profile must be positive");
+		}
+		
+		List<String> termList = new ArrayList<>();
+		StringTokenizer termTokenizer = new StringTokenizer(terms);
+		while (termTokenizer.hasMoreTokens()) {
+			termList.add(termTokenizer.nextToken());
+		}
+		if (termList.isEmpty()) {
+			throw new IllegalArgumentException("Profile without terms: " + name);
+		}
+		
+		this.name = name;
+		this.terms = Collections.unmodifiableList(termList);
+		this.resultNumber = resultNumber;
+		this.reportPeriod = reportPeriod;
+	}
+	
+	// Parses <name>:<results>:<period>:<terms>, the terms separated by spaces
+	static KeywordProfile parse(String description) {
+		String[] parts = description.split(":", 4);
+		if (parts.length < 4 || parts[0].isBlank()) {
+			throw new IllegalArgumentException("Profile must be <name>:<results>:<period>:<terms>: " + description);
+		}
+		return new KeywordProfile(parts[0], parts[3], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+	}
+	
+	String getName() {
+		return name;
+	}
+	
+	List<String> getTerms() {
+		return terms;
+	}
+	
+	int getResultNumber() {
+		return resultNumber;
+	}
+	
+	int getReportPeriod() {
+		return reportPeriod;
+	}
+	
+	void markIndexChanged() {
+		indexChanged.set(true);
+	}
+	
+	// Ranks the files again only if they changed since the last time
+	Map<Path, Double> retrieveResults(TfIdf tfidf) {
+		if (indexChanged.getAndSet(false)) {
+			results = tfidf.retrieveResults(terms, resultNumber);
+		}
+		return results;
+	}
+}
@@ -0,0 +1,257 @@
+package com.kurtthealien.tfidf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// Serves the best files as JSON on localhost, for any number of results and subset of the terms:
+//   GET /results?n=<results>&terms=<term>,<term>...
+// All the terms are used when none are given, and terms beyond the term list are added from the token dictionary
+// while there are fewer than maxTerms. Answers are kept by query until the index version changes,
+// so repeated queries between changes are served without taking the index lock. The JDK server writes headers
+// and body separately, so without sun.net.httpserver.nodelay=true every answer waits for a delayed ACK. The app
+// sets it unless it is given on the command line.
+final class QueryServer {
+	
+	private static final int THREAD_NUMBER = 4;
+	
+	private static final long DEFAULT_RESULT_NUMBER = 10;
+	
+	private static final int MAX_CACHED_QUERIES = 1024;
+	
+	private final TfIdf tfidf;
+	
+	private final Object indexLock;   //held while using tfidf, as in TfIdfApp
+	
+	private final int maxTerms;
+	
+	private final HttpServer server;
+	
+	private final ExecutorService queryPool;
+	
+	private final Map<String, CachedAnswer> cachedAnswers = new ConcurrentHashMap<>();   //by result number and sorted terms
+	
+	private long cachedVersion;   //guarded by indexLock
+	
+	private final AtomicLong cacheHits = new AtomicLong();
+	
+	private final AtomicLong cacheMisses = new AtomicLong();
+	
+	private static final Logger logger = Logger.getLogger("TfIdfLog");
+	
+	// Port 0 takes any free one
+	QueryServer(TfIdf tfidf, Object indexLock, int port) throws IOException {
+		this(tfidf, indexLock, port, 0);
+	}
+	
+	QueryServer(TfIdf tfidf, Object indexLock, int port, int maxTerms) throws IOException {
+		this.tfidf = tfidf;
+		this.indexLock = indexLock;
+		this.maxTerms = maxTerms;
+		
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		queryPool = Executors.newFixedThreadPool(THREAD_NUMBER, runnable -> {
+			Thread queryThread = new Thread(runnable, "tfidf-query");
+			queryThread.setDaemon(true);
+			return queryThread;
+		});
+		server.setExecutor(queryPool);
+		server.createContext("/results", this::handleResults);
+	}
+	
+	void start() {
+		server.start();
+	}
+	
+	void stop() {
+		server.stop(0);
+		queryPool.shutdownNow();
+	}
+	
+	int getPort() {
+		return server.getAddress().getPort();
+	}
+	
+	long getCacheHits() {
+		return cacheHits.get();
+	}
+	
+	long getCacheMisses() {
+		return cacheMisses.get();
+	}
+	
+	private void handleResults(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("GET")) {
+				sendJson(exchange, 405, error("Only GET is supported"));
+				return;
+			}
+			if (!exchange.getRequestURI().getPath().equals("/results")) {
+				sendJson(exchange, 404, error("Unknown path " + exchange.getRequestURI().getPath()));
+				return;
+			}
+			
+			Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+			long resultNumber = DEFAULT_RESULT_NUMBER;
+			if (parameters.containsKey("n")) {
+				try {
+					resultNumber = Long.parseLong(parameters.get("n"));
+				} catch (NumberFormatException nfe) {
+					resultNumber = 0;
+				}
+				if (resultNumber <= 0) {
+					sendJson(exchange, 400, error("The number of results must be a positive integer"));
+					return;
+				}
+			}
+			
+			//sorted, so the same subset in any order is the same query
+			TreeSet<String> terms = new TreeSet<>();
+			for (String term: parameters.getOrDefault("terms", "").split("[,\\s]+")) {
+				if (!term.isEmpty()) {
+					terms.add(term);
+				}
+			}
+			
+			sendJson(exchange, 200, answer(terms, resultNumber));
+		} catch (IllegalArgumentException iaEx) {
+			sendJson(exchange, 400, error(iaEx.getMessage()));
+		} catch (RuntimeException rEx) {
+			logger.error("Error answering query " + exchange.getRequestURI() + ": " + rEx.getMessage());
+			sendJson(exchange, 500, error("Internal error"));
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	private byte[] answer(TreeSet<String> terms, long resultNumber) {
+		String key = resultNumber + ":" + String.join(",", terms);
+		
+		CachedAnswer cached = cachedAnswers.get(key);
+		if (cached != null && cached.version == tfidf.getIndexVersion()) {
+			cacheHits.incrementAndGet();
+			return cached.json;
+		}
+		
+		synchronized (indexLock) {
+			List<String> termList = tfidf.getTermList();
+			for (String term: terms) {
+				if (!termList.contains(term)) {
+					if (termList.size() >= maxTerms || !tfidf.addNewTerm(term)) {
+						throw new IllegalArgumentException("Unknown term " + term);
+					}
+					termList = tfidf.getTermList();
+				}
+			}
+			
+			long version = tfidf.getIndexVersion();
+			if (version != cachedVersion || cachedAnswers.size() >= MAX_CACHED_QUERIES) {
+				cachedAnswers.clear();
+				cachedVersion = version;
+			}
+			
+			//another thread may have answered the same query while this one waited for the lock
+			cached = cachedAnswers.get(key);
+			if (cached != null) {
+				cacheHits.incrementAndGet();
+				return cached.json;
+			}
+			cacheMisses.incrementAndGet();
+			
+			List<String> queryTerms = terms.isEmpty() ? termList : new ArrayList<>(terms);
+			Map<Path, Double> results = tfidf.retrieveResults(queryTerms, resultNumber);
+			
+			byte[] json = toJson(version, queryTerms, results);
+			cachedAnswers.put(key, new CachedAnswer(version, json));
+			return json;
+		}
+	}
+	
+	private static Map<String, String> parseQuery(String rawQuery) {
+		Map<String, String> parameters = new HashMap<>();
+		if (rawQuery == null) {
+			return parameters;
+		}
+		for (String parameter: rawQuery.split("&")) {
+			String[] parts = parameter.split("=", 2);
+			String value = (parts.length > 1) ? URLDecoder.decode(parts[1], StandardCharsets.UTF_8) : "";
+			parameters.put(URLDecoder.decode(parts[0], StandardCharsets.UTF_8), value);
+		}
+		return parameters;
+	}
+	
+	private static byte[] toJson(long version, List<String> terms, Map<Path, Double> results) {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"version\":").append(version).append(",\"terms\":[");
+		String separator = "";
+		for (String term: terms) {
+			json.append(separator).append(quote(term));
+			separator = ",";
+		}
+		json.append("],\"results\":[");
+		separator = "";
+		for (Map.Entry<Path, Double> fileResult: results.entrySet()) {
+			json.append(separator).append("{\"file\":").append(quote(fileResult.getKey().toString()))
+					.append(",\"tfidf\":").append(fileResult.getValue()).append("}");
+			separator = ",";
+		}
+		json.append("]}");
+		return json.toString().getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private static byte[] error(String message) {
+		return ("{\"error\":" + quote(message) + "}").getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private static String quote(String value) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for (char character: value.toCharArray()) {
+			if (character == '"' || character == '\\') {
+				quoted.append('\\').append(character);
+			} else if (character < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) character));
+			} else {
+				quoted.append(character);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+	
+	private static void sendJson(HttpExchange exchange, int status, byte[] json) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, json.length);
+		try (OutputStream body = exchange.getResponseBody()) {
+			body.write(json);
+		}
+	}
+	
+	private static final class CachedAnswer {
+		
+		final long version;
+		
+		final byte[] json;
+		
+		CachedAnswer(long version, byte[] json) {
+			this.version = version;
+			this.json = json;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.kurtthealien.tfidf;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Changes of the best files since the previous delta given to a listener, which may merge several index changes
+public final class ResultDelta {
+	
+	private final long indexVersion;
+	
+	private final Map<Path, Double> results;   //all the best files now, best first
+	
+	private final Map<Path, Double> enteredFiles;   //with their tfidf
+	
+	private final Map<Path, Double> leftFiles;   //with the last tfidf given for them
+	
+	private final Map<Path, Double> changedFiles;   //still among the best files, with their new tfidf
+	
+	public ResultDelta(long indexVersion, Map<Path, Double> previousResults, Map<Path, Double> results) {
+		this.indexVersion = indexVersion;
+		this.results = Collections.unmodifiableMap(new LinkedHashMap<>(results));
+		
+		Map<Path, Double> entered = new LinkedHashMap<>();
+		Map<Path, Double> changed = new LinkedHashMap<>();
+		for (Map.Entry<Path, Double> fileResult: results.entrySet()) {
+			Double previousTfIdf = previousResults.get(fileResult.getKey());
+			if (previousTfIdf == null) {
+				entered.put(fileResult.getKey(), fileResult.getValue());
+			} else if (!previousTfIdf.equals(fileResult.getValue())) {
+				changed.put(fileResult.getKey(), fileResult.getValue());
+			}
+		}
+		
+		Map<Path, Double> left = new LinkedHashMap<>();
+		for (Map.Entry<Path, Double> fileResult: previousResults.entrySet()) {
+			if (!results.containsKey(fileResult.getKey())) {
+				left.put(fileResult.getKey(), fileResult.getValue());
+			}
+		}
+		
+		enteredFiles = Collections.unmodifiableMap(entered);
+		leftFiles = Collections.unmodifiableMap(left);
+		changedFiles = Collections.unmodifiableMap(changed);
+	}
+	
+	// Version of the index the results were computed for
+	public long getIndexVersion() {
+		return indexVersion;
+	}
+	
+	public Map<Path, Double> getResults() {
+		return results;
+	}
+	
+	public Map<Path, Double> getEnteredFiles() {
+		return enteredFiles;
+	}
+	
+	public Map<Path, Double> getLeftFiles() {
+		return leftFiles;
+	}
+	
+	public Map<Path, Double> getChangedFiles() {
+		return changedFiles;
+	}
+	
+	// True when the best files and their tfidfs are still the same
+	public boolean isEmpty() {
+		return enteredFiles.isEmpty() && leftFiles.isEmpty() && changedFiles.isEmpty();
+	}
+	
+	public String toString() {
+		return "entered " + enteredFiles + ", left " + leftFiles + ", changed " + changedFiles;
+	}
+}
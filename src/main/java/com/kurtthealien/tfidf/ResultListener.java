@@ -0,0 +1,8 @@
+package com.kurtthealien.tfidf;
+
+// Receives the changes of the best files of a TfIdf, see TfIdf.addResultListener
+public interface ResultListener {
+	
+	// Never called for the same listener from two threads at once
+	public void resultsChanged(ResultDelta delta);
+}
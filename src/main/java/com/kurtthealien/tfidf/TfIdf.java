@@ -8,11 +8,51 @@ public interface TfIdf {
 
 	public Boolean addNewTerm(String word);
 		
+	// Adding a file already registered replaces its previous counts
 	public Boolean addNewFile(Path fileName);
 	
+	// Takes a registered file out of the results and document frequencies, returning false if it was not registered
+	public Boolean removeFile(Path fileName);
+	
+	// Registers several files, returning how many of them were registered
+	public long addNewFiles(List<Path> fileNames);
+	
+	// Takes several files out, returning how many of them were registered
+	public long removeFiles(List<Path> fileNames);
+	
 	public List<String> getTermList();
 	
 	public List<Path> getFileList();
 	
+	// Increases whenever the files or terms change, so results can be kept until it does
+	public long getIndexVersion();
+	
+	// Calls the listener with the changes of the best resultNumber files for the terms (all of them when empty),
+	// starting with the current ones and then whenever changes to files or terms are published. Calls are made on
+	// a separate thread, and changes found while the listener is busy are merged into its next call, so it never
+	// holds back ingestion.
+	public Boolean addResultListener(List<String> terms, long resultNumber, ResultListener listener);
+	
+	// Stops the calls to the listener, though one may be under way
+	public Boolean removeResultListener(ResultListener listener);
+	
+	// Publishes the changes since the last time to the listeners. An index used from one thread at a time only
+	// publishes when this is called, once per batch of changes, while a concurrent one publishes on its own.
+	public void publishResults();
+	
 	public Map<Path,Double> retrieveResults(Boolean updateNeeded, long resultNumber);
-}
+	
+	// Ranks the files by some of the terms only, as if they were the only ones, always with up to date idfs.
+	// Terms not in the term list are never found, but still count in the mean. Cached results are not replaced.
+	public Map<Path,Double> retrieveResults(List<String> terms, long resultNumber);
+	
+	// Saves the registered files and their counts, so they don't need to be read again after a restart.
+	// Indexes that aren't persisted return false, here as in loadSnapshot and openLog.
+	public Boolean saveSnapshot(Path snapshotFile);
+	
+	// Registers the files of a snapshot that haven't changed since it was saved. Only possible before adding files.
+	public Boolean loadSnapshot(Path snapshotFile);
+	
+	// Recovers the files logged since the last snapshot and keeps logging every file added, until the next snapshot
+	public Boolean openLog(Path logFile);
+}
\ No newline at end of file
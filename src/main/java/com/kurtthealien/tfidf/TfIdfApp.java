@@ -1,11 +1,16 @@
 package com.kurtthealien.tfidf;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.cli.CommandLine;
@@ -16,18 +21,40 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.log4j.Logger;
 
+import com.kurtthealien.tfidf.impl.ConcurrentTfIdfImpl;
+import com.kurtthealien.tfidf.impl.FileCompletionPolicy;
 import com.kurtthealien.tfidf.impl.FileMonitorImpl;
+import com.kurtthealien.tfidf.impl.ForkJoinTokenizer;
+import com.kurtthealien.tfidf.impl.IngestionQueue;
 import com.kurtthealien.tfidf.impl.TfIdfImpl;
 
 public class TfIdfApp {
 	
 	private static final Logger logger = Logger.getLogger("TfIdfLog");
 	
-	private int resultNumber;
-	private int reportPeriod;
+	// Every profile reports its own keywords, all of them counted in the same pass over each file
+	private final List<KeywordProfile> profiles = new ArrayList<>();
+	private int pollPeriod;   //shortest report period, how often changes are looked for in poll mode
+	private Path snapshotFile;   //null when the index is not kept between runs
+	private long filesSinceSnapshot;   //only in the ingestion log until the next snapshot
+	
+	private static final long MIN_FILES_PER_SNAPSHOT = 1000;
+	
+	private Boolean eventDriven = false;   //ingest on file events instead of once per period
+	
+	// Held by ingestion and reports while using tfidf. Ingestion takes it for a batch of files at a time,
+	// so a report never waits for a whole burst.
+	private final Object indexLock = new Object();
+	
+	private static final int FILES_PER_BATCH = 256;
+	
+	// Changes found by the monitor wait here for the indexing thread, so memory stays bounded during bursts
+	private IngestionQueue ingestionQueue = new IngestionQueue(IngestionQueue.Backpressure.BLOCK, IngestionQueue.DEFAULT_CAPACITY);
 	
 	private TfIdf tfidf;
 	private FileMonitor fileMonitor;
+	private int queryPort = -1;   //no query server unless a port is given
+	private int maxTerms;   //queries can add terms from the token dictionary up to this many, none by default
 	
 	public TfIdfApp() {
 		
@@ -38,7 +65,7 @@ public class TfIdfApp {
 	public Boolean configure(String[] parameters) {
 		//parse arguments
 		int paramsNumber = parameters.length;
-        if ((paramsNumber%2 != 0) || (paramsNumber < 8)) {
+        if ((paramsNumber%2 != 0) || (paramsNumber < 4)) {
         	return false;
         }
         
@@ -53,123 +80,507 @@ public class TfIdfApp {
 			return false;
 		}
 				
-		try {
-			resultNumber = Integer.parseInt(cmd.getOptionValue("resultNumber"));
-        }
-        catch (NumberFormatException nfe) {
-            logger.error("Error parsing result number.");
-            return false;
-        }
+		//-t, -n and -p give an unnamed profile, and -k can be repeated to add named ones
+		if (cmd.hasOption("keywords")) {
+			if (!cmd.hasOption("resultNumber") || !cmd.hasOption("period")) {
+				logger.error("Error: the keywords need a result number and a period.");
+				return false;
+			}
+			
+			int resultNumber;
+			try {
+				resultNumber = Integer.parseInt(cmd.getOptionValue("resultNumber"));
+	        }
+	        catch (NumberFormatException nfe) {
+	            logger.error("Error parsing result number.");
+	            return false;
+	        }
+			
+			int reportPeriod;
+			try {
+				reportPeriod = Integer.parseInt(cmd.getOptionValue("period"));
+	        }
+	        catch (NumberFormatException nfe) {
+	            logger.error("Error parsing period.");
+	            return false;
+	        }
+			
+			try {
+				profiles.add(new KeywordProfile(null, cmd.getOptionValue("keywords"), resultNumber, reportPeriod));
+			}
+			catch (IllegalArgumentException iaEx) {
+				logger.error("Error: " + iaEx.getMessage());
+				return false;
+			}
+		}
 		
-		try {
-			reportPeriod = Integer.parseInt(cmd.getOptionValue("period"));
-        }
-        catch (NumberFormatException nfe) {
-            logger.error("Error parsing period.");
-            return false;
-        }
+		if (cmd.hasOption("profile")) {
+			Set<String> profileNames = new HashSet<>();
+			for (String description: cmd.getOptionValues("profile")) {
+				KeywordProfile profile;
+				try {
+					profile = KeywordProfile.parse(description);
+		        }
+		        catch (IllegalArgumentException iaEx) {
+		            logger.error("Error parsing keyword profile " + description);
+		            return false;
+		        }
+				if (!profileNames.add(profile.getName())) {
+					logger.error("Error: keyword profile " + profile.getName() + " given twice");
+					return false;
+				}
+				profiles.add(profile);
+			}
+		}
+		
+		if (profiles.isEmpty()) {
+			logger.error("Error: no keywords given, either with -t or with a profile.");
+			return false;
+		}
+		pollPeriod = profiles.stream().mapToInt(KeywordProfile::getReportPeriod).min().getAsInt();
+		
+		int workerNumber = 1;
+		if (cmd.hasOption("workers")) {
+			try {
+				workerNumber = Integer.parseInt(cmd.getOptionValue("workers"));
+	        }
+	        catch (NumberFormatException nfe) {
+	            logger.error("Error parsing number of workers.");
+	            return false;
+	        }
+		}
+		
+		int maxReadsInFlight = 0;
+		if (cmd.hasOption("reads")) {
+			try {
+				maxReadsInFlight = Integer.parseInt(cmd.getOptionValue("reads"));
+	        }
+	        catch (NumberFormatException nfe) {
+	            logger.error("Error parsing number of reads in flight.");
+	            return false;
+	        }
+		}
+		
+		if (cmd.hasOption("workers") || cmd.hasOption("reads")) {
+			tfidf = new TfIdfImpl(ForkJoinTokenizer::new, workerNumber, maxReadsInFlight);
+		}
+		
+		//the concurrent index reads files on the ingesting thread and keeps nothing on disk
+		if (cmd.hasOption("index")) {
+			String index = cmd.getOptionValue("index");
+			if (!index.equals("single") && !index.equals("concurrent")) {
+				logger.error("Error parsing index implementation.");
+				return false;
+			}
+			if (index.equals("concurrent")) {
+				if (cmd.hasOption("workers") || cmd.hasOption("reads") || cmd.hasOption("snapshot")) {
+					logger.error("Error: workers, reads and snapshots need the single threaded index.");
+					return false;
+				}
+				tfidf = new ConcurrentTfIdfImpl();
+			}
+		}
 		
-		configureTerms(cmd.getOptionValue("keywords"));
+		//every token of the files is kept, so queries can rank by words that weren't terms
+		if (cmd.hasOption("dictionary")) {
+			try {
+				maxTerms = Integer.parseInt(cmd.getOptionValue("dictionary"));
+	        }
+	        catch (NumberFormatException nfe) {
+	            logger.error("Error parsing maximum number of terms.");
+	            return false;
+	        }
+			if (maxTerms <= 0) {
+				logger.error("Error parsing maximum number of terms.");
+				return false;
+			}
+			if (!(tfidf instanceof TfIdfImpl)) {
+				logger.error("Error: the token dictionary needs the single threaded index.");
+				return false;
+			}
+			((TfIdfImpl) tfidf).keepTokenDictionary();
+		}
+		
+		FileCompletionPolicy completionPolicy = FileCompletionPolicy.immediate();
+		if (cmd.hasOption("complete")) {
+			try {
+				completionPolicy = FileCompletionPolicy.parse(cmd.getOptionValue("complete"));
+	        }
+	        catch (IllegalArgumentException iaEx) {
+	            logger.error("Error parsing file completion policy.");
+	            return false;
+	        }
+		}
+		
+		if (cmd.hasOption("backpressure")) {
+			try {
+				ingestionQueue = IngestionQueue.parse(cmd.getOptionValue("backpressure"));
+	        }
+	        catch (IllegalArgumentException iaEx) {
+	            logger.error("Error parsing backpressure policy.");
+	            return false;
+	        }
+		}
+		
+		//the monitor keeps no more pending changes than the queue, so a burst is bounded before reaching it
+		fileMonitor = new FileMonitorImpl(completionPolicy, ingestionQueue.getCapacity());
+		
+		if (cmd.hasOption("mode")) {
+			String mode = cmd.getOptionValue("mode");
+			if (!mode.equals("poll") && !mode.equals("events")) {
+				logger.error("Error parsing processing mode.");
+				return false;
+			}
+			eventDriven = mode.equals("events");
+		}
+		
+		if (cmd.hasOption("snapshot")) {
+			snapshotFile = Paths.get(cmd.getOptionValue("snapshot"));
+		}
+		
+		if (cmd.hasOption("query")) {
+			try {
+				queryPort = Integer.parseInt(cmd.getOptionValue("query"));
+	        }
+	        catch (NumberFormatException nfe) {
+	            logger.error("Error parsing query server port.");
+	            return false;
+	        }
+		}
 		
-		Path directory = Paths.get(cmd.getOptionValue("directory"));
-		if (!Files.isDirectory(directory)) {
-			logger.error("Error: directory " + directory + " not found");
-            return false;
+		for (KeywordProfile profile: profiles) {
+			configureTerms(profile.getTerms());
 		}
 		
-		fileMonitor.configure(directory);
+		//-d can be repeated to monitor several directory trees
+		List<Path> directories = new ArrayList<>();
+		for (String directoryName: cmd.getOptionValues("directory")) {
+			Path directory = Paths.get(directoryName);
+			if (!Files.isDirectory(directory)) {
+				logger.error("Error: directory " + directory + " not found");
+	            return false;
+			}
+			directories.add(directory);
+		}
+		
+		if (!fileMonitor.configure(directories)) {
+			return false;
+		}
 		
-		logger.debug("Monitoring \"" + directory + "\" every " + reportPeriod + " seconds to show best " + resultNumber + " results");
+		logger.debug("Monitoring " + directories + " for " + profiles.size() + " keyword profiles, with " + tfidf.getTermList().size() + " terms in all");
 		logger.debug("Configuration finished successfully");
         
         return true;
 	}
 	
 	public void launchProcess() {
-		Boolean updateResults = checkFiles(true);
+		Boolean filesRestored = false;
+		if (snapshotFile != null) {
+			if (Files.exists(snapshotFile) && tfidf.loadSnapshot(snapshotFile)) {
+				logger.debug("Loaded " + tfidf.getFileList().size() + " unchanged files from snapshot " + snapshotFile);
+			}
+			
+			Path logFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".log");
+			if (!tfidf.openLog(logFile)) {
+				logger.error("Error opening ingestion log " + logFile);
+			}
+			filesRestored = !tfidf.getFileList().isEmpty();
+		}
+		
+		//queries are answered from the start, each of them waiting for the batch of files being ingested
+		if (queryPort >= 0) {
+			try {
+				QueryServer queryServer = new QueryServer(tfidf, indexLock, queryPort, maxTerms);
+				queryServer.start();
+				logger.info("Query server listening on http://localhost:" + queryServer.getPort() + "/results");
+			} catch (IOException ioEx) {
+				logger.error("Error starting query server on port " + queryPort + ": " + ioEx.getMessage());
+			}
+		}
+		
+		if (ingestCurrentFiles() || filesRestored) {
+			markIndexChanged();
+		}
+		
+		//changes found from now on are ingested by their own thread, as fast as it can take them from the queue
+		Thread indexingThread = new Thread(this::ingestQueuedChanges, "tfidf-indexer");
+		indexingThread.setDaemon(true);
+		indexingThread.start();
+		
+		//every profile reports on its own schedule, whatever the processing mode
+		ScheduledExecutorService reportTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread reporter = new Thread(runnable, "tfidf-report");
+			reporter.setDaemon(true);
+			return reporter;
+		});
+		reportTimer.scheduleAtFixedRate(this::reportQueue, 0, pollPeriod, TimeUnit.SECONDS);
+		for (KeywordProfile profile: profiles) {
+			reportTimer.scheduleAtFixedRate(() -> reportResults(profile), 0, profile.getReportPeriod(), TimeUnit.SECONDS);
+		}
+		
+		if (eventDriven) {
+			launchEventDrivenProcess();
+			reportTimer.shutdownNow();
+			return;
+		}
 		
         for (;;) {
         	
-        	reportResults(updateResults);
-        	
-        	logger.trace("Sleeping " + reportPeriod + " seconds...");
+        	logger.trace("Sleeping " + pollPeriod + " seconds...");
         	
         	try {
-            	TimeUnit.SECONDS.sleep(reportPeriod);
+            	TimeUnit.SECONDS.sleep(pollPeriod);
+            	queueChanges();
             } catch (InterruptedException intEx) {
             	logger.error("Error executing planned delay: " + intEx.getMessage());
                 break;
             }
-        	
-        	updateResults = checkFiles(false);
         }
+        reportTimer.shutdownNow();
 	}
 	
-	private Boolean checkFiles(Boolean allOfThem) {
-		List<Path> newPaths = allOfThem ? fileMonitor.retrieveCurrentTextFiles() : fileMonitor.retrieveNewTextFiles();
-		Boolean newFilesRegistered = false;
+	// Changes are queued as soon as their events arrive, while reports keep their own schedule
+	private void launchEventDrivenProcess() {
+		
+		Thread eventThread = new Thread(() -> {
+			for (;;) {
+				try {
+					fileMonitor.awaitChanges();
+					queueChanges();
+				} catch (InterruptedException intEx) {
+					logger.error("Error waiting for file changes: " + intEx.getMessage());
+					break;
+				}
+			}
+		}, "tfidf-events");
+		eventThread.start();
+		
+		try {
+			eventThread.join();
+		} catch (InterruptedException intEx) {
+			logger.error("Error waiting for file changes: " + intEx.getMessage());
+			eventThread.interrupt();
+		}
+	}
+	
+	// The files found on start, ingested before the first report
+	private Boolean ingestCurrentFiles() {
+		List<Path> newPaths = fileMonitor.retrieveCurrentTextFiles();
+		
+		//files restored from the snapshot are already up to date, but are read again to keep their tokens
+		if (maxTerms == 0) {
+			Set<Path> knownPaths;
+			synchronized (indexLock) {
+				knownPaths = new HashSet<>(tfidf.getFileList());
+			}
+			newPaths.removeIf(knownPaths::contains);
+		}
 		
-		for(Path fileName : newPaths) {
-			if (!tfidf.addNewFile(fileName)) {
-				logger.error("Error registering new file: " + fileName);
-				continue;
+		long registeredFiles = 0;
+		for (int batchStart = 0; batchStart < newPaths.size(); batchStart += FILES_PER_BATCH) {
+			List<Path> batch = newPaths.subList(batchStart, Math.min(newPaths.size(), batchStart + FILES_PER_BATCH));
+			synchronized (indexLock) {
+				registeredFiles += tfidf.addNewFiles(batch);
+				tfidf.publishResults();
 			}
-			newFilesRegistered = true;
 		}
+		if (registeredFiles < newPaths.size()) {
+			logger.error("Error registering " + (newPaths.size() - registeredFiles) + " of " + newPaths.size() + " new files");
+		}
+		
+		filesSinceSnapshot += registeredFiles;
+		saveSnapshot(true);
 		
-		return newFilesRegistered;
+		return registeredFiles > 0;
 	}
 	
-	private void reportResults(Boolean updateNeeded) {
+	// Deleted files leave the results, and modified ones are registered again replacing their counts.
+	// Changes are taken from the monitor a batch at a time, so a burst waits among its bounded pending changes
+	// instead of in one list. Blocks while the queue is full, unless its policy spills or samples the changes,
+	// and also when spilling fails, so no change is lost
+	private void queueChanges() throws InterruptedException {
+		for (;;) {
+			List<Path> deletedPaths = fileMonitor.retrieveDeletedFiles(FILES_PER_BATCH);
+			for (Path deletedPath: deletedPaths) {
+				ingestionQueue.put(deletedPath, true);
+			}
+			List<Path> newPaths = fileMonitor.retrieveNewTextFiles(FILES_PER_BATCH);
+			for (Path newPath: newPaths) {
+				ingestionQueue.put(newPath, false);
+			}
+			List<Path> modifiedPaths = fileMonitor.retrieveModifiedTextFiles(FILES_PER_BATCH);
+			for (Path modifiedPath: modifiedPaths) {
+				ingestionQueue.put(modifiedPath, false);
+			}
+			if (deletedPaths.isEmpty() && newPaths.isEmpty() && modifiedPaths.isEmpty()) {
+				return;
+			}
+		}
+	}
+	
+	private void ingestQueuedChanges() {
+		for (;;) {
+			List<IngestionQueue.Change> changes;
+			try {
+				changes = ingestionQueue.take(FILES_PER_BATCH, TimeUnit.SECONDS.toMillis(pollPeriod));
+			} catch (InterruptedException intEx) {
+				logger.error("Error waiting for queued changes: " + intEx.getMessage());
+				break;
+			}
+			
+			if (!changes.isEmpty() && ingestChanges(changes)) {
+				markIndexChanged();
+			}
+		}
+	}
+	
+	// A batch of queued changes, in order, consecutive new files being registered together and
+	// consecutive deleted ones removed together
+	private Boolean ingestChanges(List<IngestionQueue.Change> changes) {
+		long registeredFiles = 0;
+		long removedFiles = 0;
+		List<Path> newPaths = new ArrayList<>();
+		List<Path> deletedPaths = new ArrayList<>();
+		synchronized (indexLock) {
+			for (IngestionQueue.Change change: changes) {
+				if (change.isRemoval()) {
+					if (!newPaths.isEmpty()) {
+						registeredFiles += tfidf.addNewFiles(newPaths);
+						newPaths.clear();
+					}
+					deletedPaths.add(change.getFileName());
+				} else {
+					if (!deletedPaths.isEmpty()) {
+						removedFiles += tfidf.removeFiles(deletedPaths);
+						deletedPaths.clear();
+					}
+					newPaths.add(change.getFileName());
+				}
+			}
+			registeredFiles += tfidf.addNewFiles(newPaths);
+			removedFiles += tfidf.removeFiles(deletedPaths);
+			tfidf.publishResults();
+		}
+		
+		filesSinceSnapshot += registeredFiles + removedFiles;
+		saveSnapshot(false);
 		
-		Map<Path, Double> results = tfidf.retrieveResults(updateNeeded, resultNumber);
-		int numFiles = tfidf.getFileList().size();
+		return registeredFiles > 0 || removedFiles > 0;
+	}
+	
+	// Files since the last snapshot are replayed from the log, so a new one is only taken once the log grows
+	private void saveSnapshot(Boolean always) {
+		if (snapshotFile != null && filesSinceSnapshot > 0) {
+			synchronized (indexLock) {
+				if (always || filesSinceSnapshot >= Math.max(MIN_FILES_PER_SNAPSHOT, tfidf.getFileList().size() / 4)) {
+					if (tfidf.saveSnapshot(snapshotFile)) {
+						filesSinceSnapshot = 0;
+					} else {
+						logger.error("Error saving snapshot " + snapshotFile);
+					}
+				}
+			}
+		}
+	}
+	
+	private void markIndexChanged() {
+		for (KeywordProfile profile: profiles) {
+			profile.markIndexChanged();
+		}
+	}
+	
+	private void reportResults(KeywordProfile profile) {
+		
+		Map<Path, Double> results;
+		int numFiles;
+		synchronized (indexLock) {
+			results = profile.retrieveResults(tfidf);
+			numFiles = tfidf.getFileList().size();
+		}
 
 		if (results.size() > 0) {
-			logger.info("Reporting " + results.size() + " filtered results from " + numFiles + " files:");
+			String profileName = (profile.getName() != null) ? " for profile " + profile.getName() : "";
+			logger.info("Reporting " + results.size() + " filtered results" + profileName + " from " + numFiles + " files:");
 			for(Map.Entry<Path,Double> fileResult : results.entrySet()) {
 				logger.info("  " + fileResult.getKey() + " " + fileResult.getValue());
 			}
 		}
 	}
 	
+	private void reportQueue() {
+		long queueDepth = ingestionQueue.getDepth();
+		if (queueDepth > 0 || ingestionQueue.getDroppedChanges() > 0 || ingestionQueue.getLostChanges() > 0) {
+			logger.info("Ingestion queue: " + queueDepth + " changes waiting for " + ingestionQueue.getLagMillis() + " ms, "
+					+ ingestionQueue.getSpilledChanges() + " spilled, " + ingestionQueue.getDroppedChanges() + " sampled out and "
+					+ ingestionQueue.getLostChanges() + " lost so far");
+		}
+	}
+	
 	private Options createParserConfiguration() {
 		Options options = new Options();
     	
-		Option directoryParam = new Option("d", "directory", true, "Directory");
+		Option directoryParam = new Option("d", "directory", true, "Directory, monitored with its subdirectories");
 		directoryParam.setRequired(true);
 		options.addOption(directoryParam);
 		
 		Option resultNumberParam = new Option("n", "resultNumber", true, "Results to show");
-		resultNumberParam.setRequired(true);
 		options.addOption(resultNumberParam);
 		
 		Option periodParam = new Option("p", "period", true, "Reporting period");
-		periodParam.setRequired(true);
 		options.addOption(periodParam);
 		
 		Option termsParam = new Option("t", "keywords", true, "Set of terms");
-		termsParam.setRequired(true);
 		options.addOption(termsParam);
 		
+		Option profileParam = new Option("k", "profile", true, "Keyword profile <name>:<results>:<period>:<terms>, reported on its own");
+		options.addOption(profileParam);
+		
+		Option workersParam = new Option("w", "workers", true, "Threads reading new files");
+		options.addOption(workersParam);
+		
+		Option readsParam = new Option("r", "reads", true, "Files read at once on a separate I/O stage feeding the workers");
+		options.addOption(readsParam);
+		
+		Option completeParam = new Option("c", "complete", true, "When a file is complete: none, rename, lock or quiescence:<milliseconds>");
+		options.addOption(completeParam);
+		
+		Option backpressureParam = new Option("b", "backpressure", true, "When the ingestion queue is full: block, spill or sample, with an optional :<capacity>");
+		options.addOption(backpressureParam);
+		
+		Option modeParam = new Option("m", "mode", true, "Processing mode: poll (once per period) or events");
+		options.addOption(modeParam);
+		
+		Option snapshotParam = new Option("s", "snapshot", true, "Index snapshot file");
+		options.addOption(snapshotParam);
+		
+		Option queryParam = new Option("q", "query", true, "Port of the JSON query server on localhost, 0 for any free one");
+		options.addOption(queryParam);
+		
+		Option indexParam = new Option("i", "index", true, "Index implementation: single (persisted, one thread at a time) or concurrent (in memory)");
+		options.addOption(indexParam);
+		
+		Option dictionaryParam = new Option("x", "dictionary", true, "Keeps every token, so queries can add terms up to this many");
+		options.addOption(dictionaryParam);
+		
 		return options;
 	}
 	
-	private void configureTerms(String terms) {
+	// Terms shared by several profiles are counted once
+	private void configureTerms(List<String> terms) {
 		logger.trace("Processing terms: " + terms);
-		StringTokenizer termTokenizer = new StringTokenizer(terms);
-		logger.trace("  Number of terms found : " + termTokenizer.countTokens());
-		while (termTokenizer.hasMoreTokens())
-		{
-			String newToken = termTokenizer.nextToken();
-			logger.trace("  Adding new term: " + newToken);
-			tfidf.addNewTerm(newToken);
+		logger.trace("  Number of terms found : " + terms.size());
+		for (String newToken: terms) {
+			if (!tfidf.getTermList().contains(newToken)) {
+				logger.trace("  Adding new term: " + newToken);
+				tfidf.addNewTerm(newToken);
+			}
 		}
 	}
 
 	private static void showUsage() {
-        logger.error("Usage: TfIdf -d [directory] -n [results to show] -p [reporting period] -t [set of terms]");
+        logger.error("Usage: TfIdf -d [directory] [-d [directory]...] [-n [results to show] -p [reporting period] -t [set of terms]] [-k [name:results:period:terms]...] [-w [reading threads]] [-r [reads in flight]] [-s [snapshot file]] [-c [file completion policy]] [-m [poll|events]] [-b [block|spill|sample][:capacity]] [-q [query port]]");
         logger.error("Example: TfIdf -d dir -n 5 -p 300 -t \"password try again\"");
+        logger.error("Example: TfIdf -d dir -k \"security:5:300:password try again\" -k \"billing:10:3600:invoice refund\"");
         System.exit(-1);
     }
 	
@@ -183,6 +594,11 @@ public class TfIdfApp {
 			showUsage();
 		}
 		
+		//read once by the JDK server when it is first used, so it has to be set before the query server starts
+		if (tfIdfApp.queryPort >= 0 && System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		
 		tfIdfApp.launchProcess();
 		
 		logger.debug("Finishing tfidf...");
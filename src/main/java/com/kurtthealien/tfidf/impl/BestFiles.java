@@ -0,0 +1,66 @@
+package com.kurtthealien.tfidf.impl;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+// Bounded min-heap keeping the heaviest files offered, so only those are held and sorted.
+// Files must be offered in increasing order, and on a tie the one offered first wins.
+final class BestFiles {
+
+	private final int size;
+	
+	private final PriorityQueue<WeightedFile> heap;
+	
+	BestFiles(int size) {
+		this.size = size;
+		heap = new PriorityQueue<>(Math.max(size, 1));
+	}
+	
+	void offer(int fileOrder, long weight) {
+		if (heap.size() < size) {
+			heap.add(new WeightedFile(fileOrder, weight));
+		} else if (size > 0 && weight > heap.peek().weight) {
+			heap.poll();
+			heap.add(new WeightedFile(fileOrder, weight));
+		}
+	}
+	
+	// Weight a file must exceed to be kept, or Long.MIN_VALUE while there is room for any file
+	long getMinimumWeight() {
+		return (heap.size() < size || size == 0) ? Long.MIN_VALUE : heap.peek().weight;
+	}
+	
+	int size() {
+		return heap.size();
+	}
+	
+	// Orders of the files kept, heaviest first
+	int[] sortedFileOrders() {
+		WeightedFile[] sortedFiles = heap.toArray(new WeightedFile[0]);
+		Arrays.sort(sortedFiles, Comparator.reverseOrder());
+		
+		int[] fileOrders = new int[sortedFiles.length];
+		for (int i = 0; i < sortedFiles.length; i++) {
+			fileOrders[i] = sortedFiles[i].fileOrder;
+		}
+		return fileOrders;
+	}
+	
+	// Ordered by weight, with ties going to the file offered first
+	private static final class WeightedFile implements Comparable<WeightedFile> {
+		
+		private final int fileOrder;
+		private final long weight;
+		
+		private WeightedFile(int fileOrder, long weight) {
+			this.fileOrder = fileOrder;
+			this.weight = weight;
+		}
+		
+		public int compareTo(WeightedFile other) {
+			int weightComparison = Long.compare(weight, other.weight);
+			return (weightComparison != 0) ? weightComparison : Integer.compare(other.fileOrder, fileOrder);
+		}
+	}
+}
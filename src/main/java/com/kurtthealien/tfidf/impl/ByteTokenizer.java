@@ -0,0 +1,151 @@
+package com.kurtthealien.tfidf.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Streams the file through a reused buffer, or through memory-mapped windows for large files, so memory use
+// doesn't depend on the file size and no String is created per file or per token.
+// Tokens are split on spaces and line feeds, and carriage returns are dropped, as StringSplitTokenizer does.
+// Bytes are never decoded: a malformed UTF-8 sequence just makes a token that matches no keyword.
+// Not thread-safe: every instance keeps its own buffers.
+public class ByteTokenizer implements Tokenizer {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private static final long MAP_THRESHOLD = 4 * 1024 * 1024;
+	
+	private static final long MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+	
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	
+	private byte[] token = new byte[0];
+	
+	private int tokenLength;
+	
+	private boolean tokenTooLong;   //longer than any keyword, so it can be skipped
+	
+	private TokenDictionary.FileTokens fileTokens;   //every token is added to it too, while counting for a token dictionary
+	
+	public void countTerms(Path fileName, KeywordMatcher matcher, long[] termCounts) throws IOException {
+		try (FileChannel channel = FileChannel.open(fileName, StandardOpenOption.READ)) {
+			countTerms(channel, 0, channel.size(), matcher, termCounts);
+		}
+	}
+	
+	// Same as countTerms(Path), also adding every token up to TokenDictionary.MAX_TOKEN_LENGTH bytes to fileTokens
+	void countTerms(Path fileName, KeywordMatcher matcher, long[] termCounts, TokenDictionary.FileTokens fileTokens) throws IOException {
+		this.fileTokens = fileTokens;
+		try {
+			countTerms(fileName, matcher, termCounts);
+		} finally {
+			this.fileTokens = null;
+		}
+	}
+	
+	void countTerms(ByteBuffer content, KeywordMatcher matcher, long[] termCounts, TokenDictionary.FileTokens fileTokens) {
+		this.fileTokens = fileTokens;
+		try {
+			countTerms(content, matcher, termCounts);
+		} finally {
+			this.fileTokens = null;
+		}
+	}
+	
+	// Same as countTerms(Path) for the bytes of the channel from start to end, taken as a whole text
+	public void countTerms(FileChannel channel, long start, long end, KeywordMatcher matcher, long[] termCounts) throws IOException {
+		
+		int maxTokenLength = (fileTokens == null) ? matcher.getMaxLength() : Math.max(matcher.getMaxLength(), TokenDictionary.MAX_TOKEN_LENGTH);
+		if (token.length < maxTokenLength) {
+			token = new byte[maxTokenLength];
+		}
+		
+		tokenLength = 0;
+		tokenTooLong = false;
+		
+		if (end - start >= MAP_THRESHOLD) {
+			//the windows are unmapped by the garbage collector, and use page cache instead of heap
+			for (long offset = start; offset < end; offset += MAP_WINDOW_SIZE) {
+				long windowSize = Math.min(MAP_WINDOW_SIZE, end - offset);
+				scan(channel.map(FileChannel.MapMode.READ_ONLY, offset, windowSize), matcher, termCounts);
+			}
+		} else {
+			for (long position = start; position < end; ) {
+				readBuffer.clear();
+				readBuffer.limit((int) Math.min(BUFFER_SIZE, end - position));
+				int readBytes = channel.read(readBuffer, position);
+				if (readBytes < 0) {
+					break;
+				}
+				position += readBytes;
+				readBuffer.flip();
+				scan(readBuffer, matcher, termCounts);
+			}
+		}
+		
+		if (!tokenTooLong) {
+			countToken(matcher, termCounts);
+		}
+	}
+	
+	// Same as countTerms(Path) for a text already in memory, from its position to its limit
+	public void countTerms(ByteBuffer content, KeywordMatcher matcher, long[] termCounts) {
+		
+		int maxTokenLength = (fileTokens == null) ? matcher.getMaxLength() : Math.max(matcher.getMaxLength(), TokenDictionary.MAX_TOKEN_LENGTH);
+		if (token.length < maxTokenLength) {
+			token = new byte[maxTokenLength];
+		}
+		
+		tokenLength = 0;
+		tokenTooLong = false;
+		
+		scan(content, matcher, termCounts);
+		
+		if (!tokenTooLong) {
+			countToken(matcher, termCounts);
+		}
+	}
+	
+	// Tokens may continue in the next buffer, so the current one is kept between calls
+	private void scan(ByteBuffer buffer, KeywordMatcher matcher, long[] termCounts) {
+		int limit = buffer.limit();
+		if (buffer.hasArray()) {
+			byte[] bytes = buffer.array();
+			for (int i = buffer.position(); i < limit; i++) {
+				consume(bytes[i], matcher, termCounts);
+			}
+		} else {
+			for (int i = buffer.position(); i < limit; i++) {
+				consume(buffer.get(i), matcher, termCounts);
+			}
+		}
+	}
+	
+	private void consume(byte currentByte, KeywordMatcher matcher, long[] termCounts) {
+		if (currentByte == ' ' || currentByte == '\n') {
+			if (!tokenTooLong) {
+				countToken(matcher, termCounts);
+			}
+			tokenLength = 0;
+			tokenTooLong = false;
+		} else if (currentByte != '\r') {
+			if (tokenLength < token.length) {
+				token[tokenLength++] = currentByte;
+			} else {
+				tokenTooLong = true;
+			}
+		}
+	}
+	
+	private void countToken(KeywordMatcher matcher, long[] termCounts) {
+		if (fileTokens != null && tokenLength > 0) {
+			fileTokens.add(token, tokenLength);
+		}
+		int keywordId = matcher.match(token, tokenLength);
+		if (keywordId >= 0) {
+			termCounts[keywordId]++;
+		}
+	}
+}
@@ -0,0 +1,424 @@
+package com.kurtthealien.tfidf.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+
+import com.kurtthealien.tfidf.ResultListener;
+import com.kurtthealien.tfidf.TfIdf;
+
+// TfIdf that can be used from several threads at once. Files are read and tokenized by the calling thread
+// without holding any lock, and only registering their counts is serialized. Every registration publishes
+// a new index version, and a report scores the version that was current when it started, so writers never
+// block readers and every report sees a consistent set of files and document frequencies.
+public class ConcurrentTfIdfImpl implements TfIdf {
+
+	private static final int MIN_ENTRIES_TO_COMPACT = 1024;
+	
+	private volatile List<String> termList;   //immutable, replaced on every new term
+	
+	private volatile KeywordMatcher keywordMatcher;   //built from the terms when the first file is added
+	
+	private final ThreadLocal<Tokenizer> tokenizer;
+	
+	private final ReentrantLock writeLock;
+	
+	private final Map<Path, FileEntry> liveEntries;   //guarded by writeLock
+	
+	private int supersededEntries;   //guarded by writeLock
+	
+	private volatile IndexVersion currentVersion;
+	
+	private volatile Map<Path, Double> weightedFileList;
+	
+	private final ResultPublisher resultPublisher = new ResultPublisher(this);
+	
+	private static final Logger logger = Logger.getLogger("TfIdfLog");
+	
+	public ConcurrentTfIdfImpl() {
+		this(ForkJoinTokenizer::new);
+	}
+	
+	public ConcurrentTfIdfImpl(Supplier<Tokenizer> tokenizerFactory) {
+		tokenizer = ThreadLocal.withInitial(tokenizerFactory);
+		writeLock = new ReentrantLock();
+		
+		termList = List.of();
+		liveEntries = new HashMap<>();
+		currentVersion = new IndexVersion(0, new FileEntry[0], 0, 0, new long[0]);
+		weightedFileList = new LinkedHashMap<>();
+	}
+	
+	// Terms can only be added before the first file, when there are no results to keep
+	public Boolean addNewTerm(String word) {
+		writeLock.lock();
+		try {
+			// Sanity check to avoid adding new terms when there are files processed
+			if (keywordMatcher != null) {
+				logger.error("Unable to add more terms as there are files already processed");
+				return false;
+			}
+			
+			if (!termList.contains(word)) {
+				List<String> newTermList = new ArrayList<>(termList);
+				newTermList.add(word);
+				termList = List.copyOf(newTermList);
+			}
+			return true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	public Boolean addNewFile(Path fileName) {
+		
+		// Sanity check to avoid adding new files with no words defined
+		if (termList.isEmpty()) {
+			logger.error("Unable to add files as there are no terms defined");
+			return false;
+		}
+		
+		logger.debug("New text file found: " + fileName);
+		
+		KeywordMatcher matcher = freezeTerms();
+		long[] termCounts = new long[matcher.size()];
+		try {
+			tokenizer.get().countTerms(fileName, matcher, termCounts);
+		} catch (IOException ioEx) {
+			logger.error("  Error reading file: " + ioEx.getMessage());
+			Arrays.fill(termCounts, 0);
+		}
+		
+		writeLock.lock();
+		try {
+			registerFile(new FileEntry(fileName, termCounts));
+		} finally {
+			writeLock.unlock();
+		}
+		resultPublisher.publishAsync();
+		
+		return true;
+	}
+	
+	// Each file is registered and published on its own, so readers see them as soon as they are counted
+	public long addNewFiles(List<Path> fileNames) {
+		long registeredFiles = 0;
+		for (Path fileName: fileNames) {
+			if (addNewFile(fileName)) {
+				registeredFiles++;
+			}
+		}
+		return registeredFiles;
+	}
+	
+	public long removeFiles(List<Path> fileNames) {
+		long removedFiles = 0;
+		for (Path fileName: fileNames) {
+			if (removeFile(fileName)) {
+				removedFiles++;
+			}
+		}
+		return removedFiles;
+	}
+	
+	public Boolean removeFile(Path fileName) {
+		writeLock.lock();
+		try {
+			FileEntry oldEntry = liveEntries.remove(fileName);
+			if (oldEntry == null) {
+				logger.debug("Removed file was not registered: " + fileName);
+				return false;
+			}
+			
+			IndexVersion previous = currentVersion;
+			long version = previous.version + 1;
+			long[] documentFrequencies = previous.documentFrequencies.clone();
+			oldEntry.removedVersion = version;
+			oldEntry.updateDocumentFrequencies(documentFrequencies, -1);
+			supersededEntries++;
+			int fileCount = previous.fileCount - 1;
+			
+			FileEntry[] entries = previous.entries;
+			int entryCount = previous.entryCount;
+			if (supersededEntries > MIN_ENTRIES_TO_COMPACT && supersededEntries > fileCount) {
+				entries = compact(previous, version);
+				entryCount = fileCount;
+			}
+			
+			currentVersion = new IndexVersion(version, entries, entryCount, fileCount, documentFrequencies);
+		} finally {
+			writeLock.unlock();
+		}
+		
+		logger.debug("File removed: " + fileName);
+		resultPublisher.publishAsync();
+		return true;
+	}
+	
+	public List<String> getTermList() {
+		return new ArrayList<String>(termList);
+	}
+	
+	public List<Path> getFileList() {
+		IndexVersion index = currentVersion;
+		
+		List<Path> fileList = new ArrayList<>(index.fileCount);
+		for (int order = 0; order < index.entryCount; order++) {
+			if (index.entries[order].isLiveIn(index.version)) {
+				fileList.add(index.entries[order].fileName);
+			}
+		}
+		return fileList;
+	}
+	
+	// Number of file registrations and removals so far, as terms only change before the first file
+	public long getIndexVersion() {
+		return currentVersion.version;
+	}
+	
+	// Results are computed on the delivery pool, once for all the files registered meanwhile
+	public Boolean addResultListener(List<String> terms, long resultNumber, ResultListener listener) {
+		return resultPublisher.subscribe(terms, resultNumber, listener);
+	}
+	
+	public Boolean removeResultListener(ResultListener listener) {
+		return resultPublisher.unsubscribe(listener);
+	}
+	
+	// Every registration already publishes
+	public void publishResults() {
+		resultPublisher.publishAsync();
+	}
+	
+	// The index only lives in memory, so there is nothing to snapshot or log
+	public Boolean saveSnapshot(Path snapshotFile) {
+		logger.error("Unable to save snapshot " + snapshotFile + " as the concurrent index only lives in memory");
+		return false;
+	}
+	
+	public Boolean loadSnapshot(Path snapshotFile) {
+		logger.error("Unable to load snapshot " + snapshotFile + " as the concurrent index only lives in memory");
+		return false;
+	}
+	
+	public Boolean openLog(Path logFile) {
+		logger.error("Unable to open ingestion log " + logFile + " as the concurrent index only lives in memory");
+		return false;
+	}
+	
+	public Map<Path,Double> retrieveResults(Boolean updateNeeded, long resultNumber) {
+		if (!updateNeeded) {
+			return weightedFileList;
+		}
+		
+		IndexVersion index = currentVersion;
+		long[] idfUnits = calculateIdfs(index);
+		Map<Path, Double> bestWeightedFiles = calculateFileWeights(index, idfUnits, idfUnits.length, resultNumber);
+		
+		weightedFileList = bestWeightedFiles;
+		return bestWeightedFiles;
+	}
+	
+	public Map<Path,Double> retrieveResults(List<String> terms, long resultNumber) {
+		Set<String> distinctTerms = new LinkedHashSet<>(terms);
+		if (distinctTerms.isEmpty()) {
+			return new LinkedHashMap<>();
+		}
+		
+		IndexVersion index = currentVersion;
+		long[] idfUnits = calculateIdfs(index);
+		List<String> keywords = termList;
+		for (int keywordId = 0; keywordId < idfUnits.length; keywordId++) {
+			if (!distinctTerms.contains(keywords.get(keywordId))) {
+				idfUnits[keywordId] = 0;
+			}
+		}
+		return calculateFileWeights(index, idfUnits, distinctTerms.size(), resultNumber);
+	}
+	
+	private Map<Path, Double> calculateFileWeights(IndexVersion index, long[] idfUnits, int termNumber, long resultNumber) {
+		BestFiles bestFiles = new BestFiles((int) Math.min(resultNumber, index.fileCount));
+		for (int order = 0; order < index.entryCount; order++) {
+			FileEntry entry = index.entries[order];
+			if (entry.isLiveIn(index.version)) {
+				bestFiles.offer(order, entry.calculateTotalTfIdf(idfUnits));
+			}
+		}
+		
+		Map<Path, Double> bestWeightedFiles = new LinkedHashMap<>();
+		for (int order: bestFiles.sortedFileOrders()) {
+			FileEntry entry = index.entries[order];
+			bestWeightedFiles.put(entry.fileName, entry.calculateReportedTfIdf(idfUnits, termNumber));
+		}
+		
+		logger.debug("Best calculated results for index version " + index.version + ": " + bestWeightedFiles.toString());
+		
+		return bestWeightedFiles;
+	}
+	
+	// The keyword ids follow the order of the term list, which can't change once there are files
+	private KeywordMatcher freezeTerms() {
+		KeywordMatcher matcher = keywordMatcher;
+		if (matcher != null) {
+			return matcher;
+		}
+		
+		writeLock.lock();
+		try {
+			if (keywordMatcher == null) {
+				currentVersion = new IndexVersion(0, new FileEntry[16], 0, 0, new long[termList.size()]);
+				keywordMatcher = new KeywordMatcher(termList);
+			}
+			return keywordMatcher;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	// Must hold writeLock. Entries are only appended to the shared array past the count of every published
+	// version, and a file registered again is superseded by setting the version where its old entry stops counting.
+	private void registerFile(FileEntry newEntry) {
+		IndexVersion previous = currentVersion;
+		long version = previous.version + 1;
+		long[] documentFrequencies = previous.documentFrequencies.clone();
+		int fileCount = previous.fileCount;
+		
+		FileEntry oldEntry = liveEntries.put(newEntry.fileName, newEntry);
+		if (oldEntry != null) {
+			oldEntry.removedVersion = version;
+			oldEntry.updateDocumentFrequencies(documentFrequencies, -1);
+			supersededEntries++;
+		} else {
+			fileCount++;
+		}
+		newEntry.updateDocumentFrequencies(documentFrequencies, 1);
+		
+		FileEntry[] entries = previous.entries;
+		int entryCount = previous.entryCount;
+		if (supersededEntries > MIN_ENTRIES_TO_COMPACT && supersededEntries > fileCount) {
+			//every registered file except the new one has exactly one live entry
+			entries = compact(previous, version);
+			entryCount = fileCount - 1;
+		}
+		if (entryCount == entries.length) {
+			entries = Arrays.copyOf(entries, Math.max(16, entries.length * 2));
+		}
+		entries[entryCount++] = newEntry;
+		
+		currentVersion = new IndexVersion(version, entries, entryCount, fileCount, documentFrequencies);
+	}
+	
+	// New array with the entries still live in the version, in the same order, for versions from then on
+	private FileEntry[] compact(IndexVersion previous, long version) {
+		FileEntry[] entries = new FileEntry[previous.entries.length];
+		int entryCount = 0;
+		for (int order = 0; order < previous.entryCount; order++) {
+			if (previous.entries[order].isLiveIn(version)) {
+				entries[entryCount++] = previous.entries[order];
+			}
+		}
+		supersededEntries = 0;
+		return entries;
+	}
+	
+	// Defined as log(number of documents containing the work / the total number of documents)
+	private long[] calculateIdfs(IndexVersion index) {
+		long[] idfUnits = new long[index.documentFrequencies.length];
+		for (int keywordId = 0; keywordId < idfUnits.length; keywordId++) {
+			double numDocsWithWord = index.documentFrequencies[keywordId];
+			if (numDocsWithWord == 0) {
+				logger.warn("    Term " + termList.get(keywordId) + " has no occurrences, so considering idf=0.");
+				continue;
+			}
+			double idf = TfIdfImpl.roundValue(Math.log10(index.fileCount / numDocsWithWord));
+			idfUnits[keywordId] = Math.round(idf * TfIdfImpl.ROUND_SCALE);
+		}
+		return idfUnits;
+	}
+	
+	// Immutable once published, except for slots of the shared entries array past entryCount
+	private static final class IndexVersion {
+		
+		private final long version;
+		private final FileEntry[] entries;
+		private final int entryCount;
+		private final int fileCount;
+		private final long[] documentFrequencies;
+		
+		private IndexVersion(long version, FileEntry[] entries, int entryCount, int fileCount, long[] documentFrequencies) {
+			this.version = version;
+			this.entries = entries;
+			this.entryCount = entryCount;
+			this.fileCount = fileCount;
+			this.documentFrequencies = documentFrequencies;
+		}
+	}
+	
+	// Non-zero keyword counts of a file, as found when it was registered
+	private static final class FileEntry {
+		
+		private final Path fileName;
+		private final int[] termIds;
+		private final long[] counts;
+		private volatile long removedVersion = Long.MAX_VALUE;   //first version the entry is not part of
+		
+		private FileEntry(Path fileName, long[] termCounts) {
+			this.fileName = fileName;
+			
+			int entryLength = 0;
+			for (long count: termCounts) {
+				if (count != 0) {
+					entryLength++;
+				}
+			}
+			termIds = new int[entryLength];
+			counts = new long[entryLength];
+			
+			int position = 0;
+			for (int termId = 0; termId < termCounts.length; termId++) {
+				if (termCounts[termId] != 0) {
+					termIds[position] = termId;
+					counts[position++] = termCounts[termId];
+				}
+			}
+		}
+		
+		private boolean isLiveIn(long version) {
+			return removedVersion > version;
+		}
+		
+		private void updateDocumentFrequencies(long[] documentFrequencies, long increment) {
+			for (int termId: termIds) {
+				documentFrequencies[termId] += increment;
+			}
+		}
+		
+		// Same fixed-point sum and reported value as TfIdfImpl
+		private long calculateTotalTfIdf(long[] idfUnits) {
+			long totalUnits = 0;
+			for (int position = 0; position < termIds.length; position++) {
+				totalUnits += counts[position] * idfUnits[termIds[position]];
+			}
+			return totalUnits;
+		}
+		
+		private double calculateReportedTfIdf(long[] idfUnits, int termNumber) {
+			double totalTfIdf = 0.0;
+			for (int position = 0; position < termIds.length; position++) {
+				totalTfIdf += (counts[position] * idfUnits[termIds[position]]) / (double) TfIdfImpl.ROUND_SCALE;
+			}
+			return TfIdfImpl.roundValue(totalTfIdf / termNumber);
+		}
+	}
+}
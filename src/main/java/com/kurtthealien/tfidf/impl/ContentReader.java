@@ -0,0 +1,25 @@
+package com.kurtthealien.tfidf.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Reads the whole content of a file in the I/O stage of TfIdfImpl, which runs many reads at once
+public interface ContentReader {
+
+	public ByteBuffer read(Path fileName, long fileSize) throws IOException;
+	
+	public static ContentReader fileChannel() {
+		return (fileName, fileSize) -> {
+			ByteBuffer content = ByteBuffer.allocate((int) fileSize);
+			try (FileChannel channel = FileChannel.open(fileName, StandardOpenOption.READ)) {
+				while (content.hasRemaining() && channel.read(content) >= 0) {
+					continue;
+				}
+			}
+			return content.flip();
+		};
+	}
+}
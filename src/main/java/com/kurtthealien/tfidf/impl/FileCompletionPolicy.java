@@ -0,0 +1,116 @@
+package com.kurtthealien.tfidf.impl;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Decides when a file has been completely written and can be read. A file that is not complete yet is
+// checked again the next time new files are retrieved. Implementations are called from several threads.
+public interface FileCompletionPolicy {
+
+	public boolean isComplete(Path fileName, BasicFileAttributes attributes);
+	
+	// The file was deleted, or the directory with everything under it, so whatever was kept about it can go
+	public default void forget(Path path) {
+	}
+	
+	// Every file is complete as soon as it is seen
+	public static FileCompletionPolicy immediate() {
+		return (fileName, attributes) -> true;
+	}
+	
+	// Complete once its size and modification time have not changed for the window
+	public static FileCompletionPolicy quiescence(long windowMillis) {
+		return new Quiescence(windowMillis);
+	}
+	
+	// Producers write to a temporary name and rename the file into place when done, so only temporary names
+	// (hidden, or ending in .tmp, .part, .partial or ~) are incomplete
+	public static FileCompletionPolicy renameIntoPlace() {
+		return (fileName, attributes) -> {
+			String name = fileName.getFileName().toString();
+			return !(name.startsWith(".") || name.endsWith(".tmp") || name.endsWith(".part")
+					|| name.endsWith(".partial") || name.endsWith("~"));
+		};
+	}
+	
+	// Complete when a shared lock can be taken without waiting, for producers that lock the file while writing
+	public static FileCompletionPolicy sharedLock() {
+		return (fileName, attributes) -> {
+			try (FileChannel channel = FileChannel.open(fileName, StandardOpenOption.READ)) {
+				FileLock lock = channel.tryLock(0, Long.MAX_VALUE, true);
+				if (lock == null) {
+					return false;
+				}
+				lock.release();
+				return true;
+			} catch (IOException | OverlappingFileLockException lockEx) {
+				return false;
+			}
+		};
+	}
+	
+	// Parses "none", "rename", "lock" or "quiescence:<milliseconds>"
+	public static FileCompletionPolicy parse(String description) {
+		if (description.equals("none")) {
+			return immediate();
+		} else if (description.equals("rename")) {
+			return renameIntoPlace();
+		} else if (description.equals("lock")) {
+			return sharedLock();
+		} else if (description.startsWith("quiescence:")) {
+			return quiescence(Long.parseLong(description.substring("quiescence:".length())));
+		}
+		throw new IllegalArgumentException("Unknown file completion policy: " + description);
+	}
+	
+	public static final class Quiescence implements FileCompletionPolicy {
+		
+		private final long windowMillis;
+		
+		// Last size and modification time seen for each file not complete yet, and when they were first seen
+		private final Map<Path, long[]> observations = new ConcurrentHashMap<>();
+		
+		private Quiescence(long windowMillis) {
+			this.windowMillis = windowMillis;
+		}
+		
+		public boolean isComplete(Path fileName, BasicFileAttributes attributes) {
+			long now = System.currentTimeMillis();
+			long size = attributes.size();
+			long lastModified = attributes.lastModifiedTime().toMillis();
+			
+			//files untouched for longer than the window, as most of them in the initial scan, need no tracking
+			if (now - lastModified >= windowMillis) {
+				observations.remove(fileName);
+				return true;
+			}
+			
+			long[] observation = observations.get(fileName);
+			if (observation == null || observation[0] != size || observation[1] != lastModified) {
+				observations.put(fileName, new long[] {size, lastModified, now});
+				return false;
+			}
+			if (now - observation[2] >= windowMillis) {
+				observations.remove(fileName);
+				return true;
+			}
+			return false;
+		}
+		
+		public void forget(Path path) {
+			observations.keySet().removeIf(fileName -> fileName.startsWith(path));
+		}
+		
+		// Files seen being written that are not complete yet
+		public int getObservedFiles() {
+			return observations.size();
+		}
+	}
+}
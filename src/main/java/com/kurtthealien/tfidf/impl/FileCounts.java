@@ -0,0 +1,25 @@
+package com.kurtthealien.tfidf.impl;
+
+// Keyword counts of a file, with the size and modification time it had before being read.
+// Both are -1 when the file could not be read.
+final class FileCounts {
+
+	final long[] termCounts;
+	
+	final long fileSize;
+	
+	final long lastModified;
+	
+	final byte[] tokenRow;   //encoded by TokenDictionary, null unless it is kept or when restored from disk
+	
+	FileCounts(long[] termCounts, long fileSize, long lastModified) {
+		this(termCounts, fileSize, lastModified, null);
+	}
+	
+	FileCounts(long[] termCounts, long fileSize, long lastModified, byte[] tokenRow) {
+		this.termCounts = termCounts;
+		this.fileSize = fileSize;
+		this.lastModified = lastModified;
+		this.tokenRow = tokenRow;
+	}
+}
@@ -1,23 +1,41 @@
 package com.kurtthealien.tfidf.impl;
 
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.stream.StreamSupport;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import org.apache.log4j.Logger;
 
@@ -28,12 +46,66 @@ public class FileMonitorImpl implements FileMonitor {
 	private static final Logger logger = Logger.getLogger("TfIdfLog");
 	
 	private WatchService directoryWatcher;
-	private Path directory;
+	private List<Path> rootDirectories;
 	
-	public Boolean configure(Path directory) {
-		this.directory = directory;
+	// Every directory under the roots with a watch registered, added from the walking threads
+	private final Set<Path> watchedDirectories = ConcurrentHashMap.newKeySet();
+	
+	// Directories whose watch was cancelled before the deletion event from their parent was seen
+	private final Set<Path> forgottenDirectories = new HashSet<>();
+	
+	// Events seen but not reported yet. A file created and then written is only new, a file written several
+	// times is modified once, and a file deleted is only reported as deleted.
+	// At most maxPendingFiles of them are kept: once full, the directory of any other change is compared with
+	// the known files later on, when retrieving has made room, as after an overflow.
+	private final Set<Path> createdFiles = new LinkedHashSet<>();
+	private final Set<Path> modifiedFiles = new LinkedHashSet<>();
+	private final Set<Path> deletedFiles = new LinkedHashSet<>();
+	
+	// Directories with changes not in the sets above: overflowed, new, deleted or left out while they were full
+	private final Set<Path> directoriesToReconcile = new LinkedHashSet<>();
+	
+	// Size and modification time of every file reported so far, text or not, to find what an overflow made us miss.
+	// Kept by directory, so comparing a directory only looks at its own files.
+	private final Map<Path, Map<Path, FileState>> knownFiles = new HashMap<>();
+	
+	private long reconciledEntries;   //known files and directory entries compared so far
+	
+	private final FileCompletionPolicy completionPolicy;
+	
+	private final int maxPendingFiles;
+	
+	public static final int DEFAULT_MAX_PENDING_FILES = 4096;
+	
+	private static final int SNIFF_SIZE = 512;
+	
+	private static final long PENDING_FILES_RECHECK_MILLIS = 250;
+	
+	private static final Set<String> TEXT_EXTENSIONS = Set.of("txt", "text", "log", "csv", "md");
+	
+	private static final Set<String> BINARY_EXTENSIONS = Set.of("jpg", "jpeg", "png", "gif", "bmp", "pdf",
+			"zip", "gz", "jar", "class", "exe", "so", "dll", "mp3", "mp4");
+	
+	public FileMonitorImpl() {
+		this(FileCompletionPolicy.immediate());
+	}
+	
+	public FileMonitorImpl(FileCompletionPolicy completionPolicy) {
+		this(completionPolicy, DEFAULT_MAX_PENDING_FILES);
+	}
+	
+	public FileMonitorImpl(FileCompletionPolicy completionPolicy, int maxPendingFiles) {
+		if (maxPendingFiles <= 0) {
+			throw new IllegalArgumentException("Maximum of pending files must be positive: " + maxPendingFiles);
+		}
+		this.completionPolicy = completionPolicy;
+		this.maxPendingFiles = maxPendingFiles;
+	}
+	
+	public Boolean configure(List<Path> directories) {
+		this.rootDirectories = new ArrayList<>(directories);
 		
-		logger.debug("Coinfiguring directory: " + directory);
+		logger.debug("Coinfiguring directories: " + directories);
 		
 		try {
 			directoryWatcher = FileSystems.getDefault().newWatchService();
@@ -42,108 +114,483 @@ public class FileMonitorImpl implements FileMonitor {
             return false;
         }
 		
-		try {
-			directory.register(directoryWatcher, ENTRY_CREATE);
-		} catch (IOException ioEx) {
-            logger.error("Error adding new path to watcher: " + ioEx.getMessage());
-            return false;
-        }
+		//the roots are walked in parallel, registering every directory before any file is listed
+		List<DirectoryWalk> walks = new ArrayList<>();
+		for (Path directory: rootDirectories) {
+			walks.add(new DirectoryWalk(directory, null));
+		}
+		ForkJoinPool.commonPool().submit(() -> ForkJoinTask.invokeAll(walks)).join();
 		
+		for (Path directory: rootDirectories) {
+			if (!watchedDirectories.contains(directory)) {
+				logger.error("Error adding new path to watcher: " + directory);
+				return false;
+			}
+		}
+		
+		logger.debug("Watching " + watchedDirectories.size() + " directories");
 		return true;
 	}
 	
 	public List<Path> retrieveCurrentTextFiles() {
 		
-		List<Path> fileList = new ArrayList<Path>();
-
 		logger.trace("Checking current directory status...");
 		
-		try {
-			DirectoryStream<Path> initialFileStream = Files.newDirectoryStream(directory);
-			StreamSupport.stream(initialFileStream.spliterator(), false)
-		    	.sorted(Comparator.comparing(Path::toString))
-		    	.forEach(fileName -> { 
-		    		if (checkFile(fileName)) {
-		    			fileList.add(fileName);
-		    		}
-		    	});
-		} catch (IOException ioEx) {
-        	logger.error("Error reading file: " + ioEx.getMessage());
-        }
+		List<Path> currentFiles = watchedDirectories.parallelStream()
+				.flatMap(directory -> listRegularFiles(directory).stream())
+				.sorted(Comparator.comparing(Path::toString))
+				.collect(Collectors.toList());
+		
+		//files still being written are left for retrieveNewTextFiles
+		List<FileCheck> fileChecks = currentFiles.parallelStream()
+				.map(this::checkFile)
+				.collect(Collectors.toList());
+		
+		List<Path> fileList = new ArrayList<Path>();
+		for (FileCheck fileCheck: fileChecks) {
+			if (fileCheck.state == null) {
+				if (hasRoomFor(fileCheck.fileName)) {
+					createdFiles.add(fileCheck.fileName);
+				} else {
+					directoriesToReconcile.add(fileCheck.fileName.getParent());
+				}
+				continue;
+			}
+			putKnownFile(fileCheck.fileName, fileCheck.state);
+			if (fileCheck.isText) {
+				fileList.add(fileCheck.fileName);
+			}
+		}
 		
 		return fileList;
 	}
 
-	public List<Path> retrieveNewTextFiles() {
+	public List<Path> retrieveNewTextFiles(int maxFiles) {
+		pollEvents();
+		return retrieveTextFiles(createdFiles, maxFiles);
+	}
+	
+	public List<Path> retrieveModifiedTextFiles(int maxFiles) {
+		pollEvents();
+		return retrieveTextFiles(modifiedFiles, maxFiles);
+	}
+	
+	public List<Path> retrieveDeletedFiles(int maxFiles) {
+		pollEvents();
 		
 		List<Path> fileList = new ArrayList<Path>();
+		for (Iterator<Path> pendingIterator = deletedFiles.iterator(); pendingIterator.hasNext() && fileList.size() < maxFiles;) {
+			Path fileName = pendingIterator.next();
+			pendingIterator.remove();
+			removeKnownFile(fileName);
+			fileList.add(fileName);
+		}
+		return fileList;
+	}
+	
+	private List<Path> retrieveTextFiles(Set<Path> pendingFiles, int maxFiles) {
 		
-		WatchKey key;
-    	key = directoryWatcher.poll();
+		List<Path> fileList = new ArrayList<Path>();
+		for (Iterator<Path> pendingIterator = pendingFiles.iterator(); pendingIterator.hasNext() && fileList.size() < maxFiles;) {
+			Path fileName = pendingIterator.next();
+			FileCheck fileCheck = checkFile(fileName);
+			if (fileCheck.state == null) {
+				//a file never reported and already gone is dropped, a known one waits for its deletion
+				if (!isKnownFile(fileName) && Files.notExists(fileName, LinkOption.NOFOLLOW_LINKS)) {
+					pendingIterator.remove();
+					completionPolicy.forget(fileName);
+				}
+				continue;   //not complete yet, checked again next time
+			}
+			pendingIterator.remove();
+			putKnownFile(fileName, fileCheck.state);
+			if (fileCheck.isText) {
+				fileList.add(fileName);
+			}
+		}
+		
+		return fileList;
+	}
+	
+	// Blocks until an event arrives. While there are files waiting to be complete, it only waits a little,
+	// so they are checked again even if nothing else happens.
+	public void awaitChanges() throws InterruptedException {
+		WatchKey key = (createdFiles.isEmpty() && modifiedFiles.isEmpty() && directoriesToReconcile.isEmpty()) ? directoryWatcher.take()
+				: directoryWatcher.poll(PENDING_FILES_RECHECK_MILLIS, TimeUnit.MILLISECONDS);
+		processEvents(key);
+	}
+	
+	// Also compares the directories left to reconcile, as far as there is room for their changes
+	private void pollEvents() {
+		processEvents(directoryWatcher.poll());
+		
+		while (!directoriesToReconcile.isEmpty()) {
+			Path directory = directoriesToReconcile.iterator().next();
+			if (!reconcile(directory)) {
+				break;
+			}
+			directoriesToReconcile.remove(directory);
+		}
+	}
+	
+	// Processes the events of the key and of every other key already signalled. An overflow may be signalled
+	// to every key at once, so the overflowed directories are gathered and then compared in a single pass.
+	private void processEvents(WatchKey key) {
         
         if (key == null) {
         	logger.trace("No new files found");
-        	return fileList;
+        	return;
         }
         
-        logger.trace("Checking directory...");
-
-        for (WatchEvent<?> event : key.pollEvents()) {
-            WatchEvent.Kind<?> kind = event.kind();
-
-            if (kind == OVERFLOW) {
-                continue;
-            }
-
-            @SuppressWarnings("unchecked")
-            WatchEvent<Path> ev = (WatchEvent<Path>) event;
-            
-            Path parentDir = (Path)key.watchable();
-            Path fileName = parentDir.resolve(ev.context());
-            
-            if (!checkFile(fileName)) {
-            	continue;
-            }
-            
-    		fileList.add(fileName);
+        int overflowedDirectories = 0;
+        for (; key != null; key = directoryWatcher.poll()) {
+	        logger.trace("Checking directory...");
+	        
+	        Path parentDir = (Path)key.watchable();
+	
+	        for (WatchEvent<?> event : key.pollEvents()) {
+	            WatchEvent.Kind<?> kind = event.kind();
+	
+	            if (kind == OVERFLOW) {
+	            	if (directoriesToReconcile.add(parentDir)) {
+	            		overflowedDirectories++;
+	            	}
+	                continue;
+	            }
+	
+	            @SuppressWarnings("unchecked")
+	            WatchEvent<Path> ev = (WatchEvent<Path>) event;
+	            
+	            Path fileName = parentDir.resolve(ev.context());
+	            
+	            if (kind == ENTRY_CREATE) {
+	            	if (Files.isDirectory(fileName, LinkOption.NOFOLLOW_LINKS)) {
+	            		watchNewDirectory(fileName);
+	            		continue;
+	            	}
+	            	if (!hasRoomFor(fileName)) {
+	            		directoriesToReconcile.add(parentDir);
+	            		continue;
+	            	}
+	            	deletedFiles.remove(fileName);
+	            	modifiedFiles.remove(fileName);
+	            	createdFiles.add(fileName);
+	            } else if (kind == ENTRY_MODIFY) {
+	            	if (!createdFiles.contains(fileName) && !watchedDirectories.contains(fileName)) {
+	            		if (!hasRoomFor(fileName)) {
+	            			directoriesToReconcile.add(parentDir);
+	            			continue;
+	            		}
+	            		modifiedFiles.add(fileName);
+	            	}
+	            } else if (kind == ENTRY_DELETE) {
+	            	if (watchedDirectories.contains(fileName) || forgottenDirectories.remove(fileName)) {
+	            		forgetDirectory(fileName);
+	            		continue;
+	            	}
+	            	completionPolicy.forget(fileName);
+	            	if (!hasRoomFor(fileName)) {
+	            		directoriesToReconcile.add(parentDir);
+	            		continue;
+	            	}
+	            	createdFiles.remove(fileName);
+	            	modifiedFiles.remove(fileName);
+	            	deletedFiles.add(fileName);
+	            }
+	        }
+	        
+	        //Reset the key -- if not valid, the directory is no longer accessible
+	        if (!key.reset()) {
+	        	if (rootDirectories.contains(parentDir)) {
+	        		logger.error("Error: path is no longer accessible.");
+	        	}
+	        	forgetDirectory(parentDir);
+	        	forgottenDirectories.add(parentDir);
+	        }
         }
         
-        //Reset the key -- if not valid, the directory is no longer accessible
-        if (!key.reset()) {
-        	logger.error("Error: path is no longer accessible.");
+        if (overflowedDirectories > 0) {
+        	logger.warn("Too many changes at once in " + overflowedDirectories + " directories, comparing them with the known files");
         }
+	}
         
-        return fileList;
+	// A change can be kept if its file is already pending, or if there is room for one more
+	private boolean hasRoomFor(Path fileName) {
+		if (createdFiles.contains(fileName) || modifiedFiles.contains(fileName) || deletedFiles.contains(fileName)) {
+			return true;
+		}
+		return createdFiles.size() + modifiedFiles.size() + deletedFiles.size() < maxPendingFiles;
 	}
 	
-	private Boolean isTextFile(Path fileName) {
-		try {
-            Path child = directory.resolve(fileName);
-            
-            //First we lock the file access to avoid early processing of the file
-            File lockFile = new File(child.toUri());
-            RandomAccessFile raFile = new RandomAccessFile(lockFile, "rw");
-            FileChannel channel = raFile.getChannel();
-			channel.lock();
-			raFile.close();
-            
-            if (!Files.probeContentType(child).equals("text/plain")) {
-                return false;
-            }
-        } catch (IOException ioEx) {
-            logger.error("Error checking new file: " + ioEx.getMessage());
-            return false;
-        }
+	// A directory created after configuring is walked like the roots. Its files may have been written before
+	// its watch was registered, so every directory walked is reconciled, finding all of them as new.
+	private void watchNewDirectory(Path directory) {
+		Queue<Path> walkedDirectories = new ConcurrentLinkedQueue<>();
+		ForkJoinPool.commonPool().invoke(new DirectoryWalk(directory, walkedDirectories));
+		
+		List<Path> newDirectories = new ArrayList<>(walkedDirectories);
+		newDirectories.sort(Comparator.comparing(Path::toString));
+		directoriesToReconcile.addAll(newDirectories);
+	}
+	
+	// Every known file under a directory that was deleted, or can't be watched any more, is deleted.
+	// They are found when it is reconciled, so a large tree doesn't fill the pending changes at once.
+	private void forgetDirectory(Path directory) {
+		watchedDirectories.removeIf(watchedDirectory -> watchedDirectory.startsWith(directory));
+		
+		createdFiles.removeIf(fileName -> fileName.startsWith(directory));
+		modifiedFiles.removeIf(fileName -> fileName.startsWith(directory));
+		completionPolicy.forget(directory);
+		directoriesToReconcile.add(directory);
+	}
+	
+	// Some events of the directory may be missing, so it is compared with the known files. Only their attributes
+	// are read, and files already reported and unchanged are left alone. Returns false if it stopped because
+	// there was no room for more changes, to go on once some are retrieved.
+	private boolean reconcile(Path directory) {
+		if (!watchedDirectories.contains(directory)) {
+			return deleteKnownFiles(directory);
+		}
 		
+		//known files missing from the directory. New ones deleted before being reported are dropped when retrieved.
+		Map<Path, FileState> directoryFiles = knownFiles.getOrDefault(directory, Map.of());
+		for (Path fileName: directoryFiles.keySet()) {
+			reconciledEntries++;
+			if (Files.notExists(fileName, LinkOption.NOFOLLOW_LINKS)) {
+				if (!hasRoomFor(fileName)) {
+					return false;
+				}
+				completionPolicy.forget(fileName);
+				createdFiles.remove(fileName);
+				modifiedFiles.remove(fileName);
+				deletedFiles.add(fileName);
+			}
+		}
+		
+		try (DirectoryStream<Path> fileStream = Files.newDirectoryStream(directory)) {
+			for (Path fileName: fileStream) {
+				reconciledEntries++;
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(fileName, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				} catch (IOException ioEx) {
+					continue;   //deleted meanwhile
+				}
+				if (attributes.isDirectory() && !watchedDirectories.contains(fileName)) {
+					watchNewDirectory(fileName);
+				}
+				if (!attributes.isRegularFile()) {
+					continue;
+				}
+				
+				FileState knownState = directoryFiles.get(fileName);
+				if (knownState == null) {
+					if (!createdFiles.contains(fileName) && !modifiedFiles.contains(fileName)) {
+						if (!hasRoomFor(fileName)) {
+							return false;
+						}
+						deletedFiles.remove(fileName);
+						createdFiles.add(fileName);
+					}
+				} else if (!knownState.matches(attributes) && !createdFiles.contains(fileName) && !modifiedFiles.contains(fileName)) {
+					if (!hasRoomFor(fileName)) {
+						return false;
+					}
+					deletedFiles.remove(fileName);
+					modifiedFiles.add(fileName);
+				}
+			}
+		} catch (NoSuchFileException nsfEx) {
+			return true;   //its deletion is on its way from the parent directory
+		} catch (IOException ioEx) {
+			logger.error("Error reading directory: " + ioEx.getMessage());
+		}
 		return true;
 	}
 	
-	private Boolean checkFile(Path fileName) {
-		if (!isTextFile(fileName)) {
+	// Only the directories under the deleted one are visited, not the known files elsewhere
+	private boolean deleteKnownFiles(Path directory) {
+		completionPolicy.forget(directory);
+		for (Map.Entry<Path, Map<Path, FileState>> directoryFiles: knownFiles.entrySet()) {
+			if (!directoryFiles.getKey().startsWith(directory)) {
+				continue;
+			}
+			for (Path fileName: directoryFiles.getValue().keySet()) {
+				reconciledEntries++;
+				if (!deletedFiles.contains(fileName)) {
+					if (!hasRoomFor(fileName)) {
+						return false;
+					}
+					deletedFiles.add(fileName);
+				}
+			}
+		}
+		return true;
+	}
+	
+	private void putKnownFile(Path fileName, FileState state) {
+		knownFiles.computeIfAbsent(fileName.getParent(), directory -> new HashMap<>()).put(fileName, state);
+	}
+	
+	private boolean isKnownFile(Path fileName) {
+		Map<Path, FileState> directoryFiles = knownFiles.get(fileName.getParent());
+		return directoryFiles != null && directoryFiles.containsKey(fileName);
+	}
+	
+	private void removeKnownFile(Path fileName) {
+		Map<Path, FileState> directoryFiles = knownFiles.get(fileName.getParent());
+		if (directoryFiles != null) {
+			directoryFiles.remove(fileName);
+			if (directoryFiles.isEmpty()) {
+				knownFiles.remove(fileName.getParent());
+			}
+		}
+	}
+	
+	// Known files and directory entries compared while reconciling so far, which grows with the directories
+	// reconciled and their own files, not with every file known
+	public long getReconciledEntries() {
+		return reconciledEntries;
+	}
+	
+	private static List<Path> listRegularFiles(Path directory) {
+		List<Path> fileList = new ArrayList<>();
+		try (DirectoryStream<Path> fileStream = Files.newDirectoryStream(directory)) {
+			for (Path fileName: fileStream) {
+				if (Files.isRegularFile(fileName, LinkOption.NOFOLLOW_LINKS)) {
+					fileList.add(fileName);
+				}
+			}
+		} catch (IOException ioEx) {
+        	logger.error("Error reading directory: " + ioEx.getMessage());
+        }
+		return fileList;
+	}
+	
+	// Registers a directory and forks a walk for each of its subdirectories. The directories registered are
+	// collected when a queue is given.
+	private final class DirectoryWalk extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final Path directory;
+		private final Queue<Path> walkedDirectories;
+		
+		private DirectoryWalk(Path directory, Queue<Path> walkedDirectories) {
+			this.directory = directory;
+			this.walkedDirectories = walkedDirectories;
+		}
+		
+		protected void compute() {
+			if (!watchedDirectories.add(directory)) {
+				return;
+			}
+			try {
+				directory.register(directoryWatcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+			} catch (IOException ioEx) {
+				logger.error("Error adding new path to watcher: " + ioEx.getMessage());
+				watchedDirectories.remove(directory);
+				return;
+			}
+			if (walkedDirectories != null) {
+				walkedDirectories.add(directory);
+			}
+			
+			List<DirectoryWalk> subdirectoryWalks = new ArrayList<>();
+			try (DirectoryStream<Path> fileStream = Files.newDirectoryStream(directory)) {
+				for (Path fileName: fileStream) {
+					if (Files.isDirectory(fileName, LinkOption.NOFOLLOW_LINKS)) {
+						subdirectoryWalks.add(new DirectoryWalk(fileName, walkedDirectories));
+					}
+				}
+			} catch (IOException ioEx) {
+				logger.error("Error reading directory: " + ioEx.getMessage());
+			}
+			invokeAll(subdirectoryWalks);
+		}
+	}
+	
+	private static final class FileState {
+		
+		private final long size;
+		private final long lastModified;
+		
+		private FileState(BasicFileAttributes attributes) {
+			this.size = attributes.size();
+			this.lastModified = attributes.lastModifiedTime().toMillis();
+		}
+		
+		private boolean matches(BasicFileAttributes attributes) {
+			return size == attributes.size() && lastModified == attributes.lastModifiedTime().toMillis();
+		}
+	}
+	
+	// Result of checking a file: state is null when the file is not complete yet or can't be read
+	private static final class FileCheck {
+		
+		private final Path fileName;
+		private final FileState state;
+		private final boolean isText;
+		
+		private FileCheck(Path fileName, FileState state, boolean isText) {
+			this.fileName = fileName;
+			this.state = state;
+			this.isText = isText;
+		}
+	}
+	
+	private FileCheck checkFile(Path fileName) {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(fileName, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (IOException ioEx) {
+			logger.error("Error checking new file: " + ioEx.getMessage());
+			return new FileCheck(fileName, null, false);
+		}
+		
+		if (!completionPolicy.isComplete(fileName, attributes)) {
+			logger.trace("File " + fileName + " is not complete yet");
+			return new FileCheck(fileName, null, false);
+		}
+		
+		boolean isText = attributes.isRegularFile() && isTextFile(fileName);
+		if (!isText) {
         	logger.warn("New file " + fileName + " is not a plain text file.");
+		}
+		return new FileCheck(fileName, new FileState(attributes), isText);
+	}
+	
+	// Decided by the extension when it is a usual one, or else by the first bytes: text has no NUL bytes
+	// and few control characters, while UTF-8 and other 8-bit encodings are accepted
+	private static boolean isTextFile(Path fileName) {
+		String name = fileName.getFileName().toString();
+		int extensionStart = name.lastIndexOf('.');
+		String extension = (extensionStart < 0) ? "" : name.substring(extensionStart + 1).toLowerCase();
+		if (TEXT_EXTENSIONS.contains(extension)) {
+			return true;
+		}
+		if (BINARY_EXTENSIONS.contains(extension)) {
+			return false;
+		}
+		
+		ByteBuffer sniffBuffer = ByteBuffer.allocate(SNIFF_SIZE);
+		try (FileChannel channel = FileChannel.open(fileName, StandardOpenOption.READ)) {
+			channel.read(sniffBuffer);
+		} catch (IOException ioEx) {
+            logger.error("Error checking new file: " + ioEx.getMessage());
             return false;
         }
-       
-        return true;
+		
+		int controlBytes = 0;
+		for (int position = 0; position < sniffBuffer.position(); position++) {
+			byte value = sniffBuffer.get(position);
+			if (value == 0) {
+				return false;
+			}
+			if (value > 0 && value < ' ' && value != '\t' && value != '\n' && value != '\r' && value != '\f') {
+				controlBytes++;
+			}
+		}
+		return controlBytes * 10 <= sniffBuffer.position();
 	}
 }
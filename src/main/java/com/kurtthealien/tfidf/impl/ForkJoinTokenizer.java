@@ -0,0 +1,126 @@
+package com.kurtthealien.tfidf.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Splits files over the parallel threshold into chunks that end right after a space or line feed, counts them
+// in parallel on a ForkJoinPool and adds up their counts. No token crosses a chunk boundary, so the counts are
+// the same as counting the whole file with ByteTokenizer, which is still used for files under the threshold.
+// Not thread-safe, as the ByteTokenizer for small files is reused.
+public class ForkJoinTokenizer implements Tokenizer {
+
+	private static final long DEFAULT_PARALLEL_THRESHOLD = 64 * 1024 * 1024;
+	
+	private static final long DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+	
+	private static final int BOUNDARY_BUFFER_SIZE = 4 * 1024;
+	
+	private final ForkJoinPool pool;
+	
+	private final long parallelThreshold;
+	
+	private final long chunkSize;
+	
+	private final ByteTokenizer sequentialTokenizer = new ByteTokenizer();
+	
+	public ForkJoinTokenizer() {
+		this(ForkJoinPool.commonPool(), DEFAULT_PARALLEL_THRESHOLD, DEFAULT_CHUNK_SIZE);
+	}
+	
+	public ForkJoinTokenizer(ForkJoinPool pool, long parallelThreshold, long chunkSize) {
+		this.pool = pool;
+		this.parallelThreshold = parallelThreshold;
+		this.chunkSize = Math.max(chunkSize, 1);
+	}
+	
+	public void countTerms(Path fileName, KeywordMatcher matcher, long[] termCounts) throws IOException {
+		try (FileChannel channel = FileChannel.open(fileName, StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			
+			if (fileSize < parallelThreshold) {
+				sequentialTokenizer.countTerms(channel, 0, fileSize, matcher, termCounts);
+				return;
+			}
+			
+			long[] chunkCounts;
+			try {
+				chunkCounts = pool.invoke(new ChunkCount(channel, 0, fileSize, matcher));
+			} catch (UncheckedIOException ioEx) {
+				throw ioEx.getCause();
+			}
+			
+			for (int keywordId = 0; keywordId < termCounts.length; keywordId++) {
+				termCounts[keywordId] += chunkCounts[keywordId];
+			}
+		}
+	}
+	
+	// First position after the next space or line feed from the position on, or end if there is none
+	private static long findBoundary(FileChannel channel, long position, long end) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(BOUNDARY_BUFFER_SIZE);
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(BOUNDARY_BUFFER_SIZE, end - position));
+			int readBytes = channel.read(buffer, position);
+			if (readBytes < 0) {
+				break;
+			}
+			for (int i = 0; i < readBytes; i++) {
+				byte currentByte = buffer.get(i);
+				if (currentByte == ' ' || currentByte == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += readBytes;
+		}
+		return end;
+	}
+	
+	// Counts a range starting right after a separator, or at the start of the file, halving it until it fits a chunk
+	private final class ChunkCount extends RecursiveTask<long[]> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+		private final KeywordMatcher matcher;
+		
+		private ChunkCount(FileChannel channel, long start, long end, KeywordMatcher matcher) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.matcher = matcher;
+		}
+		
+		protected long[] compute() {
+			try {
+				long[] termCounts = new long[matcher.size()];
+				
+				long middle = (end - start > chunkSize) ? findBoundary(channel, start + (end - start) / 2, end) : end;
+				if (middle >= end) {
+					new ByteTokenizer().countTerms(channel, start, end, matcher, termCounts);
+					return termCounts;
+				}
+				
+				ChunkCount firstHalf = new ChunkCount(channel, start, middle, matcher);
+				firstHalf.fork();
+				long[] secondHalfCounts = new ChunkCount(channel, middle, end, matcher).compute();
+				long[] firstHalfCounts = firstHalf.join();
+				
+				for (int keywordId = 0; keywordId < termCounts.length; keywordId++) {
+					termCounts[keywordId] = firstHalfCounts[keywordId] + secondHalfCounts[keywordId];
+				}
+				return termCounts;
+			} catch (IOException ioEx) {
+				throw new UncheckedIOException(ioEx);
+			}
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package com.kurtthealien.tfidf.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Binary image of a TermFrequencyStore: a header, the term list, one record per file (name, size, modification
+// time and its non-zero counts as variable length (term id delta, count) pairs) and a CRC32 of all of it.
+// Terms and names are written as their UTF-8 bytes after a variable length byte count, so any path fits.
+// Document frequencies are not stored, as they are rebuilt from the counts of the files that are kept.
+final class IndexSnapshot {
+
+	private static final int MAGIC = 0x54464944;   //"TFID"
+	
+	private static final int FORMAT_VERSION = 2;
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;   //in bytes, far beyond any path
+	
+	// Decides whether a file read from the snapshot is still valid and can be kept
+	interface FileValidator {
+		boolean isValid(Path fileName, long fileSize, long lastModified);
+	}
+	
+	private IndexSnapshot() {
+	}
+	
+	// Written to a temporary file, forced to disk and then moved into place, and the move is forced too, so
+	// a crash or power loss leaves either the previous snapshot or the new one, never a partial one
+	static void write(Path snapshotFile, List<String> termList, TermFrequencyStore store) throws IOException {
+		Path absoluteFile = snapshotFile.toAbsolutePath();
+		Path temporaryFile = absoluteFile.resolveSibling(absoluteFile.getFileName() + ".tmp");
+		
+		CRC32 checksum = new CRC32();
+		try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+				DataOutputStream output = new DataOutputStream(new CheckedOutputStream(
+						new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE), checksum))) {
+			output.writeInt(MAGIC);
+			output.writeInt(FORMAT_VERSION);
+			
+			output.writeInt(termList.size());
+			for (String term: termList) {
+				writeString(output, term);
+			}
+			
+			output.writeInt(store.size());
+			for (int fileId = 0; fileId < store.getFileIdLimit(); fileId++) {
+				Path fileName = store.getFileName(fileId);
+				if (fileName == null) {
+					continue;
+				}
+				writeString(output, fileName.toString());
+				output.writeLong(store.getFileSize(fileId));
+				output.writeLong(store.getLastModified(fileId));
+				
+				int rowStart = store.getRowStart(fileId);
+				int rowLength = store.getRowLength(fileId);
+				writeVarLong(output, rowLength);
+				int previousTermId = 0;
+				for (int position = rowStart; position < rowStart + rowLength; position++) {
+					writeVarLong(output, store.getTermId(position) - previousTermId);
+					writeVarLong(output, store.getCount(position));
+					previousTermId = store.getTermId(position);
+				}
+			}
+			
+			output.writeLong(checksum.getValue());
+			output.flush();
+			channel.force(true);
+		}
+		
+		try {
+			Files.move(temporaryFile, absoluteFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException amnsEx) {
+			Files.move(temporaryFile, absoluteFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+		syncDirectory(absoluteFile.getParent());
+	}
+	
+	// Makes a rename in the directory durable. Some platforms, such as Windows, can't open a directory
+	// and sync their metadata with the move itself, so failing to open it is not an error.
+	private static void syncDirectory(Path directory) throws IOException {
+		FileChannel directoryChannel;
+		try {
+			directoryChannel = FileChannel.open(directory, StandardOpenOption.READ);
+		} catch (IOException ioEx) {
+			return;
+		}
+		try (directoryChannel) {
+			directoryChannel.force(true);
+		}
+	}
+	
+	// Returns a store with the valid files of the snapshot, or null if it was taken with a different term list.
+	// A damaged or truncated snapshot fails with an IOException.
+	static TermFrequencyStore read(Path snapshotFile, List<String> termList, FileValidator validator) throws IOException {
+		CRC32 checksum = new CRC32();
+		try (DataInputStream input = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(Files.newInputStream(snapshotFile), BUFFER_SIZE), checksum))) {
+			if (input.readInt() != MAGIC) {
+				throw new IOException("Not a snapshot file: " + snapshotFile);
+			}
+			int formatVersion = input.readInt();
+			if (formatVersion != FORMAT_VERSION) {
+				throw new IOException("Unsupported snapshot version " + formatVersion + " in " + snapshotFile);
+			}
+			
+			int termNumber = input.readInt();
+			boolean sameTerms = (termNumber == termList.size());
+			for (int termId = 0; termId < termNumber; termId++) {
+				String term = readString(input);
+				sameTerms = sameTerms && term.equals(termList.get(termId));
+			}
+			if (!sameTerms) {
+				return null;
+			}
+			
+			TermFrequencyStore store = new TermFrequencyStore(termNumber);
+			long[] termCounts = new long[termNumber];
+			int fileNumber = input.readInt();
+			for (int fileOrder = 0; fileOrder < fileNumber; fileOrder++) {
+				Path fileName = Paths.get(readString(input));
+				long fileSize = input.readLong();
+				long lastModified = input.readLong();
+				
+				long rowLength = readVarLong(input);
+				int termId = 0;
+				for (long position = 0; position < rowLength; position++) {
+					termId += (int) readVarLong(input);
+					if (termId < 0 || termId >= termNumber) {
+						throw new IOException("Corrupted snapshot file: " + snapshotFile);
+					}
+					termCounts[termId] = readVarLong(input);
+				}
+				
+				if (validator.isValid(fileName, fileSize, lastModified)) {
+					store.put(fileName, termCounts, fileSize, lastModified);
+				}
+				Arrays.fill(termCounts, 0);
+			}
+			
+			long expectedChecksum = checksum.getValue();
+			if (input.readLong() != expectedChecksum || input.read() != -1) {
+				throw new IOException("Corrupted snapshot file: " + snapshotFile);
+			}
+			
+			return store;
+		}
+	}
+	
+	static void writeString(DataOutputStream output, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(output, bytes.length);
+		output.write(bytes);
+	}
+	
+	static String readString(DataInputStream input) throws IOException {
+		long length = readVarLong(input);
+		if (length < 0 || length > MAX_STRING_LENGTH) {
+			throw new IOException("Malformed string in snapshot file");
+		}
+		byte[] bytes = new byte[(int) length];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	static void writeVarLong(DataOutputStream output, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			output.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		output.writeByte((int) value);
+	}
+	
+	static long readVarLong(DataInputStream input) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int nextByte = input.readUnsignedByte();
+			value |= (long) (nextByte & 0x7F) << shift;
+			if ((nextByte & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed number in snapshot file");
+	}
+}
@@ -0,0 +1,270 @@
+package com.kurtthealien.tfidf.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Append-only log of the files registered or removed since the last snapshot. After a header with the term list, every
+// record is framed as (payload length, CRC32 of the payload, payload) and written to the file as soon as the
+// file is registered, so a killed process loses at most the file being registered. Records are forced to disk
+// in groups, trading the last group on a power loss for not paying an fsync per file. Terms and file names are
+// written as in snapshots, so a path of any length can be logged.
+final class IngestionLog implements Closeable {
+
+	private static final int MAGIC = 0x5446494C;   //"TFIL"
+	
+	private static final int FORMAT_VERSION = 2;
+	
+	private static final byte FILE_RECORD = 1;
+	
+	private static final byte REMOVAL_RECORD = 2;
+	
+	private static final int GROUP_COMMIT_RECORDS = 256;
+	
+	private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+	
+	// Receives the files of the log while it is replayed
+	interface RecordHandler {
+		void registerFile(Path fileName, FileCounts fileCounts);
+		
+		void removeFile(Path fileName);
+	}
+	
+	private final FileChannel channel;
+	
+	private long headerLength;
+	
+	private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+	
+	private final DataOutputStream recordOutput = new DataOutputStream(recordBytes);
+	
+	private final CRC32 checksum = new CRC32();
+	
+	private int unsyncedRecords;
+	
+	private IngestionLog(FileChannel channel, long headerLength) {
+		this.channel = channel;
+		this.headerLength = headerLength;
+	}
+	
+	// Replays the records of an existing log and leaves it ready to append new ones. A log written for
+	// a different term list is emptied, and a damaged tail, such as a record cut by a crash, is dropped.
+	static IngestionLog open(Path logFile, List<String> termList, RecordHandler handler) throws IOException {
+		FileChannel channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			byte[] header = createHeader(termList);
+			long validLength = (channel.size() >= header.length && hasHeader(channel, header)) ?
+					replay(channel, header.length, termList.size(), handler) : 0;
+			
+			if (validLength == 0) {
+				channel.truncate(0);
+				channel.write(ByteBuffer.wrap(header), 0);
+				validLength = header.length;
+			} else {
+				channel.truncate(validLength);
+			}
+			channel.force(true);
+			channel.position(validLength);
+			
+			return new IngestionLog(channel, header.length);
+		} catch (IOException ioEx) {
+			channel.close();
+			throw ioEx;
+		}
+	}
+	
+	void append(Path fileName, FileCounts fileCounts) throws IOException {
+		startRecord(FILE_RECORD);
+		IndexSnapshot.writeString(recordOutput, fileName.toString());
+		recordOutput.writeLong(fileCounts.fileSize);
+		recordOutput.writeLong(fileCounts.lastModified);
+		
+		long[] termCounts = fileCounts.termCounts;
+		int rowLength = 0;
+		for (long count: termCounts) {
+			if (count != 0) {
+				rowLength++;
+			}
+		}
+		IndexSnapshot.writeVarLong(recordOutput, rowLength);
+		int previousTermId = 0;
+		for (int termId = 0; termId < termCounts.length; termId++) {
+			if (termCounts[termId] != 0) {
+				IndexSnapshot.writeVarLong(recordOutput, termId - previousTermId);
+				IndexSnapshot.writeVarLong(recordOutput, termCounts[termId]);
+				previousTermId = termId;
+			}
+		}
+		
+		writeRecord();
+	}
+	
+	void appendRemoval(Path fileName) throws IOException {
+		startRecord(REMOVAL_RECORD);
+		IndexSnapshot.writeString(recordOutput, fileName.toString());
+		writeRecord();
+	}
+	
+	private void startRecord(byte recordType) throws IOException {
+		recordBytes.reset();
+		recordOutput.writeInt(0);   //length and checksum, filled in by writeRecord
+		recordOutput.writeInt(0);
+		recordOutput.writeByte(recordType);
+	}
+	
+	private void writeRecord() throws IOException {
+		ByteBuffer record = ByteBuffer.wrap(recordBytes.toByteArray());
+		int payloadLength = record.capacity() - 8;
+		checksum.reset();
+		checksum.update(record.array(), 8, payloadLength);
+		record.putInt(0, payloadLength);
+		record.putInt(4, (int) checksum.getValue());
+		while (record.hasRemaining()) {
+			channel.write(record);
+		}
+		
+		if (++unsyncedRecords >= GROUP_COMMIT_RECORDS) {
+			sync();
+		}
+	}
+	
+	// Forces the records appended since the last call to disk
+	void sync() throws IOException {
+		if (unsyncedRecords > 0) {
+			channel.force(false);
+			unsyncedRecords = 0;
+		}
+	}
+	
+	// Starts the log again for a new term list, with a record for every registered file,
+	// as the records so far don't have the counts of the new terms
+	void rewrite(List<String> termList, TermFrequencyStore store) throws IOException {
+		byte[] header = createHeader(termList);
+		channel.truncate(0);
+		channel.write(ByteBuffer.wrap(header), 0);
+		channel.position(header.length);
+		headerLength = header.length;
+		for (int fileId = 0; fileId < store.getFileIdLimit(); fileId++) {
+			Path fileName = store.getFileName(fileId);
+			if (fileName != null) {
+				append(fileName, new FileCounts(store.getCounts(fileName), store.getFileSize(fileId), store.getLastModified(fileId)));
+			}
+		}
+		channel.force(true);
+		unsyncedRecords = 0;
+	}
+	
+	// Drops every record, once they are all part of a snapshot
+	void reset() throws IOException {
+		channel.truncate(headerLength);
+		channel.position(headerLength);
+		channel.force(true);
+		unsyncedRecords = 0;
+	}
+	
+	public void close() throws IOException {
+		try {
+			sync();
+		} finally {
+			channel.close();
+		}
+	}
+	
+	private static byte[] createHeader(List<String> termList) throws IOException {
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream headerOutput = new DataOutputStream(headerBytes);
+		headerOutput.writeInt(MAGIC);
+		headerOutput.writeInt(FORMAT_VERSION);
+		headerOutput.writeInt(termList.size());
+		for (String term: termList) {
+			IndexSnapshot.writeString(headerOutput, term);
+		}
+		return headerBytes.toByteArray();
+	}
+	
+	private static boolean hasHeader(FileChannel channel, byte[] header) throws IOException {
+		ByteBuffer existingHeader = ByteBuffer.allocate(header.length);
+		while (existingHeader.hasRemaining()) {
+			if (channel.read(existingHeader, existingHeader.position()) < 0) {
+				return false;
+			}
+		}
+		return Arrays.equals(header, existingHeader.array());
+	}
+	
+	// Returns the length of the log up to the last valid record
+	private static long replay(FileChannel channel, int headerLength, int termNumber, RecordHandler handler) throws IOException {
+		channel.position(headerLength);
+		DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+		CRC32 checksum = new CRC32();
+		long validLength = headerLength;
+		
+		for (;;) {
+			byte[] payload;
+			int storedChecksum;
+			try {
+				int payloadLength = input.readInt();
+				if (payloadLength <= 0 || payloadLength > MAX_RECORD_LENGTH) {
+					return validLength;
+				}
+				storedChecksum = input.readInt();
+				payload = new byte[payloadLength];
+				input.readFully(payload);
+			} catch (EOFException eofEx) {
+				return validLength;
+			}
+			
+			checksum.reset();
+			checksum.update(payload);
+			if ((int) checksum.getValue() != storedChecksum) {
+				return validLength;
+			}
+			
+			// A record that passes its checksum but can't be decoded is treated as the end of the log too
+			Path fileName;
+			long[] recordCounts = new long[termNumber];
+			long fileSize;
+			long lastModified;
+			try {
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+				byte recordType = record.readByte();
+				if (recordType == REMOVAL_RECORD) {
+					handler.removeFile(Paths.get(IndexSnapshot.readString(record)));
+					validLength += 8 + payload.length;
+					continue;
+				}
+				if (recordType != FILE_RECORD) {
+					return validLength;
+				}
+				fileName = Paths.get(IndexSnapshot.readString(record));
+				fileSize = record.readLong();
+				lastModified = record.readLong();
+				long rowLength = IndexSnapshot.readVarLong(record);
+				int termId = 0;
+				for (long position = 0; position < rowLength; position++) {
+					termId += (int) IndexSnapshot.readVarLong(record);
+					recordCounts[termId] = IndexSnapshot.readVarLong(record);
+				}
+			} catch (IOException | RuntimeException decodeEx) {
+				return validLength;
+			}
+			
+			handler.registerFile(fileName, new FileCounts(recordCounts, fileSize, lastModified));
+			validLength += 8 + payload.length;
+		}
+	}
+}
@@ -0,0 +1,382 @@
+package com.kurtthealien.tfidf.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.log4j.Logger;
+
+// Changes found by the file monitor waiting to be ingested, at most capacity of them in memory.
+// When it is full, the backpressure policy decides what happens to a new change:
+//   BLOCK  the producer waits for room, so bursts pile up in the watch service, which overflows and is reconciled later
+//   SPILL  changes go to a temporary file, and come back in order as the queue drains. If the file can't be
+//          written, the changes it didn't take are read back from memory, and the producer waits for room as
+//          with BLOCK until the spilled changes are back. If it can't be read back, it is kept aside as .corrupt
+//          and the changes still in it are counted as lost.
+//   SAMPLE a file joins a uniform sample of the burst, replacing a random queued file, so some files are never ingested
+// Removals are never sampled out: with SAMPLE they wait for room as with BLOCK.
+public class IngestionQueue implements Closeable {
+	
+	public enum Backpressure { BLOCK, SPILL, SAMPLE }
+	
+	public static final int DEFAULT_CAPACITY = 4096;
+	
+	private static final int SPILL_BUFFER_BYTES = 8192;
+	
+	private final Backpressure backpressure;
+	
+	private final int capacity;
+	
+	private final Path spillDirectory;   //null for the default temporary directory
+	
+	private final List<Change> queuedChanges;   //oldest first, all of them older than the spilled ones
+	
+	private Path spillFile;   //created when the queue first spills
+	
+	private OutputStream spillOutput;   //null once it failed, until the spill file is drained
+	
+	private final ByteArrayOutputStream spillBuffer = new ByteArrayOutputStream(SPILL_BUFFER_BYTES);
+	
+	private final DataOutputStream spillRecords = new DataOutputStream(spillBuffer);
+	
+	private long bufferedChanges;   //whole records in the spill buffer, not written to the file yet
+	
+	private DataInputStream spillInput;
+	
+	private boolean spillFailed;   //no more changes are spilled until the file is drained
+	
+	private long spilledChanges;   //in the spill file or buffer and not read back yet
+	
+	private long offeredSinceFull;   //changes offered since the queue was last full, for sampling
+	
+	private long enqueuedChanges;
+	
+	private long droppedChanges;
+	
+	private long totalSpilledChanges;
+	
+	private long lostChanges;
+	
+	private boolean closed;
+	
+	private static final Logger logger = Logger.getLogger("TfIdfLog");
+	
+	public IngestionQueue(Backpressure backpressure, int capacity) {
+		this(backpressure, capacity, null);
+	}
+	
+	public IngestionQueue(Backpressure backpressure, int capacity, Path spillDirectory) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Ingestion queue capacity must be positive: " + capacity);
+		}
+		this.backpressure = backpressure;
+		this.capacity = capacity;
+		this.spillDirectory = spillDirectory;
+		queuedChanges = new ArrayList<>(Math.min(capacity, DEFAULT_CAPACITY));
+	}
+	
+	// Parses block, spill or sample, optionally followed by :<capacity>
+	public static IngestionQueue parse(String description) {
+		String[] parts = description.split(":", 2);
+		Backpressure backpressure;
+		try {
+			backpressure = Backpressure.valueOf(parts[0].toUpperCase());
+		} catch (IllegalArgumentException iaEx) {
+			throw new IllegalArgumentException("Unknown backpressure policy: " + description);
+		}
+		int capacity = (parts.length > 1) ? Integer.parseInt(parts[1]) : DEFAULT_CAPACITY;
+		return new IngestionQueue(backpressure, capacity);
+	}
+	
+	// Returns false if the change was sampled out
+	public synchronized boolean put(Path fileName, boolean removal) throws InterruptedException {
+		Change change = new Change(fileName, removal, System.nanoTime());
+		
+		if (queuedChanges.size() < capacity && spilledChanges == 0) {
+			offeredSinceFull = 0;
+			spillFailed = false;
+			return enqueue(change);
+		}
+		offeredSinceFull++;
+		
+		if (backpressure == Backpressure.SPILL && !spillFailed) {
+			try {
+				spill(change);
+				return true;
+			} catch (IOException ioEx) {
+				logger.error("Error spilling changes, waiting for room instead: " + ioEx.getMessage());
+				if (spilledChanges == 0) {
+					discardSpillFile();   //it couldn't be created or opened
+				}
+				spillFailed = true;
+			}
+		}
+		
+		if (backpressure == Backpressure.SAMPLE && !removal) {
+			//reservoir sampling: every file of the burst is kept with the same probability
+			if (ThreadLocalRandom.current().nextLong(capacity + offeredSinceFull) >= capacity) {
+				droppedChanges++;
+				return false;
+			}
+			int evicted = ThreadLocalRandom.current().nextInt(queuedChanges.size());
+			if (queuedChanges.get(evicted).removal) {
+				droppedChanges++;
+				return false;
+			}
+			queuedChanges.remove(evicted);
+			droppedChanges++;
+			return enqueue(change);
+		}
+		
+		//after the spilled changes, which are older
+		while ((queuedChanges.size() >= capacity || spilledChanges > 0) && !closed) {
+			wait();
+		}
+		return enqueue(change);
+	}
+	
+	// Waits up to timeoutMillis for changes, and returns up to maxChanges of them, oldest first
+	public synchronized List<Change> take(int maxChanges, long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+		while (queuedChanges.isEmpty() && spilledChanges == 0 && !closed) {
+			long remainingMillis = (deadline - System.nanoTime()) / 1_000_000;
+			if (remainingMillis <= 0) {
+				return new ArrayList<>();
+			}
+			wait(remainingMillis);
+		}
+		
+		refill();
+		List<Change> batch = queuedChanges.subList(0, Math.min(maxChanges, queuedChanges.size()));
+		List<Change> changes = new ArrayList<>(batch);
+		batch.clear();
+		refill();
+		
+		notifyAll();
+		return changes;
+	}
+	
+	// Changes waiting, in memory and spilled
+	public synchronized long getDepth() {
+		return queuedChanges.size() + spilledChanges;
+	}
+	
+	// Time the oldest waiting change has been queued, 0 when there is none
+	public synchronized long getLagMillis() {
+		if (queuedChanges.isEmpty()) {
+			return 0;
+		}
+		return (System.nanoTime() - queuedChanges.get(0).enqueuedNanos) / 1_000_000;
+	}
+	
+	public synchronized long getEnqueuedChanges() {
+		return enqueuedChanges;
+	}
+	
+	public synchronized long getSpilledChanges() {
+		return totalSpilledChanges;
+	}
+	
+	public synchronized long getDroppedChanges() {
+		return droppedChanges;
+	}
+	
+	// Spilled changes that couldn't be read back
+	public synchronized long getLostChanges() {
+		return lostChanges;
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	public Backpressure getBackpressure() {
+		return backpressure;
+	}
+	
+	// Wakes up blocked producers and consumers, and deletes the spill file
+	public synchronized void close() throws IOException {
+		closed = true;
+		notifyAll();
+		closeSpillFile();
+	}
+	
+	private boolean enqueue(Change change) {
+		queuedChanges.add(change);
+		enqueuedChanges++;
+		notifyAll();
+		return true;
+	}
+	
+	// Opens the spill file for writing, tests override it to make writes fail
+	protected OutputStream openSpillOutput(Path spillFile) throws IOException {
+		return Files.newOutputStream(spillFile);
+	}
+	
+	private void spill(Change change) throws IOException {
+		if (spillFile == null) {
+			spillFile = (spillDirectory == null) ? Files.createTempFile("tfidf-spill", ".queue")
+					: Files.createTempFile(spillDirectory, "tfidf-spill", ".queue");
+			spillOutput = openSpillOutput(spillFile);
+			logger.debug("Ingestion queue full, spilling changes to " + spillFile);
+		}
+		IndexSnapshot.writeString(spillRecords, change.fileName.toString());
+		spillRecords.writeBoolean(change.removal);
+		spillRecords.writeLong(change.enqueuedNanos);
+		bufferedChanges++;
+		spilledChanges++;
+		totalSpilledChanges++;
+		enqueuedChanges++;
+		if (spillBuffer.size() >= SPILL_BUFFER_BYTES) {
+			writeSpillBuffer();
+		}
+		notifyAll();
+	}
+	
+	// Only whole records reach the file, so the records written before a failure can still be read back
+	private void writeSpillBuffer() {
+		try {
+			spillBuffer.writeTo(spillOutput);
+			spillBuffer.reset();
+			bufferedChanges = 0;
+		} catch (IOException ioEx) {
+			logger.error("Error spilling changes, waiting for room instead: " + ioEx.getMessage());
+			try {
+				spillOutput.close();
+			} catch (IOException closeEx) {
+				logger.debug("Error closing spill file: " + closeEx.getMessage());
+			}
+			spillOutput = null;
+			spillFailed = true;
+		}
+	}
+	
+	// Spilled changes come back as soon as there is room, so they are never overtaken by newer ones
+	private void refill() {
+		if (spilledChanges == 0 || queuedChanges.size() >= capacity) {
+			return;
+		}
+		if (bufferedChanges > 0 && spillOutput != null) {
+			writeSpillBuffer();
+		}
+		try {
+			while (spilledChanges > 0 && queuedChanges.size() < capacity) {
+				if (spilledChanges == bufferedChanges) {
+					//the file failed and has no more whole records, the rest were kept in memory
+					if (spillInput != null) {
+						spillInput.close();
+					}
+					spillInput = new DataInputStream(new ByteArrayInputStream(spillBuffer.toByteArray()));
+					spillBuffer.reset();
+					bufferedChanges = 0;
+				} else if (spillInput == null) {
+					spillInput = new DataInputStream(new BufferedInputStream(Files.newInputStream(spillFile)));
+				}
+				Path fileName = Paths.get(IndexSnapshot.readString(spillInput));
+				boolean removal = spillInput.readBoolean();
+				queuedChanges.add(new Change(fileName, removal, spillInput.readLong()));
+				spilledChanges--;
+			}
+		} catch (IOException | InvalidPathException ex) {
+			logger.error("Error reading spilled changes, " + spilledChanges + " of them are lost: " + ex.getMessage());
+			lostChanges += spilledChanges;
+			spilledChanges = 0;
+			quarantineSpillFile();
+			return;
+		}
+		
+		//the file is started again once drained, so it doesn't grow over successive bursts
+		if (spilledChanges == 0) {
+			discardSpillFile();
+		}
+	}
+	
+	// Keeps an unreadable spill file for inspection, and starts a new one for the next changes spilled
+	private void quarantineSpillFile() {
+		Path corruptFile = spillFile.resolveSibling(spillFile.getFileName() + ".corrupt");
+		try {
+			if (spillOutput != null) {
+				spillOutput.close();
+			}
+			if (spillInput != null) {
+				spillInput.close();
+			}
+			Files.move(spillFile, corruptFile);
+			logger.error("Spill file kept as " + corruptFile);
+		} catch (IOException ioEx) {
+			logger.error("Error keeping spill file " + spillFile + ": " + ioEx.getMessage());
+		}
+		spillInput = null;
+		spillOutput = null;
+		spillFile = null;
+		spillBuffer.reset();
+		bufferedChanges = 0;
+		spillFailed = false;
+	}
+	
+	private void discardSpillFile() {
+		try {
+			closeSpillFile();
+		} catch (IOException ioEx) {
+			logger.error("Error deleting spill file: " + ioEx.getMessage());
+			spillInput = null;
+			spillOutput = null;
+			spillFile = null;
+			spillBuffer.reset();
+			bufferedChanges = 0;
+		}
+	}
+	
+	private void closeSpillFile() throws IOException {
+		if (spillInput != null) {
+			spillInput.close();
+			spillInput = null;
+		}
+		if (spillOutput != null) {
+			spillOutput.close();
+			spillOutput = null;
+		}
+		if (spillFile != null) {
+			Files.deleteIfExists(spillFile);
+			spillFile = null;
+		}
+		spillBuffer.reset();
+		bufferedChanges = 0;
+		spillFailed = false;
+	}
+	
+	public static final class Change {
+		
+		private final Path fileName;
+		
+		private final boolean removal;   //the file was deleted, otherwise it is new or modified
+		
+		private final long enqueuedNanos;
+		
+		Change(Path fileName, boolean removal, long enqueuedNanos) {
+			this.fileName = fileName;
+			this.removal = removal;
+			this.enqueuedNanos = enqueuedNanos;
+		}
+		
+		public Path getFileName() {
+			return fileName;
+		}
+		
+		public boolean isRemoval() {
+			return removal;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.kurtthealien.tfidf.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keyword set compiled into an open addressing hash table over the UTF-8 bytes of every keyword,
+// so matching a token costs the same no matter how many keywords there are.
+public class KeywordMatcher {
+
+	private static final int FNV_OFFSET = 0x811c9dc5;
+	private static final int FNV_PRIME = 0x01000193;
+	
+	private final Map<String, Integer> keywordIds;
+	
+	private final byte[][] keywordBytes;
+	
+	private final int[] slots;   //keyword id + 1 for every used slot, 0 for the empty ones
+	
+	private final int slotMask;
+	
+	private final int maxLength;
+	
+	public KeywordMatcher(List<String> keywords) {
+		keywordIds = new HashMap<>();
+		keywordBytes = new byte[keywords.size()][];
+		
+		int longest = 0;
+		for (int keywordId = 0; keywordId < keywords.size(); keywordId++) {
+			keywordIds.put(keywords.get(keywordId), keywordId);
+			keywordBytes[keywordId] = keywords.get(keywordId).getBytes(StandardCharsets.UTF_8);
+			longest = Math.max(longest, keywordBytes[keywordId].length);
+		}
+		maxLength = longest;
+		
+		// At most half of the slots are used, so probe sequences stay short
+		int tableSize = Integer.highestOneBit(Math.max(keywordBytes.length, 1) * 2) << 1;
+		slots = new int[tableSize];
+		slotMask = tableSize - 1;
+		
+		for (int keywordId = 0; keywordId < keywordBytes.length; keywordId++) {
+			int slot = hash(keywordBytes[keywordId], keywordBytes[keywordId].length) & slotMask;
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & slotMask;
+			}
+			slots[slot] = keywordId + 1;
+		}
+	}
+	
+	public int size() {
+		return keywordBytes.length;
+	}
+	
+	// Longest keyword in bytes, so tokenizers can discard longer tokens without buffering them
+	public int getMaxLength() {
+		return maxLength;
+	}
+	
+	// Returns the keyword id for the token, or -1 if it is not a keyword
+	public int match(String token) {
+		Integer keywordId = keywordIds.get(token);
+		return (keywordId == null) ? -1 : keywordId;
+	}
+	
+	// Same as match(String) for a token given as the first length UTF-8 bytes of the buffer
+	public int match(byte[] token, int length) {
+		if (length > maxLength) {
+			return -1;
+		}
+		
+		int slot = hash(token, length) & slotMask;
+		while (slots[slot] != 0) {
+			int keywordId = slots[slot] - 1;
+			if (Arrays.equals(keywordBytes[keywordId], 0, keywordBytes[keywordId].length, token, 0, length)) {
+				return keywordId;
+			}
+			slot = (slot + 1) & slotMask;
+		}
+		return -1;
+	}
+	
+	// FNV-1a, with a final mix so that the low bits used for the slot depend on every byte
+	static int hash(byte[] bytes, int length) {
+		return hash(bytes, 0, length);
+	}
+	
+	static int hash(byte[] bytes, int start, int length) {
+		int hash = FNV_OFFSET;
+		for (int i = start; i < start + length; i++) {
+			hash = (hash ^ bytes[i]) * FNV_PRIME;
+		}
+		return hash ^ (hash >>> 16);
+	}
+}
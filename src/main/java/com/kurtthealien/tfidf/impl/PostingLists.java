@@ -0,0 +1,133 @@
+package com.kurtthealien.tfidf.impl;
+
+import java.util.Arrays;
+import java.util.function.IntToLongFunction;
+
+// For every term, the ids of the files containing it in increasing order. Kept by TermFrequencyStore along with
+// the rows, where the counts are read, so scoring only visits the files where some keyword appears.
+// Files that no longer contain a term are left in its postings as stale entries, whose count in the rows is 0,
+// and they are dropped once they are as many as the live ones.
+final class PostingLists {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private static final int MIN_STALE_TO_COMPACT = 64;
+
+	private final int[][] fileIds;   //by term id
+
+	private final int[] lengths;
+
+	private final int[] staleEntries;
+
+	private final long[] maxCounts;   //only lowered when compacting, so it is an upper bound of the counts meanwhile
+
+	PostingLists(int termNumber) {
+		fileIds = new int[termNumber][];
+		lengths = new int[termNumber];
+		staleEntries = new int[termNumber];
+		maxCounts = new long[termNumber];
+		for (int termId = 0; termId < termNumber; termId++) {
+			fileIds[termId] = new int[INITIAL_CAPACITY];
+		}
+	}
+
+	int getLength(int termId) {
+		return lengths[termId];
+	}
+
+	int getFileId(int termId, int position) {
+		return fileIds[termId][position];
+	}
+
+	long getMaxCount(int termId) {
+		return maxCounts[termId];
+	}
+
+	// Bytes of the arrays at their current capacity
+	long getArrayBytes() {
+		long bytes = (long) lengths.length * (4 + 4 + 8);
+		for (int[] termFileIds: fileIds) {
+			bytes += 4L * termFileIds.length;
+		}
+		return bytes;
+	}
+
+	// First position from the given one on whose file id is not lower than fileId, or the length if there is none.
+	// Galloping, so skipping a few files costs little and skipping many costs a binary search.
+	int advance(int termId, int position, int fileId) {
+		int[] termFileIds = fileIds[termId];
+		int length = lengths[termId];
+		if (position >= length || termFileIds[position] >= fileId) {
+			return position;
+		}
+
+		int step = 1;
+		int low = position;
+		int high = position + step;
+		while (high < length && termFileIds[high] < fileId) {
+			low = high;
+			step <<= 1;
+			high = position + step;
+		}
+		int found = Arrays.binarySearch(termFileIds, low + 1, Math.min(high, length), fileId);
+		return (found >= 0) ? found : -found - 1;
+	}
+
+	// The file now contains the term with the given count. New files have the highest id, so they are appended,
+	// and a file registered again is usually found in place, maybe as a stale entry.
+	void add(int termId, int fileId, long count) {
+		maxCounts[termId] = Math.max(maxCounts[termId], count);
+
+		int length = lengths[termId];
+		int position = (length == 0 || fileIds[termId][length - 1] < fileId) ? length : advance(termId, 0, fileId);
+		if (position < length && fileIds[termId][position] == fileId) {
+			return;
+		}
+
+		if (length == fileIds[termId].length) {
+			fileIds[termId] = Arrays.copyOf(fileIds[termId], length * 2);
+		}
+		System.arraycopy(fileIds[termId], position, fileIds[termId], position + 1, length - position);
+		fileIds[termId][position] = fileId;
+		lengths[termId]++;
+	}
+
+	// The file no longer contains the term, so its entry is stale. Returns true when the term should be compacted.
+	boolean removed(int termId) {
+		staleEntries[termId]++;
+		return staleEntries[termId] >= MIN_STALE_TO_COMPACT && 2 * staleEntries[termId] >= lengths[termId];
+	}
+
+	// Drops the stale entries of the term, the files whose current count is 0, and lowers its maximum count
+	void compact(int termId, IntToLongFunction countOf) {
+		int[] termFileIds = fileIds[termId];
+		int kept = 0;
+		long maxCount = 0;
+		for (int position = 0; position < lengths[termId]; position++) {
+			long count = countOf.applyAsLong(termFileIds[position]);
+			if (count != 0) {
+				termFileIds[kept++] = termFileIds[position];
+				maxCount = Math.max(maxCount, count);
+			}
+		}
+		if (kept < termFileIds.length / 4) {
+			fileIds[termId] = Arrays.copyOf(termFileIds, Math.max(2 * kept, INITIAL_CAPACITY));
+		}
+		lengths[termId] = kept;
+		staleEntries[termId] = 0;
+		maxCounts[termId] = maxCount;
+	}
+
+	// Returns a copy with one more term, the last one, with no postings yet
+	PostingLists withNewTerm() {
+		int termNumber = lengths.length;
+		PostingLists postings = new PostingLists(termNumber + 1);
+		for (int termId = 0; termId < termNumber; termId++) {
+			postings.fileIds[termId] = Arrays.copyOf(fileIds[termId], Math.max(lengths[termId], INITIAL_CAPACITY));
+			postings.lengths[termId] = lengths[termId];
+			postings.staleEntries[termId] = staleEntries[termId];
+			postings.maxCounts[termId] = maxCounts[termId];
+		}
+		return postings;
+	}
+}
@@ -0,0 +1,191 @@
+package com.kurtthealien.tfidf.impl;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.Logger;
+
+import com.kurtthealien.tfidf.ResultDelta;
+import com.kurtthealien.tfidf.ResultListener;
+import com.kurtthealien.tfidf.TfIdf;
+
+// Result listeners of a TfIdf. The index publishes after a batch of changes, computing the best files of every
+// subscription, and the deltas are worked out and delivered on the delivery pool. A listener gets one call at
+// a time: results published while it is busy replace the ones still waiting, so its next call merges them.
+final class ResultPublisher {
+	
+	private final TfIdf tfidf;
+	
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+	
+	private ExecutorService deliveryPool;   //guarded by this, only running while there are subscriptions
+	
+	private final AtomicBoolean publishScheduled = new AtomicBoolean();
+	
+	private long publishedVersion = -1;   //guarded by this
+	
+	private static final Logger logger = Logger.getLogger("TfIdfLog");
+	
+	ResultPublisher(TfIdf tfidf) {
+		this.tfidf = tfidf;
+	}
+	
+	// Called where the index can be used, as the current results are computed and delivered first
+	synchronized boolean subscribe(List<String> terms, long resultNumber, ResultListener listener) {
+		if (resultNumber <= 0) {
+			logger.error("Unable to add a result listener for " + resultNumber + " results");
+			return false;
+		}
+		for (Subscription subscription: subscriptions) {
+			if (subscription.listener == listener) {
+				logger.error("Result listener already added");
+				return false;
+			}
+		}
+		
+		if (deliveryPool == null) {
+			deliveryPool = Executors.newCachedThreadPool(runnable -> {
+				Thread deliveryThread = new Thread(runnable, "tfidf-results");
+				deliveryThread.setDaemon(true);
+				return deliveryThread;
+			});
+		}
+		
+		Subscription subscription = new Subscription(List.copyOf(terms), resultNumber, listener);
+		subscriptions.add(subscription);
+		subscription.offer(tfidf.getIndexVersion(), subscription.retrieveResults());
+		return true;
+	}
+	
+	// The delivery pool is shut down with the last subscription, letting a call under way finish
+	synchronized boolean unsubscribe(ResultListener listener) {
+		for (Subscription subscription: subscriptions) {
+			if (subscription.listener == listener) {
+				subscription.cancelled = true;
+				subscriptions.remove(subscription);
+				if (subscriptions.isEmpty()) {
+					deliveryPool.shutdown();
+					deliveryPool = null;
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	// Computes the results of every subscription on the calling thread, if the index changed since the last time
+	synchronized void publish() {
+		long version = tfidf.getIndexVersion();
+		if (subscriptions.isEmpty() || version == publishedVersion) {
+			return;
+		}
+		publishedVersion = version;
+		
+		for (Subscription subscription: subscriptions) {
+			subscription.offer(version, subscription.retrieveResults());
+		}
+	}
+	
+	// For indexes that can be used from any thread: results are computed on the delivery pool, and changes
+	// published while that is waiting to start are covered by it
+	void publishAsync() {
+		if (subscriptions.isEmpty()) {
+			return;
+		}
+		synchronized (this) {
+			if (deliveryPool != null && publishScheduled.compareAndSet(false, true)) {
+				deliveryPool.execute(() -> {
+					publishScheduled.set(false);
+					publish();
+				});
+			}
+		}
+	}
+	
+	private final class Subscription {
+		
+		final List<String> terms;   //all of them when empty
+		
+		final long resultNumber;
+		
+		final ResultListener listener;
+		
+		final AtomicReference<PublishedResults> pendingResults = new AtomicReference<>();
+		
+		final AtomicBoolean deliveryScheduled = new AtomicBoolean();
+		
+		Map<Path, Double> deliveredResults = Collections.emptyMap();   //only used by the delivering thread
+		
+		volatile boolean cancelled;
+		
+		Subscription(List<String> terms, long resultNumber, ResultListener listener) {
+			this.terms = terms;
+			this.resultNumber = resultNumber;
+			this.listener = listener;
+		}
+		
+		Map<Path, Double> retrieveResults() {
+			return tfidf.retrieveResults(terms.isEmpty() ? tfidf.getTermList() : terms, resultNumber);
+		}
+		
+		// Called holding the publisher, so the delivery pool is running
+		void offer(long version, Map<Path, Double> results) {
+			pendingResults.set(new PublishedResults(version, results));
+			if (deliveryScheduled.compareAndSet(false, true)) {
+				deliveryPool.execute(this::deliver);
+			}
+		}
+		
+		// Results offered after the last check are delivered by this same task, or by the one it schedules. That
+		// happens even if the listener throws an Error, as results offered meanwhile found this task still running.
+		private void deliver() {
+			try {
+				PublishedResults published;
+				while ((published = pendingResults.getAndSet(null)) != null && !cancelled) {
+					ResultDelta delta = new ResultDelta(published.version, deliveredResults, published.results);
+					deliveredResults = delta.getResults();
+					if (delta.isEmpty()) {
+						continue;
+					}
+					
+					try {
+						listener.resultsChanged(delta);
+					} catch (RuntimeException rEx) {
+						logger.error("Error in result listener: " + rEx.getMessage());
+					}
+				}
+			} finally {
+				deliveryScheduled.set(false);
+				if (pendingResults.get() != null && deliveryScheduled.compareAndSet(false, true)) {
+					//the delivery pool runs until the subscription is cancelled, both changed holding the publisher
+					synchronized (ResultPublisher.this) {
+						if (cancelled) {
+							deliveryScheduled.set(false);
+						} else {
+							deliveryPool.execute(this::deliver);
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	private static final class PublishedResults {
+		
+		final long version;
+		
+		final Map<Path, Double> results;
+		
+		PublishedResults(long version, Map<Path, Double> results) {
+			this.version = version;
+			this.results = results;
+		}
+	}
+}
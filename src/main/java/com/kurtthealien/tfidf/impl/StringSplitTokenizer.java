@@ -0,0 +1,23 @@
+package com.kurtthealien.tfidf.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Original tokenizer: loads the whole file as a String and splits it, creating a String per token
+public class StringSplitTokenizer implements Tokenizer {
+
+	public void countTerms(Path fileName, KeywordMatcher matcher, long[] termCounts) throws IOException {
+		
+		//decoding replaces malformed UTF-8 instead of failing, as Files.readString does
+		String fileContents = new String(Files.readAllBytes(fileName), StandardCharsets.UTF_8).replace("\r", "").replace("\n", " ");
+		
+		for (String token: fileContents.split(" ")) {
+			int keywordId = matcher.match(token);
+			if (keywordId >= 0) {
+				termCounts[keywordId]++;
+			}
+		}
+	}
+}
@@ -0,0 +1,365 @@
+package com.kurtthealien.tfidf.impl;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Term counts of every registered file in a compressed sparse row layout: each file id owns a run of
+// (term id, count) pairs stored in two primitive columns, and terms missing from a file take no space.
+// The files containing each term are also kept, as posting lists whose counts are read from the rows.
+public class TermFrequencyStore {
+
+	private static final int INITIAL_CAPACITY = 1024;
+	
+	private final int termNumber;
+	
+	private final Map<Path, Integer> fileIds;
+	
+	private Path[] fileNames;   //indexed by file id
+	
+	private int[] rowStarts;
+	
+	private int[] rowLengths;
+	
+	private long[] fileSizes;   //size and modification time of each file when it was read, -1 if unknown
+	
+	private long[] lastModifiedTimes;
+	
+	private int fileIdLimit;   //every file id in use is lower than this
+	
+	private int[] termIdColumn;
+	
+	private long[] countColumn;
+	
+	private int columnSize;
+	
+	private int unusedEntries;   //rows left behind by files registered again or removed, reclaimed when compacting
+	
+	private int removedFiles;   //ids left behind by removed files, reclaimed when compacting
+	
+	private PostingLists postings;
+	
+	public TermFrequencyStore(int termNumber) {
+		this.termNumber = termNumber;
+		postings = new PostingLists(termNumber);
+		
+		fileIds = new HashMap<>();
+		fileNames = new Path[INITIAL_CAPACITY];
+		rowStarts = new int[INITIAL_CAPACITY];
+		rowLengths = new int[INITIAL_CAPACITY];
+		fileSizes = new long[INITIAL_CAPACITY];
+		lastModifiedTimes = new long[INITIAL_CAPACITY];
+		
+		termIdColumn = new int[INITIAL_CAPACITY];
+		countColumn = new long[INITIAL_CAPACITY];
+	}
+	
+	public int getTermNumber() {
+		return termNumber;
+	}
+	
+	public int size() {
+		return fileIds.size();
+	}
+	
+	public boolean isEmpty() {
+		return fileIds.isEmpty();
+	}
+	
+	// Bytes of the arrays at their current capacity, taking references as 4 bytes as with compressed oops.
+	// The file names and the map of file ids are left out, as their size depends on the paths.
+	public long getArrayBytes() {
+		long fileBytes = (long) fileNames.length * (4 + 4 + 4 + 8 + 8);
+		long columnBytes = (long) termIdColumn.length * (4 + 8);
+		return fileBytes + columnBytes + postings.getArrayBytes();
+	}
+	
+	public List<Path> getFileList() {
+		List<Path> fileList = new ArrayList<>(fileIds.size());
+		for (int fileId = 0; fileId < fileIdLimit; fileId++) {
+			if (fileNames[fileId] != null) {
+				fileList.add(fileNames[fileId]);
+			}
+		}
+		return fileList;
+	}
+	
+	// Returns the file id, or -1 if the file is not registered
+	public int getFileId(Path fileName) {
+		Integer fileId = fileIds.get(fileName);
+		return (fileId == null) ? -1 : fileId;
+	}
+	
+	// Returns the file registered with the id, or null if the id is not in use
+	public Path getFileName(int fileId) {
+		return fileNames[fileId];
+	}
+	
+	public int getFileIdLimit() {
+		return fileIdLimit;
+	}
+	
+	public int put(Path fileName, long[] termCounts) {
+		return put(fileName, termCounts, -1, -1);
+	}
+	
+	// Registers the counts of the file, indexed by term id, replacing any previous ones. Returns the file id.
+	public int put(Path fileName, long[] termCounts, long fileSize, long lastModified) {
+		int rowLength = 0;
+		for (long count: termCounts) {
+			if (count != 0) {
+				rowLength++;
+			}
+		}
+		
+		//terms the file no longer has leave stale postings, once its new row is in place
+		List<Integer> removedTermIds = new ArrayList<>();
+		Integer fileId = fileIds.get(fileName);
+		if (fileId != null) {
+			int rowEnd = rowStarts[fileId] + rowLengths[fileId];
+			for (int position = rowStarts[fileId]; position < rowEnd; position++) {
+				if (termCounts[termIdColumn[position]] == 0) {
+					removedTermIds.add(termIdColumn[position]);
+				}
+			}
+			unusedEntries += rowLengths[fileId];
+			rowLengths[fileId] = 0;
+		}
+		
+		//compacting renumbers the files, so the id is only taken after it
+		ensureColumnCapacity(rowLength);
+		fileId = fileIds.get(fileName);
+		if (fileId == null) {
+			if (fileIdLimit == fileNames.length && removedFiles > 0) {
+				compact(termIdColumn.length);
+			}
+			fileId = fileIdLimit++;
+			ensureFileCapacity(fileIdLimit);
+			fileIds.put(fileName, fileId);
+			fileNames[fileId] = fileName;
+		}
+		
+		fileSizes[fileId] = fileSize;
+		lastModifiedTimes[fileId] = lastModified;
+		
+		rowStarts[fileId] = columnSize;
+		rowLengths[fileId] = rowLength;
+		for (int termId = 0; termId < termCounts.length; termId++) {
+			if (termCounts[termId] != 0) {
+				termIdColumn[columnSize] = termId;
+				countColumn[columnSize] = termCounts[termId];
+				columnSize++;
+				postings.add(termId, fileId, termCounts[termId]);
+			}
+		}
+		removedTermIds.forEach(this::removePosting);
+		
+		return fileId;
+	}
+	
+	// Drops the file and its counts, returning false if it was not registered. Its id is not in use any more.
+	public boolean remove(Path fileName) {
+		Integer fileId = fileIds.remove(fileName);
+		if (fileId == null) {
+			return false;
+		}
+		
+		int rowEnd = rowStarts[fileId] + rowLengths[fileId];
+		unusedEntries += rowLengths[fileId];
+		rowLengths[fileId] = 0;
+		fileNames[fileId] = null;
+		removedFiles++;
+		for (int position = rowStarts[fileId]; position < rowEnd; position++) {
+			removePosting(termIdColumn[position]);
+		}
+		return true;
+	}
+	
+	// A file left the postings of the term, which are compacted once they have too many stale entries
+	private void removePosting(int termId) {
+		if (postings.removed(termId)) {
+			postings.compact(termId, fileId -> getCount(fileId, termId));
+		}
+	}
+	
+	// Returns the counts of the file indexed by term id, or null if the file is not registered
+	public long[] getCounts(Path fileName) {
+		Integer fileId = fileIds.get(fileName);
+		if (fileId == null) {
+			return null;
+		}
+		
+		long[] termCounts = new long[termNumber];
+		int rowEnd = rowStarts[fileId] + rowLengths[fileId];
+		for (int position = rowStarts[fileId]; position < rowEnd; position++) {
+			termCounts[termIdColumn[position]] = countColumn[position];
+		}
+		return termCounts;
+	}
+	
+	// Rows are sorted by term id, so the term is searched for
+	public long getCount(int fileId, int termId) {
+		int rowStart = rowStarts[fileId];
+		int found = Arrays.binarySearch(termIdColumn, rowStart, rowStart + rowLengths[fileId], termId);
+		return (found >= 0) ? countColumn[found] : 0;
+	}
+	
+	// Files containing the term are at the positions from 0 to getPostingLength, in increasing file id order,
+	// along with some that no longer contain it and have a count of 0
+	public int getPostingLength(int termId) {
+		return postings.getLength(termId);
+	}
+	
+	public int getPostingFileId(int termId, int position) {
+		return postings.getFileId(termId, position);
+	}
+	
+	public long getPostingCount(int termId, int position) {
+		return getCount(postings.getFileId(termId, position), termId);
+	}
+	
+	// At least the highest count of the term in any file
+	public long getMaxCount(int termId) {
+		return postings.getMaxCount(termId);
+	}
+	
+	// First posting position from the given one on whose file id is not lower than fileId
+	public int advancePosting(int termId, int position, int fileId) {
+		return postings.advance(termId, position, fileId);
+	}
+	
+	public long getFileSize(int fileId) {
+		return fileSizes[fileId];
+	}
+	
+	public long getLastModified(int fileId) {
+		return lastModifiedTimes[fileId];
+	}
+	
+	// The non-zero counts of a file are at the positions from getRowStart to getRowStart + getRowLength
+	public int getRowStart(int fileId) {
+		return rowStarts[fileId];
+	}
+	
+	public int getRowLength(int fileId) {
+		return rowLengths[fileId];
+	}
+	
+	public int getTermId(int position) {
+		return termIdColumn[position];
+	}
+	
+	public long getCount(int position) {
+		return countColumn[position];
+	}
+	
+	// Returns a copy with one more term, the last one, whose counts are given by file id. File ids don't change.
+	public TermFrequencyStore withNewTerm(long[] newTermCounts) {
+		TermFrequencyStore store = new TermFrequencyStore(termNumber + 1);
+		
+		int newEntries = 0;
+		for (int fileId = 0; fileId < fileIdLimit; fileId++) {
+			if (fileNames[fileId] != null && newTermCounts[fileId] != 0) {
+				newEntries++;
+			}
+		}
+		
+		store.fileIds.putAll(fileIds);
+		store.fileNames = fileNames.clone();
+		store.rowStarts = new int[fileNames.length];
+		store.rowLengths = new int[fileNames.length];
+		store.fileSizes = fileSizes.clone();
+		store.lastModifiedTimes = lastModifiedTimes.clone();
+		store.fileIdLimit = fileIdLimit;
+		store.removedFiles = removedFiles;
+		store.postings = postings.withNewTerm();
+		
+		//rows are copied in file id order, leaving the unused entries behind as compacting does
+		int capacity = Math.max(columnSize - unusedEntries + newEntries, INITIAL_CAPACITY);
+		store.termIdColumn = new int[capacity];
+		store.countColumn = new long[capacity];
+		for (int fileId = 0; fileId < fileIdLimit; fileId++) {
+			store.rowStarts[fileId] = store.columnSize;
+			if (fileNames[fileId] == null) {
+				continue;
+			}
+			System.arraycopy(termIdColumn, rowStarts[fileId], store.termIdColumn, store.columnSize, rowLengths[fileId]);
+			System.arraycopy(countColumn, rowStarts[fileId], store.countColumn, store.columnSize, rowLengths[fileId]);
+			store.columnSize += rowLengths[fileId];
+			if (newTermCounts[fileId] != 0) {
+				store.termIdColumn[store.columnSize] = termNumber;
+				store.countColumn[store.columnSize] = newTermCounts[fileId];
+				store.columnSize++;
+				store.postings.add(termNumber, fileId, newTermCounts[fileId]);
+			}
+			store.rowLengths[fileId] = store.columnSize - store.rowStarts[fileId];
+		}
+		
+		return store;
+	}
+	
+	private void ensureFileCapacity(int capacity) {
+		if (capacity > fileNames.length) {
+			int newCapacity = Math.max(capacity, fileNames.length * 2);
+			fileNames = Arrays.copyOf(fileNames, newCapacity);
+			rowStarts = Arrays.copyOf(rowStarts, newCapacity);
+			rowLengths = Arrays.copyOf(rowLengths, newCapacity);
+			fileSizes = Arrays.copyOf(fileSizes, newCapacity);
+			lastModifiedTimes = Arrays.copyOf(lastModifiedTimes, newCapacity);
+		}
+	}
+	
+	// Columns are only reallocated when full, and then the unused entries are dropped as well
+	private void ensureColumnCapacity(int rowLength) {
+		if (columnSize + rowLength <= termIdColumn.length) {
+			return;
+		}
+		
+		int liveEntries = columnSize - unusedEntries;
+		int newCapacity = (unusedEntries > columnSize / 2) ? termIdColumn.length : termIdColumn.length + (termIdColumn.length >> 1);
+		compact(Math.max(newCapacity, liveEntries + rowLength));
+	}
+	
+	// Copies every row to new columns, in file id order, leaving the unused entries behind. The ids of
+	// removed files are reclaimed by moving the following files down, so their relative order is kept.
+	// The postings are built again from the rows, without stale entries and with exact maximum counts.
+	private void compact(int capacity) {
+		int[] newTermIdColumn = new int[capacity];
+		long[] newCountColumn = new long[capacity];
+		PostingLists newPostings = new PostingLists(termNumber);
+		
+		int position = 0;
+		int newFileId = 0;
+		for (int fileId = 0; fileId < fileIdLimit; fileId++) {
+			if (fileNames[fileId] == null) {
+				continue;
+			}
+			System.arraycopy(termIdColumn, rowStarts[fileId], newTermIdColumn, position, rowLengths[fileId]);
+			System.arraycopy(countColumn, rowStarts[fileId], newCountColumn, position, rowLengths[fileId]);
+			if (newFileId != fileId) {
+				fileNames[newFileId] = fileNames[fileId];
+				rowLengths[newFileId] = rowLengths[fileId];
+				fileSizes[newFileId] = fileSizes[fileId];
+				lastModifiedTimes[newFileId] = lastModifiedTimes[fileId];
+				fileIds.put(fileNames[newFileId], newFileId);
+			}
+			rowStarts[newFileId] = position;
+			for (int rowEnd = position + rowLengths[newFileId]; position < rowEnd; position++) {
+				newPostings.add(newTermIdColumn[position], newFileId, newCountColumn[position]);
+			}
+			newFileId++;
+		}
+		Arrays.fill(fileNames, newFileId, fileIdLimit, null);
+		
+		postings = newPostings;
+		termIdColumn = newTermIdColumn;
+		countColumn = newCountColumn;
+		columnSize = position;
+		unusedEntries = 0;
+		fileIdLimit = newFileId;
+		removedFiles = 0;
+	}
+}
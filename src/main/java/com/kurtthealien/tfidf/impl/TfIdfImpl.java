@@ -3,51 +3,200 @@ package com.kurtthealien.tfidf.impl;
 import java.io.*;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 import org.apache.log4j.Logger;
 
+import com.kurtthealien.tfidf.ResultListener;
 import com.kurtthealien.tfidf.TfIdf;
 
 public class TfIdfImpl implements TfIdf {
 
-	private final int ROUND_SCALE_DECIMALS = 4;
+	static final int ROUND_SCALE_DECIMALS = 4;
+	
+	static final long ROUND_SCALE = 10000;   //10^ROUND_SCALE_DECIMALS
 	
 	private Map<String, Double> keywords;   //map containing keywords and their updated idf
 	
-	private Map<Path, Map<String, Long>> termOcurrencesPerFile;
+	private TermFrequencyStore termOcurrencesPerFile;   //created when the first file is added
+	
+	private long[] documentFrequencies;   //number of registered files containing each keyword, by keyword id
+	
+	private long[] idfUnits;   //updated idf of each keyword in 1/ROUND_SCALE units, by keyword id
 	
 	Map<Path, Double> weightedFileList;
 	
+	private volatile long indexVersion;   //only written by the thread owning the index, so it can be read from any other
+	
+	private final ResultPublisher resultPublisher = new ResultPublisher(this);
+	
+	private Tokenizer tokenizer;
+	
+	private KeywordMatcher keywordMatcher;   //built from the keywords when the first file is added
+	
+	private final int workerNumber;   //threads reading and tokenizing files in addNewFiles
+	
+	private ExecutorService ingestionPool;   //created on the first parallel ingestion
+	
+	private ThreadLocal<Tokenizer> workerTokenizer;
+	
+	private static final int FILES_IN_FLIGHT_PER_WORKER = 4;
+	
+	private final int maxReadsInFlight;   //0 unless files are read on a separate I/O stage feeding the workers
+	
+	private final ContentReader contentReader;
+	
+	private ExecutorService readPool;   //created on the first ingestion with a separate I/O stage
+	
+	private ThreadLocal<ByteTokenizer> contentTokenizer = ThreadLocal.withInitial(ByteTokenizer::new);
+	
+	private static final long MAX_READ_SIZE = 4 * 1024 * 1024;   //larger files are streamed by the workers instead
+	
+	private TokenDictionary tokenDictionary;   //null unless keepTokenDictionary was called
+	
+	private ThreadLocal<TokenDictionary.FileTokens> workerFileTokens = ThreadLocal.withInitial(TokenDictionary.FileTokens::new);
+	
+	private IngestionLog ingestionLog;   //null unless openLog was called
+	
 	private static final Logger logger = Logger.getLogger("TfIdfLog");
 	
 	public TfIdfImpl() {
+		this(ForkJoinTokenizer::new, 1);
+	}
+	
+	public TfIdfImpl(int workerNumber) {
+		this(ForkJoinTokenizer::new, workerNumber);
+	}
+	
+	public TfIdfImpl(Supplier<Tokenizer> tokenizerFactory) {
+		this(tokenizerFactory, 1);
+	}
+	
+	public TfIdfImpl(Supplier<Tokenizer> tokenizerFactory, int workerNumber) {
+		this(tokenizerFactory, workerNumber, 0, ContentReader.fileChannel());
+	}
+	
+	public TfIdfImpl(Supplier<Tokenizer> tokenizerFactory, int workerNumber, int maxReadsInFlight) {
+		this(tokenizerFactory, workerNumber, maxReadsInFlight, ContentReader.fileChannel());
+	}
+	
+	// With maxReadsInFlight > 0, addNewFiles reads up to that many files at once on their own threads,
+	// so slow storage doesn't leave the workers, which only tokenize, waiting
+	public TfIdfImpl(Supplier<Tokenizer> tokenizerFactory, int workerNumber, int maxReadsInFlight, ContentReader contentReader) {
+		this.tokenizer = tokenizerFactory.get();
+		this.workerNumber = Math.max(workerNumber, 1);
+		this.maxReadsInFlight = Math.max(maxReadsInFlight, 0);
+		this.contentReader = contentReader;
+		workerTokenizer = ThreadLocal.withInitial(tokenizerFactory);
+		
 		keywords = new LinkedHashMap<>();
-
-		termOcurrencesPerFile = new LinkedHashMap<>();
 		
 		weightedFileList = new LinkedHashMap<>();
 	}
 	
 	public Boolean addNewTerm(String word) {
-		// Sanity check to avoid adding new terms when there are files processed
-		if (!termOcurrencesPerFile.isEmpty()) {
-			logger.error("Unable to add more terms as there are files already processed");
-			return false;
+		// Sanity check to avoid adding new terms when there are files processed, unless their tokens are kept
+		if (termOcurrencesPerFile != null) {
+			if (tokenDictionary == null) {
+				logger.error("Unable to add more terms as there are files already processed");
+				return false;
+			}
+			return addTermFromDictionary(word);
 		}
 		
 		keywords.put(word,  0.0);
+		indexVersion++;
+		return true;
+	}
+	
+	// Keeps every token of the files added from now on, so terms can still be added once there are files.
+	// Files are then tokenized by ByteTokenizer, in a single thread per file whatever its size.
+	public Boolean keepTokenDictionary() {
+		// Sanity check, the dictionary must cover every file
+		if (termOcurrencesPerFile != null) {
+			logger.error("Unable to keep a token dictionary as there are files already processed");
+			return false;
+		}
+		
+		tokenDictionary = new TokenDictionary();
+		return true;
+	}
+	
+	// The counts of the new term come from the token dictionary, without reading any file again
+	private Boolean addTermFromDictionary(String word) {
+		if (keywords.containsKey(word)) {
+			return true;
+		}
+		if (word.getBytes(StandardCharsets.UTF_8).length > TokenDictionary.MAX_TOKEN_LENGTH) {
+			logger.error("Unable to add term " + word + " as the token dictionary only keeps tokens up to " + TokenDictionary.MAX_TOKEN_LENGTH + " bytes");
+			return false;
+		}
+		if (tokenDictionary.size() < termOcurrencesPerFile.size()) {
+			logger.error("Unable to add more terms as some files were restored without their tokens");
+			return false;
+		}
+		int tokenId = tokenDictionary.getTokenId(word);
+		long[] newTermCounts = new long[termOcurrencesPerFile.getFileIdLimit()];
+		long documentFrequency = 0;
+		for (int fileId = 0; tokenId >= 0 && fileId < newTermCounts.length; fileId++) {
+			Path fileName = termOcurrencesPerFile.getFileName(fileId);
+			if (fileName != null) {
+				newTermCounts[fileId] = tokenDictionary.getCount(fileName, tokenId);
+				if (newTermCounts[fileId] != 0) {
+					documentFrequency++;
+				}
+			}
+		}
+		
+		int keywordId = keywords.size();
+		keywords.put(word, 0.0);
+		keywordMatcher = new KeywordMatcher(getTermList());
+		termOcurrencesPerFile = termOcurrencesPerFile.withNewTerm(newTermCounts);
+		documentFrequencies = Arrays.copyOf(documentFrequencies, keywordId + 1);
+		documentFrequencies[keywordId] = documentFrequency;
+		idfUnits = Arrays.copyOf(idfUnits, keywordId + 1);
+		updateIdf(keywordId, word);
+		indexVersion++;
+		
+		if (ingestionLog != null) {
+			try {
+				ingestionLog.rewrite(getTermList(), termOcurrencesPerFile);
+			} catch (IOException ioEx) {
+				closeLog("Error writing ingestion log for term " + word + ": " + ioEx.getMessage());
+			}
+		}
+		
+		logger.debug("Term " + word + " added from the token dictionary, found in " + documentFrequency + " files");
 		return true;
 	}
 	
 	public Boolean addNewFile(Path fileName) {
+		Boolean added = addFile(fileName);
+		syncLog();
+		dropUnusedTokens();
+		return added;
+	}
+	
+	private Boolean addFile(Path fileName) {
 		
 		// Sanity check to avoid adding new files with no words defined
 		if (keywords.isEmpty()) {
@@ -57,52 +206,430 @@ public class TfIdfImpl implements TfIdf {
 				
 		logger.debug("New text file found: " + fileName);
 		
-		//register new file
-		termOcurrencesPerFile.put(fileName, new LinkedHashMap<>());
+		if (termOcurrencesPerFile == null) {
+			freezeTerms();
+		}
 		
-		for (String keyword: keywords.keySet()) {
+		//register new file, counting every keyword in a single pass
+		recordFile(fileName, calculateTf(fileName, tokenizer));
+		
+		return true;
+	}
+	
+	// Files are read and tokenized on the worker pool, with a bounded number of them in flight,
+	// and registered by the calling thread in the order they were given
+	public long addNewFiles(List<Path> fileNames) {
+		
+		if ((workerNumber == 1 && maxReadsInFlight == 0) || fileNames.size() <= 1) {
+			long registeredFiles = 0;
+			for (Path fileName: fileNames) {
+				if (addFile(fileName)) {
+					registeredFiles++;
+				}
+			}
+			syncLog();
+			dropUnusedTokens();
+			return registeredFiles;
+		}
+		
+		// Sanity check to avoid adding new files with no words defined
+		if (keywords.isEmpty()) {
+			logger.error("Unable to add files as there are no terms defined");
+			return 0;
+		}
+		
+		if (termOcurrencesPerFile == null) {
+			freezeTerms();
+		}
+		
+		if (ingestionPool == null) {
+			ingestionPool = Executors.newFixedThreadPool(workerNumber, runnable -> {
+				Thread worker = new Thread(runnable, "tfidf-ingestion");
+				worker.setDaemon(true);
+				return worker;
+			});
+		}
+		
+		if (maxReadsInFlight > 0 && readPool == null) {
+			readPool = newReadPool();
+		}
+		
+		//the window of pending files also caps the reads in flight, and the contents held in memory
+		int maxFilesInFlight = maxReadsInFlight > 0 ? maxReadsInFlight : workerNumber * FILES_IN_FLIGHT_PER_WORKER;
+		Deque<Future<FileCounts>> pendingCounts = new ArrayDeque<>(maxFilesInFlight);
+		Iterator<Path> filesToRead = fileNames.iterator();
+		Iterator<Path> filesToRegister = fileNames.iterator();
+		long registeredFiles = 0;
+		
+		while (filesToRead.hasNext() || !pendingCounts.isEmpty()) {
+			while (filesToRead.hasNext() && pendingCounts.size() < maxFilesInFlight) {
+				Path fileName = filesToRead.next();
+				logger.debug("New text file found: " + fileName);
+				if (maxReadsInFlight > 0) {
+					pendingCounts.add(CompletableFuture.supplyAsync(() -> readContent(fileName), readPool)
+							.thenApplyAsync(fileContent -> countContent(fileName, fileContent), ingestionPool));
+				} else {
+					pendingCounts.add(ingestionPool.submit(() -> calculateTf(fileName, workerTokenizer.get())));
+				}
+			}
+			
+			Path fileName = filesToRegister.next();
+			FileCounts fileCounts;
+			try {
+				fileCounts = pendingCounts.poll().get();
+			} catch (ExecutionException exEx) {
+				logger.error("  Error counting terms in " + fileName + ": " + exEx.getCause());
+				fileCounts = new FileCounts(new long[keywordMatcher.size()], -1, -1, (tokenDictionary != null) ? TokenDictionary.EMPTY_ROW : null);
+			} catch (InterruptedException intEx) {
+				logger.error("Ingestion interrupted: " + intEx.getMessage());
+				Thread.currentThread().interrupt();
+				pendingCounts.forEach(pending -> pending.cancel(true));
+				break;
+			}
 			
-			long occurrencesInFile = calculateTf(fileName, keyword);
-			termOcurrencesPerFile.get(fileName).put(keyword, occurrencesInFile);
+			recordFile(fileName, fileCounts);
+			registeredFiles++;
+		}
+		syncLog();
+		
+		//cancelled files may still be tokenized by the workers
+		if (!Thread.currentThread().isInterrupted()) {
+			dropUnusedTokens();
+		}
+		return registeredFiles;
+	}
+	
+	private void recordFile(Path fileName, FileCounts fileCounts) {
+		registerFile(fileName, fileCounts);
+		
+		if (ingestionLog != null) {
+			try {
+				ingestionLog.append(fileName, fileCounts);
+			} catch (IOException ioEx) {
+				closeLog("Error writing ingestion log: " + ioEx.getMessage());
+			}
+		}
+	}
+	
+	private void syncLog() {
+		if (ingestionLog != null) {
+			try {
+				ingestionLog.sync();
+			} catch (IOException ioEx) {
+				closeLog("Error syncing ingestion log: " + ioEx.getMessage());
+			}
+		}
+	}
+	
+	// Only when no file is being tokenized, as the workers give ids to new tokens
+	private void dropUnusedTokens() {
+		if (tokenDictionary != null) {
+			tokenDictionary.dropUnusedTokens();
+		}
+	}
+	
+	// Distinct tokens kept by the token dictionary, 0 without one
+	public int getDictionaryTokens() {
+		return (tokenDictionary == null) ? 0 : tokenDictionary.getTokenNumber();
+	}
+	
+	// Logging stops after an error, the index in memory is still right but is no longer recoverable
+	private void closeLog(String errorMessage) {
+		logger.error(errorMessage + ", ingestion log disabled");
+		try {
+			ingestionLog.close();
+		} catch (IOException ioEx) {
+			logger.error("Error closing ingestion log: " + ioEx.getMessage());
+		}
+		ingestionLog = null;
+	}
+	
+	public Boolean removeFile(Path fileName) {
+		Boolean removed = forgetFile(fileName);
+		syncLog();
+		dropUnusedTokens();
+		return removed;
+	}
+	
+	// The removals are logged together, so the log is forced to disk once for all of them
+	public long removeFiles(List<Path> fileNames) {
+		long removedFiles = 0;
+		for (Path fileName: fileNames) {
+			if (forgetFile(fileName)) {
+				removedFiles++;
+			}
+		}
+		syncLog();
+		dropUnusedTokens();
+		return removedFiles;
+	}
+	
+	// Takes the counts of the file out of the document frequencies, visiting each keyword once
+	private Boolean forgetFile(Path fileName) {
+		if (termOcurrencesPerFile == null || !unregisterFile(fileName)) {
+			logger.debug("Removed file was not registered: " + fileName);
+			return false;
 		}
 		
+		logger.debug("File removed: " + fileName);
+		
+		if (ingestionLog != null) {
+			try {
+				ingestionLog.appendRemoval(fileName);
+			} catch (IOException ioEx) {
+				closeLog("Error writing ingestion log: " + ioEx.getMessage());
+			}
+		}
 		return true;
 	}
 	
+	private boolean unregisterFile(Path fileName) {
+		long[] previousCounts = termOcurrencesPerFile.getCounts(fileName);
+		if (previousCounts == null) {
+			return false;
+		}
+		updateDocumentFrequencies(previousCounts, -1);
+		if (tokenDictionary != null) {
+			tokenDictionary.remove(fileName);
+		}
+		indexVersion++;
+		return termOcurrencesPerFile.remove(fileName);
+	}
+	
+	private void registerFile(Path fileName, FileCounts fileCounts) {
+		//a file registered again replaces its previous contribution
+		long[] previousCounts = termOcurrencesPerFile.getCounts(fileName);
+		if (previousCounts != null) {
+			updateDocumentFrequencies(previousCounts, -1);
+		}
+		termOcurrencesPerFile.put(fileName, fileCounts.termCounts, fileCounts.fileSize, fileCounts.lastModified);
+		updateDocumentFrequencies(fileCounts.termCounts, 1);
+		
+		//files restored from disk have no row, and can't be counted for new terms
+		if (tokenDictionary != null) {
+			if (fileCounts.tokenRow != null) {
+				tokenDictionary.put(fileName, fileCounts.tokenRow);
+			} else {
+				tokenDictionary.remove(fileName);
+			}
+		}
+		indexVersion++;
+	}
+	
+	// The keyword ids follow the order of the term list, which only grows at its end once there are files
+	private void freezeTerms() {
+		keywordMatcher = new KeywordMatcher(getTermList());
+		termOcurrencesPerFile = new TermFrequencyStore(keywords.size());
+		documentFrequencies = new long[keywords.size()];
+		idfUnits = new long[keywords.size()];
+	}
+	
+	private void updateDocumentFrequencies(long[] termCounts, long increment) {
+		for (int keywordId = 0; keywordId < termCounts.length; keywordId++) {
+			if (termCounts[keywordId] > 0) {
+				documentFrequencies[keywordId] += increment;
+			}
+		}
+	}
+	
 	public List<String> getTermList() {
 		return new ArrayList<String>(keywords.keySet());
 	}
 	
 	public List<Path> getFileList() {
-		return new ArrayList<Path>(termOcurrencesPerFile.keySet());
+		if (termOcurrencesPerFile == null) {
+			return new ArrayList<Path>();
+		}
+		return termOcurrencesPerFile.getFileList();
+	}
+	
+	public long getIndexVersion() {
+		return indexVersion;
+	}
+	
+	public Boolean addResultListener(List<String> terms, long resultNumber, ResultListener listener) {
+		return resultPublisher.subscribe(terms, resultNumber, listener);
+	}
+	
+	public Boolean removeResultListener(ResultListener listener) {
+		return resultPublisher.unsubscribe(listener);
+	}
+	
+	// Results are computed by the thread changing the index, once for every change since the previous call
+	public void publishResults() {
+		resultPublisher.publish();
 	}
 	
 	public Map<Path,Double> retrieveResults(Boolean updateNeeded, long resultNumber) {
-		if (updateNeeded) {
+		if (updateNeeded && termOcurrencesPerFile != null) {
 			updateAllIdfs();
-			weightedFileList = calculateFileWeights(resultNumber);
+			weightedFileList = calculateFileWeights(resultNumber, idfUnits, keywords.size());
 		}
 		
 		return weightedFileList;
 	}
 	
-	private double roundValue(double inputValue) {
-		BigDecimal bigDecimal = new BigDecimal(inputValue).setScale(ROUND_SCALE_DECIMALS, RoundingMode.HALF_UP);
-        return bigDecimal.doubleValue();
+	// The idfs of the other keywords are taken as 0, so their postings are never visited
+	public Map<Path,Double> retrieveResults(List<String> terms, long resultNumber) {
+		Set<String> distinctTerms = new LinkedHashSet<>(terms);
+		if (termOcurrencesPerFile == null || distinctTerms.isEmpty()) {
+			return new LinkedHashMap<>();
+		}
+		
+		updateAllIdfs();
+		long[] termIdfUnits = new long[idfUnits.length];
+		int keywordId = 0;
+		for (String keyword: keywords.keySet()) {
+			if (distinctTerms.contains(keyword)) {
+				termIdfUnits[keywordId] = idfUnits[keywordId];
+			}
+			keywordId++;
+		}
+		return calculateFileWeights(resultNumber, termIdfUnits, distinctTerms.size());
+	}
+	
+	public Boolean saveSnapshot(Path snapshotFile) {
+		if (termOcurrencesPerFile == null) {
+			logger.error("Unable to save a snapshot as there are no files processed");
+			return false;
+		}
+		
+		try {
+			IndexSnapshot.write(snapshotFile, getTermList(), termOcurrencesPerFile);
+		} catch (IOException ioEx) {
+			logger.error("Error saving snapshot " + snapshotFile + ": " + ioEx.getMessage());
+			return false;
+		}
+		
+		//every logged file is in the snapshot now
+		if (ingestionLog != null) {
+			try {
+				ingestionLog.reset();
+			} catch (IOException ioEx) {
+				closeLog("Error resetting ingestion log: " + ioEx.getMessage());
+			}
+		}
+		
+		logger.debug("Snapshot saved with " + termOcurrencesPerFile.size() + " files");
+		return true;
+	}
+	
+	// Files whose size or modification time differ from the snapshot are left out, to be read again when added
+	public Boolean loadSnapshot(Path snapshotFile) {
+		// Sanity check, the snapshot can only be matched against a complete term list and no files
+		if (keywords.isEmpty()) {
+			logger.error("Unable to load a snapshot as there are no terms defined");
+			return false;
+		}
+		if (termOcurrencesPerFile != null && !termOcurrencesPerFile.isEmpty()) {
+			logger.error("Unable to load a snapshot as there are files already processed");
+			return false;
+		}
+		
+		if (termOcurrencesPerFile == null) {
+			freezeTerms();
+		}
+		
+		TermFrequencyStore loadedStore;
+		try {
+			loadedStore = IndexSnapshot.read(snapshotFile, getTermList(), TfIdfImpl::isUnchanged);
+		} catch (IOException ioEx) {
+			logger.error("Error loading snapshot " + snapshotFile + ": " + ioEx.getMessage());
+			return false;
+		}
+		if (loadedStore == null) {
+			logger.warn("Snapshot " + snapshotFile + " ignored as it was saved for different terms");
+			return false;
+		}
+		
+		termOcurrencesPerFile = loadedStore;
+		indexVersion++;
+		for (int fileId = 0; fileId < loadedStore.getFileIdLimit(); fileId++) {
+			int rowEnd = loadedStore.getRowStart(fileId) + loadedStore.getRowLength(fileId);
+			for (int position = loadedStore.getRowStart(fileId); position < rowEnd; position++) {
+				documentFrequencies[loadedStore.getTermId(position)]++;
+			}
+		}
+		
+		logger.debug("Snapshot loaded with " + loadedStore.size() + " unchanged files");
+		return true;
+	}
+	
+	// Replays the files logged since the last snapshot that haven't changed since, and logs every file added from now on
+	public Boolean openLog(Path logFile) {
+		// Sanity check, the log can only be matched against a complete term list
+		if (keywords.isEmpty()) {
+			logger.error("Unable to open the ingestion log as there are no terms defined");
+			return false;
+		}
+		if (ingestionLog != null) {
+			logger.error("Ingestion log already open");
+			return false;
+		}
+		
+		if (termOcurrencesPerFile == null) {
+			freezeTerms();
+		}
+		
+		int knownFiles = termOcurrencesPerFile.size();
+		try {
+			ingestionLog = IngestionLog.open(logFile, getTermList(), new IngestionLog.RecordHandler() {
+				public void registerFile(Path fileName, FileCounts fileCounts) {
+					if (isUnchanged(fileName, fileCounts.fileSize, fileCounts.lastModified)) {
+						TfIdfImpl.this.registerFile(fileName, fileCounts);
+					}
+				}
+				
+				public void removeFile(Path fileName) {
+					unregisterFile(fileName);
+				}
+			});
+		} catch (IOException ioEx) {
+			logger.error("Error opening ingestion log " + logFile + ": " + ioEx.getMessage());
+			return false;
+		}
+		
+		logger.debug("Ingestion log replayed, " + (termOcurrencesPerFile.size() - knownFiles) + " files recovered");
+		return true;
+	}
+	
+	private static boolean isUnchanged(Path fileName, long fileSize, long lastModified) {
+		if (fileSize < 0) {
+			return false;
+		}
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(fileName, BasicFileAttributes.class);
+			return attributes.size() == fileSize && attributes.lastModifiedTime().toMillis() == lastModified;
+		} catch (IOException ioEx) {
+			return false;
+		}
 	}
 	
+	// Same result as rounding the exact value with BigDecimal, which is only needed close to a tie
+	static double roundValue(double inputValue) {
+		double scaledValue = inputValue * ROUND_SCALE;
+		if (Math.abs(scaledValue - Math.floor(scaledValue) - 0.5) < 1e-6) {
+			BigDecimal bigDecimal = new BigDecimal(inputValue).setScale(ROUND_SCALE_DECIMALS, RoundingMode.HALF_UP);
+	        return bigDecimal.doubleValue();
+		}
+		return Math.floor(scaledValue + 0.5) / ROUND_SCALE;
+	}
+	
+	
 	private Long retrieveTf(Path fileName, String word) {
-		if (!termOcurrencesPerFile.containsKey(fileName)) {
+		int fileId = (termOcurrencesPerFile == null) ? -1 : termOcurrencesPerFile.getFileId(fileName);
+		if (fileId < 0) {
 			logger.error("Error: file not registered.");
 			return 0L;
 		}
 		
-		if (!termOcurrencesPerFile.get(fileName).containsKey(word)) {
+		int keywordId = keywordMatcher.match(word);
+		if (keywordId < 0) {
 			logger.error("Error: keyword not registered.");
 			return 0L;
 		}
 			
-		return termOcurrencesPerFile.get(fileName).get(word);		
+		return termOcurrencesPerFile.getCount(fileId, keywordId);
 	}
 	
 	private Double retrieveIdf(String word) {
@@ -114,33 +641,119 @@ public class TfIdfImpl implements TfIdf {
 		return keywords.get(word);
 	}	
 	
-	// Defined as the number of occurrences in the document
-	private long calculateTf(Path fileName, String word) {
+	// Defined as the number of occurrences in the document, for all the keywords at once
+	// The size and modification time are taken before reading, so a file changed meanwhile looks modified later on
+	private FileCounts calculateTf(Path fileName, Tokenizer tokenizer) {
 		
-		String fileContents;
+		long[] termCounts = new long[keywordMatcher.size()];
+		long fileSize = -1;
+		long lastModified = -1;
+		byte[] tokenRow = null;
 		try {
-			fileContents = Files.readString(fileName).replace("\r", "").replace("\n", " ");
+			BasicFileAttributes attributes = Files.readAttributes(fileName, BasicFileAttributes.class);
+			if (tokenDictionary != null) {
+				TokenDictionary.FileTokens fileTokens = workerFileTokens.get();
+				fileTokens.clear();
+				contentTokenizer.get().countTerms(fileName, keywordMatcher, termCounts, fileTokens);
+				tokenRow = tokenDictionary.encode(fileTokens);
+			} else {
+				tokenizer.countTerms(fileName, keywordMatcher, termCounts);
+			}
+			fileSize = attributes.size();
+			lastModified = attributes.lastModifiedTime().toMillis();
         } catch (IOException ioEx) {
         	logger.error("  Error reading file: " + ioEx.getMessage());
-            return 0;
+        	Arrays.fill(termCounts, 0);
+        	tokenRow = TokenDictionary.EMPTY_ROW;
         }
 		
-		long wordFrequency = Arrays.stream(fileContents.split(" "))
-			      .filter(str -> str.equals(word))
-			      .count();
+		logCounts(fileName, termCounts);
+		
+		return new FileCounts(termCounts, fileSize, lastModified, (tokenDictionary != null) ? tokenRow : null);
+	}
+	
+	// I/O stage of addNewFiles: the attributes and, unless the file is large, its whole content.
+	// Only up to the size taken first is read, so the counts always match the recorded size
+	private FileContent readContent(Path fileName) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(fileName, BasicFileAttributes.class);
+			ByteBuffer content = null;
+			if (attributes.size() < MAX_READ_SIZE) {
+				content = contentReader.read(fileName, attributes.size());
+			}
+			return new FileContent(attributes, content);
+		} catch (IOException ioEx) {
+			logger.error("  Error reading file: " + ioEx.getMessage());
+			return null;
+		}
+	}
+	
+	// CPU stage of addNewFiles, on the worker pool
+	private FileCounts countContent(Path fileName, FileContent fileContent) {
+		
+		if (fileContent == null) {
+			return new FileCounts(new long[keywordMatcher.size()], -1, -1, (tokenDictionary != null) ? TokenDictionary.EMPTY_ROW : null);
+		}
+		if (fileContent.content == null) {
+			return calculateTf(fileName, workerTokenizer.get());
+		}
+		
+		long[] termCounts = new long[keywordMatcher.size()];
+		byte[] tokenRow = null;
+		if (tokenDictionary != null) {
+			TokenDictionary.FileTokens fileTokens = workerFileTokens.get();
+			fileTokens.clear();
+			contentTokenizer.get().countTerms(fileContent.content, keywordMatcher, termCounts, fileTokens);
+			tokenRow = tokenDictionary.encode(fileTokens);
+		} else {
+			contentTokenizer.get().countTerms(fileContent.content, keywordMatcher, termCounts);
+		}
+		
+		logCounts(fileName, termCounts);
+		
+		return new FileCounts(termCounts, fileContent.attributes.size(), fileContent.attributes.lastModifiedTime().toMillis(), tokenRow);
+	}
+	
+	private void logCounts(Path fileName, long[] termCounts) {
+		if (logger.isDebugEnabled()) {
+			int keywordId = 0;
+			for (String keyword: keywords.keySet()) {
+				logger.debug("  File " + fileName + " has " + termCounts[keywordId++] + " ocurrences for " + keyword);
+			}
+		}
+	}
+	
+	// Virtual threads when the runtime has them (Java 21 onwards), as a read blocked on storage then holds no
+	// platform thread. Otherwise a cached pool, which never grows beyond the reads in flight
+	private static ExecutorService newReadPool() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException roEx) {
+			return Executors.newCachedThreadPool(runnable -> {
+				Thread reader = new Thread(runnable, "tfidf-read");
+				reader.setDaemon(true);
+				return reader;
+			});
+		}
+	}
+	
+	private static final class FileContent {
+		
+		final BasicFileAttributes attributes;
 		
-		logger.debug("  File " + fileName + " has " + wordFrequency + " ocurrences for " + word);
+		final ByteBuffer content;   //null when the file is too large to be read at once
 		
-		return wordFrequency;
+		FileContent(BasicFileAttributes attributes, ByteBuffer content) {
+			this.attributes = attributes;
+			this.content = content;
+		}
 	}
 	
 	// Defined as log(number of documents containing the work / the total number of documents)
-	private void updateIdf(String word) {
+	private void updateIdf(int keywordId, String word) {
 		logger.debug("  Updating idf for " + word);
 		
-		double numDocsWithWord = termOcurrencesPerFile.entrySet().stream()
-			      .filter(docsWithWord -> docsWithWord.getValue().get(word) > 0)
-			      .count();
+		double numDocsWithWord = documentFrequencies[keywordId];
 		
 		double numDocs = termOcurrencesPerFile.size();
 		
@@ -153,14 +766,16 @@ public class TfIdfImpl implements TfIdf {
 			idf = roundValue(Math.log10(numDocs/numDocsWithWord));
 		}
 		keywords.put(word, idf);
+		idfUnits[keywordId] = Math.round(idf * ROUND_SCALE);
 		
 		logger.debug("  Term " + word + " has idf " + idf);
 	}
 	
 	private void updateAllIdfs() {
 		logger.debug("Updating idf for " + keywords.size() + " words.");
+		int keywordId = 0;
 		for (String keyword: keywords.keySet()) {
-			updateIdf(keyword);
+			updateIdf(keywordId++, keyword);
 		}
 	}
 	
@@ -168,37 +783,137 @@ public class TfIdfImpl implements TfIdf {
 		return roundValue(retrieveTf(fileName, word) * retrieveIdf(word));
 	}
 	
-	private Double calculateTotalTfIdf(Path fileName) {
-		Double totalTfIdf = 0.0;
+	// MaxScore over the posting lists, in file id order so ties still go to the lowest id. Keywords are sorted by
+	// the most they can add to a file; the cheapest ones whose bounds together can't beat the weakest file kept
+	// are non-essential, so files found only in them are skipped, and they are just probed for the other files.
+	private void offerMatchingFiles(BestFiles bestFiles, long[] idfUnits) {
+		
+		int termNumber = 0;
+		int[] termIds = new int[idfUnits.length];
+		for (int keywordId = 0; keywordId < idfUnits.length; keywordId++) {
+			if (idfUnits[keywordId] > 0 && termOcurrencesPerFile.getPostingLength(keywordId) > 0) {
+				termIds[termNumber++] = keywordId;
+			}
+		}
+		
+		Integer[] order = new Integer[termNumber];
+		for (int term = 0; term < termNumber; term++) {
+			order[term] = term;
+		}
+		Arrays.sort(order, (first, second) -> Long.compare(termOcurrencesPerFile.getMaxCount(termIds[first]) * idfUnits[termIds[first]],
+				termOcurrencesPerFile.getMaxCount(termIds[second]) * idfUnits[termIds[second]]));
+		int[] sortedTermIds = new int[termNumber];
+		long[] boundsUpTo = new long[termNumber];   //sum of the upper bounds of the terms up to each one
+		for (int term = 0; term < termNumber; term++) {
+			sortedTermIds[term] = termIds[order[term]];
+			long upperBound = termOcurrencesPerFile.getMaxCount(sortedTermIds[term]) * idfUnits[sortedTermIds[term]];
+			boundsUpTo[term] = upperBound + ((term > 0) ? boundsUpTo[term - 1] : 0);
+		}
+		
+		int[] positions = new int[termNumber];
+		int firstEssential = 0;
+		long threshold = 0;   //weight a file must exceed to be offered
+		
+		while (firstEssential < termNumber) {
+			
+			//next file in any essential posting list
+			int fileId = Integer.MAX_VALUE;
+			for (int term = firstEssential; term < termNumber; term++) {
+				if (positions[term] < termOcurrencesPerFile.getPostingLength(sortedTermIds[term])) {
+					fileId = Math.min(fileId, termOcurrencesPerFile.getPostingFileId(sortedTermIds[term], positions[term]));
+				}
+			}
+			if (fileId == Integer.MAX_VALUE) {
+				break;
+			}
+			
+			long weight = 0;
+			for (int term = firstEssential; term < termNumber; term++) {
+				int termId = sortedTermIds[term];
+				if (positions[term] < termOcurrencesPerFile.getPostingLength(termId)
+						&& termOcurrencesPerFile.getPostingFileId(termId, positions[term]) == fileId) {
+					weight += termOcurrencesPerFile.getPostingCount(termId, positions[term]) * idfUnits[termId];
+					positions[term]++;
+				}
+			}
+			
+			//the non-essential terms are probed from the most valuable one, while the file can still get in
+			for (int term = firstEssential - 1; term >= 0 && weight + boundsUpTo[term] > threshold; term--) {
+				int termId = sortedTermIds[term];
+				positions[term] = termOcurrencesPerFile.advancePosting(termId, positions[term], fileId);
+				if (positions[term] < termOcurrencesPerFile.getPostingLength(termId)
+						&& termOcurrencesPerFile.getPostingFileId(termId, positions[term]) == fileId) {
+					weight += termOcurrencesPerFile.getPostingCount(termId, positions[term]) * idfUnits[termId];
+				}
+			}
+			
+			if (weight > threshold) {
+				bestFiles.offer(fileId, weight);
+				threshold = Math.max(0, bestFiles.getMinimumWeight());
+				while (firstEssential < termNumber && boundsUpTo[firstEssential] <= threshold) {
+					firstEssential++;
+				}
+			}
+		}
+	}
+	
+	// Sum of the per-keyword tfidfs of a file in 1/ROUND_SCALE units. As idfs are rounded to ROUND_SCALE_DECIMALS,
+	// every tf * idf is exact in these units and the sum needs no rounding. Only the keywords found in the file are visited.
+	private long calculateTotalTfIdf(int fileId, long[] idfUnits) {
+		long totalUnits = 0;
 		
-		logger.debug("Calculating TfIdf for File " + fileName);
+		int rowEnd = termOcurrencesPerFile.getRowStart(fileId) + termOcurrencesPerFile.getRowLength(fileId);
+		for (int position = termOcurrencesPerFile.getRowStart(fileId); position < rowEnd; position++) {
+			totalUnits += termOcurrencesPerFile.getCount(position) * idfUnits[termOcurrencesPerFile.getTermId(position)];
+		}
 		
-		for (String word: keywords.keySet()) {
-			Double tempTfIdf = calculateTfIdf(fileName, word);
-			logger.trace("  File " + fileName + " has TfIdf " + tempTfIdf + " for word " + word);
+		return totalUnits;
+	}
+	
+	// Reported tfidf of a file: the mean of its rounded per-keyword tfidfs, added up as doubles and rounded again
+	private double calculateReportedTfIdf(int fileId, long[] idfUnits, int termNumber) {
+		double totalTfIdf = 0.0;
+		
+		Path fileName = termOcurrencesPerFile.getFileName(fileId);
+		int rowEnd = termOcurrencesPerFile.getRowStart(fileId) + termOcurrencesPerFile.getRowLength(fileId);
+		for (int position = termOcurrencesPerFile.getRowStart(fileId); position < rowEnd; position++) {
+			int keywordId = termOcurrencesPerFile.getTermId(position);
+			double tempTfIdf = (termOcurrencesPerFile.getCount(position) * idfUnits[keywordId]) / (double) ROUND_SCALE;
+			logger.trace("  File " + fileName + " has TfIdf " + tempTfIdf + " for keyword " + keywordId);
 			totalTfIdf += tempTfIdf;
 		}
 		
-		totalTfIdf /= keywords.size();
-		totalTfIdf = roundValue(totalTfIdf);
+		totalTfIdf = roundValue(totalTfIdf / termNumber);
 		
 		logger.debug("File " + fileName + " has total TfIddf " + totalTfIdf);
 		
 		return totalTfIdf;
 	}
 	
-	private Map<Path, Double> calculateFileWeights(long resultNumber) {
+	// Keeps the best resultNumber files in a min-heap, so only those are held and sorted. Only files with some
+	// keyword are scored; if there are not enough of them, the first files without any fill the results.
+	private Map<Path, Double> calculateFileWeights(long resultNumber, long[] idfUnits, int termNumber) {
 		
-		Map<Path, Double> allWeightedFiles = termOcurrencesPerFile.entrySet()
-				.stream()
-				.collect(Collectors.toMap(Map.Entry::getKey, e->calculateTotalTfIdf(e.getKey())));
+		int heapSize = (int) Math.min(resultNumber, termOcurrencesPerFile.size());
+		Map<Path, Double> bestWeightedFiles = new LinkedHashMap<>();
+		if (heapSize <= 0) {
+			return bestWeightedFiles;
+		}
 		
-		logger.debug("All calculated results: " + allWeightedFiles.toString());
+		BestFiles bestFiles = new BestFiles(heapSize);
+		offerMatchingFiles(bestFiles, idfUnits);
+		for (int fileId = 0; bestFiles.size() < heapSize && fileId < termOcurrencesPerFile.getFileIdLimit(); fileId++) {
+			if (termOcurrencesPerFile.getFileName(fileId) != null && calculateTotalTfIdf(fileId, idfUnits) == 0) {
+				bestFiles.offer(fileId, 0);
+			}
+		}
 		
-		return allWeightedFiles.entrySet()
-				.stream()
-				.sorted(Map.Entry.comparingByValue(Comparator.reverseOrder()))
-				.limit(resultNumber)
-				.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (a, b) -> a, LinkedHashMap::new));
-	} 
+		for (int fileId: bestFiles.sortedFileOrders()) {
+			bestWeightedFiles.put(termOcurrencesPerFile.getFileName(fileId), calculateReportedTfIdf(fileId, idfUnits, termNumber));
+		}
+		
+		logger.debug("Best calculated results: " + bestWeightedFiles.toString());
+		
+		return bestWeightedFiles;
+	}
 }
@@ -0,0 +1,269 @@
+package com.kurtthealien.tfidf.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Every token of every registered file with its count, so a term added after ingestion is counted without
+// reading the files again. Tokens get an id from a vocabulary shared by all files, and each file keeps a row
+// of (token id, count) pairs sorted by id, stored as varint deltas in a byte array. The rows having each token are
+// counted, and tokens no row has any more are dropped once they are as many as the rest, so the vocabulary stays
+// proportional to the tokens of the registered files.
+// Tokens are registered by the ingestion workers, but rows are only put and read by the thread owning TfIdfImpl.
+final class TokenDictionary {
+	
+	static final int MAX_TOKEN_LENGTH = 64;   //longer tokens are not kept, so terms that long can't be added later
+	
+	static final byte[] EMPTY_ROW = new byte[0];
+	
+	private static final int MIN_TOKENS_TO_DROP = 1024;
+	
+	private final Map<String, Integer> tokenIds = new ConcurrentHashMap<>();
+	
+	private final AtomicInteger nextTokenId = new AtomicInteger();
+	
+	private final Map<Path, byte[]> fileRows = new HashMap<>();
+	
+	private int[] rowCounts = new int[MIN_TOKENS_TO_DROP];   //rows having each token id
+	
+	private int usedTokens;   //token ids with some row
+	
+	// Returns the id of the token, or -1 if no registered file ever had it
+	int getTokenId(String token) {
+		Integer tokenId = tokenIds.get(token);
+		return (tokenId == null) ? -1 : tokenId;
+	}
+	
+	int size() {
+		return fileRows.size();
+	}
+	
+	// Distinct tokens kept, including the ones no row has until they are dropped
+	int getTokenNumber() {
+		return tokenIds.size();
+	}
+	
+	void put(Path fileName, byte[] row) {
+		byte[] previousRow = fileRows.put(fileName, row);
+		countRow(row, 1);
+		if (previousRow != null) {
+			countRow(previousRow, -1);
+		}
+	}
+	
+	void remove(Path fileName) {
+		byte[] previousRow = fileRows.remove(fileName);
+		if (previousRow != null) {
+			countRow(previousRow, -1);
+		}
+	}
+	
+	private void countRow(byte[] row, int increment) {
+		int[] position = {0};
+		int tokenId = 0;
+		while (position[0] < row.length) {
+			tokenId += (int) readVarLong(row, position);
+			readVarLong(row, position);
+			if (tokenId >= rowCounts.length) {
+				rowCounts = Arrays.copyOf(rowCounts, Math.max(tokenId + 1, rowCounts.length * 2));
+			}
+			if (rowCounts[tokenId] == 0) {
+				usedTokens++;
+			}
+			rowCounts[tokenId] += increment;
+			if (rowCounts[tokenId] == 0) {
+				usedTokens--;
+			}
+		}
+	}
+	
+	// Forgets the tokens no row has, once there are at least as many of them as of used ones, and gives the rest
+	// consecutive ids in the same order, so rows stay sorted and ids as many as the tokens. The workers give ids
+	// to new tokens, so this is only called when no file is being encoded.
+	void dropUnusedTokens() {
+		int tokenIdLimit = nextTokenId.get();
+		if (tokenIdLimit < MIN_TOKENS_TO_DROP || 2 * usedTokens > tokenIdLimit) {
+			return;
+		}
+		
+		int[] newTokenIds = new int[tokenIdLimit];
+		int[] newRowCounts = new int[Math.max(2 * usedTokens, MIN_TOKENS_TO_DROP)];
+		int newTokenId = 0;
+		for (int tokenId = 0; tokenId < tokenIdLimit; tokenId++) {
+			if (tokenId < rowCounts.length && rowCounts[tokenId] > 0) {
+				newRowCounts[newTokenId] = rowCounts[tokenId];
+				newTokenIds[tokenId] = newTokenId++;
+			} else {
+				newTokenIds[tokenId] = -1;
+			}
+		}
+		
+		tokenIds.replaceAll((token, tokenId) -> newTokenIds[tokenId]);
+		tokenIds.values().removeIf(tokenId -> tokenId < 0);
+		fileRows.replaceAll((fileName, row) -> renumber(row, newTokenIds));
+		rowCounts = newRowCounts;
+		nextTokenId.set(newTokenId);
+	}
+	
+	// Consecutive new ids are never further apart than the old ones, so the row doesn't grow
+	private static byte[] renumber(byte[] row, int[] newTokenIds) {
+		byte[] newRow = new byte[row.length];
+		int[] position = {0};
+		int[] newPosition = {0};
+		int tokenId = 0;
+		int previousTokenId = 0;
+		while (position[0] < row.length) {
+			tokenId += (int) readVarLong(row, position);
+			long count = readVarLong(row, position);
+			writeVarLong(newRow, newPosition, newTokenIds[tokenId] - previousTokenId);
+			writeVarLong(newRow, newPosition, count);
+			previousTokenId = newTokenIds[tokenId];
+		}
+		return Arrays.copyOf(newRow, newPosition[0]);
+	}
+	
+	// Count of the token in the file, 0 if the file has no row
+	long getCount(Path fileName, int tokenId) {
+		byte[] row = fileRows.get(fileName);
+		if (row == null) {
+			return 0;
+		}
+		
+		int[] position = {0};
+		int currentTokenId = 0;
+		while (position[0] < row.length) {
+			currentTokenId += (int) readVarLong(row, position);
+			long count = readVarLong(row, position);
+			if (currentTokenId >= tokenId) {
+				return (currentTokenId == tokenId) ? count : 0;
+			}
+		}
+		return 0;
+	}
+	
+	// Called by the workers once a file is tokenized. Only the distinct tokens of the file become Strings.
+	byte[] encode(FileTokens fileTokens) {
+		long[] entries = new long[fileTokens.size];   //token id in the high half, position in the file tokens in the low one
+		for (int entry = 0; entry < fileTokens.size; entry++) {
+			String token = new String(fileTokens.tokenBytes, fileTokens.tokenStarts[entry], fileTokens.tokenLengths[entry], StandardCharsets.UTF_8);
+			long tokenId = tokenIds.computeIfAbsent(token, newToken -> nextTokenId.getAndIncrement());
+			entries[entry] = (tokenId << 32) | entry;
+		}
+		Arrays.sort(entries);
+		
+		byte[] row = new byte[entries.length * 4];
+		int[] position = {0};
+		int previousTokenId = 0;
+		for (long entry: entries) {
+			int tokenId = (int) (entry >>> 32);
+			if (position[0] + 20 > row.length) {
+				row = Arrays.copyOf(row, row.length * 2 + 20);
+			}
+			writeVarLong(row, position, tokenId - previousTokenId);
+			writeVarLong(row, position, fileTokens.counts[(int) entry]);
+			previousTokenId = tokenId;
+		}
+		return Arrays.copyOf(row, position[0]);
+	}
+	
+	private static void writeVarLong(byte[] row, int[] position, long value) {
+		while ((value & ~0x7FL) != 0) {
+			row[position[0]++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		row[position[0]++] = (byte) value;
+	}
+	
+	private static long readVarLong(byte[] row, int[] position) {
+		long value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte currentByte = row[position[0]++];
+			value |= (long) (currentByte & 0x7F) << shift;
+			if (currentByte >= 0) {
+				return value;
+			}
+		}
+	}
+	
+	// Distinct tokens of one file with their counts, in an open addressing table reused from file to file
+	static final class FileTokens {
+		
+		private static final int INITIAL_CAPACITY = 256;
+		
+		private static final int MAX_KEPT_SLOTS = 64 * 1024;   //a file with many more tokens doesn't slow down clearing for the next ones
+		
+		private byte[] tokenBytes = new byte[INITIAL_CAPACITY * 8];
+		
+		private int usedBytes;
+		
+		private int[] tokenStarts = new int[INITIAL_CAPACITY];
+		
+		private int[] tokenLengths = new int[INITIAL_CAPACITY];
+		
+		private long[] counts = new long[INITIAL_CAPACITY];
+		
+		private int size;
+		
+		private int[] slots = new int[INITIAL_CAPACITY * 2];   //entry + 1 for every used slot, 0 for the empty ones
+		
+		void clear() {
+			if (slots.length > MAX_KEPT_SLOTS) {
+				slots = new int[INITIAL_CAPACITY * 2];
+			} else {
+				Arrays.fill(slots, 0);
+			}
+			usedBytes = 0;
+			size = 0;
+		}
+		
+		void add(byte[] token, int length) {
+			int slotMask = slots.length - 1;
+			int slot = KeywordMatcher.hash(token, 0, length) & slotMask;
+			while (slots[slot] != 0) {
+				int entry = slots[slot] - 1;
+				if (Arrays.equals(tokenBytes, tokenStarts[entry], tokenStarts[entry] + tokenLengths[entry], token, 0, length)) {
+					counts[entry]++;
+					return;
+				}
+				slot = (slot + 1) & slotMask;
+			}
+			
+			if (usedBytes + length > tokenBytes.length) {
+				tokenBytes = Arrays.copyOf(tokenBytes, Math.max(tokenBytes.length * 2, usedBytes + length));
+			}
+			System.arraycopy(token, 0, tokenBytes, usedBytes, length);
+			
+			if (size == counts.length) {
+				tokenStarts = Arrays.copyOf(tokenStarts, size * 2);
+				tokenLengths = Arrays.copyOf(tokenLengths, size * 2);
+				counts = Arrays.copyOf(counts, size * 2);
+			}
+			tokenStarts[size] = usedBytes;
+			tokenLengths[size] = length;
+			counts[size] = 1;
+			usedBytes += length;
+			slots[slot] = ++size;
+			
+			// At most half of the slots are used, so probe sequences stay short
+			if (size * 2 > slots.length) {
+				rehash();
+			}
+		}
+		
+		private void rehash() {
+			slots = new int[slots.length * 2];
+			int slotMask = slots.length - 1;
+			for (int entry = 0; entry < size; entry++) {
+				int slot = KeywordMatcher.hash(tokenBytes, tokenStarts[entry], tokenLengths[entry]) & slotMask;
+				while (slots[slot] != 0) {
+					slot = (slot + 1) & slotMask;
+				}
+				slots[slot] = entry + 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,10 @@
+package com.kurtthealien.tfidf.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+public interface Tokenizer {
+
+	// Adds to termCounts the occurrences of every keyword found in the file, indexed by keyword id
+	public void countTerms(Path fileName, KeywordMatcher matcher, long[] termCounts) throws IOException;
+}
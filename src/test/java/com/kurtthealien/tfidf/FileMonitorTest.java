@@ -5,15 +5,31 @@ import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.log4j.Logger;
 import org.junit.Rule;
@@ -22,7 +38,9 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import com.kurtthealien.tfidf.FileMonitor;
+import com.kurtthealien.tfidf.impl.FileCompletionPolicy;
 import com.kurtthealien.tfidf.impl.FileMonitorImpl;
+import com.kurtthealien.tfidf.impl.IngestionQueue;
 
 import org.junit.experimental.runners.Enclosed;
 import org.junit.rules.TemporaryFolder;
@@ -226,4 +244,602 @@ public class FileMonitorTest {
 			logger.info("Comparing expected " + expectedFiles.toString() + " with retrieved and simplified " + currentFileNameList.toString());			
 		}
 	 }
+	
+	public static class TestChangedFiles {
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+	    
+	    @Test
+	    public void testModifiedAndDeletedFiles() throws IOException, InterruptedException {
+	    	String absoluteTempPath = createNewTempFolder(tempRootFolder);
+	    	String absoluteResourcesPath = Paths.get("src","test","resources").toFile().getAbsolutePath();
+	    	assertTrue(copyTestFiles(absoluteResourcesPath, absoluteTempPath, Arrays.asList("file1.txt", "file2.txt", "file3.txt")));
+	    	
+	    	FileMonitor fileMonitor = new FileMonitorImpl();
+	    	fileMonitor.configure(Paths.get(absoluteTempPath));
+	    	
+	    	// Several writes to the same file are reported once, and a file created and written is only new
+	    	Path modifiedFile = Paths.get(absoluteTempPath, "file1.txt");
+	    	for (int i = 0; i < 5; i++) {
+	    		Files.writeString(modifiedFile, " password", StandardOpenOption.APPEND);
+	    	}
+	    	Files.delete(Paths.get(absoluteTempPath, "file2.txt"));
+	    	assertTrue(copyTestFiles(absoluteResourcesPath, absoluteTempPath, Arrays.asList("file4.txt")));
+	    	Files.writeString(Paths.get(absoluteTempPath, "file4.txt"), " again", StandardOpenOption.APPEND);
+	    	TimeUnit.MILLISECONDS.sleep(100);
+	    	
+	    	List<Path> deletedFiles = fileMonitor.retrieveDeletedFiles();
+	    	List<Path> modifiedFiles = fileMonitor.retrieveModifiedTextFiles();
+	    	List<Path> newFiles = fileMonitor.retrieveNewTextFiles();
+	    	logger.info("Retrieved deleted " + deletedFiles + ", modified " + modifiedFiles + " and new " + newFiles);
+	    	
+	    	assertEquals(Arrays.asList(Paths.get(absoluteTempPath, "file2.txt")), deletedFiles);
+	    	assertEquals(Arrays.asList(modifiedFile), modifiedFiles);
+	    	assertEquals(Arrays.asList(Paths.get(absoluteTempPath, "file4.txt")), newFiles);
+	    	
+	    	assertTrue(fileMonitor.retrieveModifiedTextFiles().isEmpty());
+	    	assertTrue(fileMonitor.retrieveDeletedFiles().isEmpty());
+	    }
+	    
+	    @Test
+	    public void testOverflow() throws IOException, InterruptedException {
+	    	String absoluteTempPath = createNewTempFolder(tempRootFolder);
+	    	String absoluteResourcesPath = Paths.get("src","test","resources").toFile().getAbsolutePath();
+	    	assertTrue(copyTestFiles(absoluteResourcesPath, absoluteTempPath, Arrays.asList("file1.txt", "file2.txt", "file3.txt")));
+	    	
+	    	// Far more events than a watch key holds before reporting OVERFLOW, with nothing polled meanwhile
+	    	int burstSize = 5000;
+	    	FileMonitor fileMonitor = new FileMonitorImpl(FileCompletionPolicy.immediate(), 2 * burstSize);
+	    	fileMonitor.configure(Paths.get(absoluteTempPath));
+	    	assertEquals(3, fileMonitor.retrieveCurrentTextFiles().size());
+	    	
+	    	List<Path> burstFiles = new ArrayList<>();
+	    	for (int i = 0; i < burstSize; i++) {
+	    		Path burstFile = Paths.get(absoluteTempPath, String.format("burst%05d.txt", i));
+	    		Files.writeString(burstFile, "password try again " + i);
+	    		burstFiles.add(burstFile);
+	    	}
+	    	Path modifiedFile = Paths.get(absoluteTempPath, "file1.txt");
+	    	Files.writeString(modifiedFile, " password", StandardOpenOption.APPEND);
+	    	Files.delete(Paths.get(absoluteTempPath, "file2.txt"));
+	    	TimeUnit.MILLISECONDS.sleep(200);
+	    	
+	    	List<Path> deletedFiles = fileMonitor.retrieveDeletedFiles();
+	    	List<Path> modifiedFiles = fileMonitor.retrieveModifiedTextFiles();
+	    	List<Path> newFiles = fileMonitor.retrieveNewTextFiles();
+	    	logger.info("Retrieved " + deletedFiles.size() + " deleted, " + modifiedFiles.size() + " modified and " + newFiles.size() + " new files");
+	    	
+	    	assertEquals(Arrays.asList(Paths.get(absoluteTempPath, "file2.txt")), deletedFiles);
+	    	assertEquals(Arrays.asList(modifiedFile), modifiedFiles);
+	    	assertEquals(burstSize, newFiles.size());
+	    	assertEquals(new HashSet<>(burstFiles), new HashSet<>(newFiles));
+	    	
+	    	// Known files are not reported again on the next overflow
+	    	for (int i = 0; i < burstSize; i++) {
+	    		Files.writeString(Paths.get(absoluteTempPath, String.format("other%05d.txt", i)), "again");
+	    	}
+	    	TimeUnit.MILLISECONDS.sleep(200);
+	    	assertTrue(fileMonitor.retrieveModifiedTextFiles().isEmpty());
+	    	assertEquals(burstSize, fileMonitor.retrieveNewTextFiles().size());
+	    }
+	    
+	    @Test
+	    public void testPendingLimit() throws IOException, InterruptedException {
+	    	String absoluteTempPath = createNewTempFolder(tempRootFolder);
+	    	FileMonitor fileMonitor = new FileMonitorImpl(FileCompletionPolicy.immediate(), 100);
+	    	fileMonitor.configure(Paths.get(absoluteTempPath));
+	    	assertTrue(fileMonitor.retrieveCurrentTextFiles().isEmpty());
+	    	
+	    	// A burst larger than the pending changes kept is retrieved a chunk at a time, without losing any file
+	    	int burstSize = 1000;
+	    	Set<Path> burstFiles = new HashSet<>();
+	    	for (int i = 0; i < burstSize; i++) {
+	    		Path burstFile = Paths.get(absoluteTempPath, String.format("burst%05d.txt", i));
+	    		Files.writeString(burstFile, "password try again " + i);
+	    		burstFiles.add(burstFile);
+	    	}
+	    	TimeUnit.MILLISECONDS.sleep(200);
+	    	
+	    	Set<Path> newFiles = new HashSet<>();
+	    	for (List<Path> chunk = fileMonitor.retrieveNewTextFiles(30); !chunk.isEmpty(); chunk = fileMonitor.retrieveNewTextFiles(30)) {
+	    		assertTrue(chunk.size() <= 30);
+	    		newFiles.addAll(chunk);
+	    	}
+	    	assertEquals(burstFiles, newFiles);
+	    	
+	    	// Deleting a whole directory is reported the same way
+	    	Path partition = Files.createDirectories(Paths.get(absoluteTempPath, "partition"));
+	    	Set<Path> partitionFiles = new HashSet<>();
+	    	for (int i = 0; i < 300; i++) {
+	    		Path partitionFile = partition.resolve(String.format("part%05d.txt", i));
+	    		Files.writeString(partitionFile, "password");
+	    		partitionFiles.add(partitionFile);
+	    	}
+	    	TimeUnit.MILLISECONDS.sleep(200);
+	    	newFiles.clear();
+	    	for (List<Path> chunk = fileMonitor.retrieveNewTextFiles(30); !chunk.isEmpty(); chunk = fileMonitor.retrieveNewTextFiles(30)) {
+	    		newFiles.addAll(chunk);
+	    	}
+	    	assertEquals(partitionFiles, newFiles);
+	    	
+	    	for (Path partitionFile: partitionFiles) {
+	    		Files.delete(partitionFile);
+	    	}
+	    	Files.delete(partition);
+	    	TimeUnit.MILLISECONDS.sleep(200);
+	    	Set<Path> deletedFiles = new HashSet<>();
+	    	for (List<Path> chunk = fileMonitor.retrieveDeletedFiles(30); !chunk.isEmpty(); chunk = fileMonitor.retrieveDeletedFiles(30)) {
+	    		assertTrue(chunk.size() <= 30);
+	    		deletedFiles.addAll(chunk);
+	    	}
+	    	assertEquals(partitionFiles, deletedFiles);
+	    	assertTrue(fileMonitor.retrieveNewTextFiles().isEmpty());
+	    }
+	}	
+	public static class TestDirectoryTrees {
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+	    
+	    @Test
+	    public void testSeveralRootsWithSubdirectories() throws IOException, InterruptedException {
+	    	Path firstRoot = tempRootFolder.newFolder("first").toPath();
+	    	Path secondRoot = tempRootFolder.newFolder("second").toPath();
+	    	Path partition = Files.createDirectories(firstRoot.resolve("2021").resolve("08"));
+	    	Files.writeString(firstRoot.resolve("top.txt"), "password");
+	    	Files.writeString(partition.resolve("nested.txt"), "try again");
+	    	Files.writeString(secondRoot.resolve("other.txt"), "again");
+	    	
+	    	FileMonitor fileMonitor = new FileMonitorImpl();
+	    	assertTrue(fileMonitor.configure(Arrays.asList(firstRoot, secondRoot)));
+	    	
+	    	List<Path> currentFiles = fileMonitor.retrieveCurrentTextFiles();
+	    	logger.info("Retrieved " + currentFiles);
+	    	assertEquals(Arrays.asList(partition.resolve("nested.txt"), firstRoot.resolve("top.txt"), secondRoot.resolve("other.txt")), currentFiles);
+	    	
+	    	// A new partition is watched as soon as it appears, so files written later on are found as well
+	    	Path newPartition = Files.createDirectories(firstRoot.resolve("2021").resolve("09"));
+	    	Files.writeString(newPartition.resolve("early.txt"), "password");
+	    	TimeUnit.MILLISECONDS.sleep(100);
+	    	assertEquals(Arrays.asList(newPartition.resolve("early.txt")), fileMonitor.retrieveNewTextFiles());
+	    	
+	    	Files.writeString(newPartition.resolve("late.txt"), "password");
+	    	Files.writeString(partition.resolve("nested.txt"), " password", StandardOpenOption.APPEND);
+	    	TimeUnit.MILLISECONDS.sleep(100);
+	    	assertEquals(Arrays.asList(newPartition.resolve("late.txt")), fileMonitor.retrieveNewTextFiles());
+	    	assertEquals(Arrays.asList(partition.resolve("nested.txt")), fileMonitor.retrieveModifiedTextFiles());
+	    	
+	    	// Removing a partition deletes every file in it
+	    	Files.delete(newPartition.resolve("early.txt"));
+	    	Files.delete(newPartition.resolve("late.txt"));
+	    	Files.delete(newPartition);
+	    	TimeUnit.MILLISECONDS.sleep(100);
+	    	assertEquals(new HashSet<>(Arrays.asList(newPartition.resolve("early.txt"), newPartition.resolve("late.txt"))),
+	    			new HashSet<>(fileMonitor.retrieveDeletedFiles()));
+	    }
+	    
+	    @Test
+	    public void testNewTreeWork() throws IOException, InterruptedException {
+	    	Path root = tempRootFolder.newFolder("root").toPath();
+	    	Path knownDirectory = Files.createDirectory(root.resolve("known"));
+	    	for (int i = 0; i < 2000; i++) {
+	    		Files.writeString(knownDirectory.resolve("known" + i + ".txt"), "password");
+	    	}
+	    	
+	    	FileMonitorImpl fileMonitor = new FileMonitorImpl();
+	    	assertTrue(fileMonitor.configure(root));
+	    	assertEquals(2000, fileMonitor.retrieveCurrentTextFiles().size());
+	    	
+	    	// A tree of 25 directories with 4 files each, moved in at once
+	    	Path staging = tempRootFolder.newFolder("staging").toPath();
+	    	Path tree = Files.createDirectory(staging.resolve("tree"));
+	    	int treeEntries = 0;
+	    	for (int branch = 0; branch < 5; branch++) {
+	    		Path branchDirectory = Files.createDirectory(tree.resolve("branch" + branch));
+	    		for (int leaf = 0; leaf < 4; leaf++) {
+	    			Path leafDirectory = Files.createDirectory(branchDirectory.resolve("leaf" + leaf));
+	    			treeEntries++;
+	    			for (int i = 0; i < 4; i++) {
+	    				Files.writeString(leafDirectory.resolve("new" + i + ".txt"), "password");
+	    				treeEntries++;
+	    			}
+	    		}
+	    		treeEntries++;
+	    		for (int i = 0; i < 4; i++) {
+	    			Files.writeString(branchDirectory.resolve("new" + i + ".txt"), "password");
+	    			treeEntries++;
+	    		}
+	    	}
+	    	Files.move(tree, root.resolve("tree"));
+	    	
+	    	List<Path> newFiles = new ArrayList<>();
+	    	long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+	    	while (newFiles.size() < 100 && System.nanoTime() < deadline) {
+	    		fileMonitor.awaitChanges();
+	    		newFiles.addAll(fileMonitor.retrieveNewTextFiles());
+	    	}
+	    	assertEquals(100, newFiles.size());
+	    	
+	    	// Each new directory is compared with its own entries only, never with the 2000 known files
+	    	logger.info(fileMonitor.getReconciledEntries() + " entries compared for " + treeEntries + " in the new tree");
+	    	assertTrue(fileMonitor.getReconciledEntries() <= 2 * treeEntries);
+	    }
+	}	
+	public static class TestCompletionPolicies {
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+	    
+	    @Test
+	    public void testQuiescence() throws IOException, InterruptedException {
+	    	Path directory = tempRootFolder.newFolder("files").toPath();
+	    	FileMonitor fileMonitor = new FileMonitorImpl(FileCompletionPolicy.quiescence(500));
+	    	fileMonitor.configure(directory);
+	    	
+	    	Path newFile = directory.resolve("new.txt");
+	    	Files.writeString(newFile, "password");
+	    	TimeUnit.MILLISECONDS.sleep(50);
+	    	assertTrue(fileMonitor.retrieveNewTextFiles().isEmpty());
+	    	
+	    	TimeUnit.MILLISECONDS.sleep(600);
+	    	assertEquals(Arrays.asList(newFile), fileMonitor.retrieveNewTextFiles());
+	    }
+	    
+	    @Test
+	    public void testQuiescenceForgetsDeletedFiles() throws IOException, InterruptedException {
+	    	Path directory = tempRootFolder.newFolder("files").toPath();
+	    	FileCompletionPolicy.Quiescence quiescence = (FileCompletionPolicy.Quiescence) FileCompletionPolicy.quiescence(60000);
+	    	FileMonitor fileMonitor = new FileMonitorImpl(quiescence);
+	    	fileMonitor.configure(directory);
+	    	
+	    	Path subdirectory = Files.createDirectory(directory.resolve("sub"));
+	    	TimeUnit.MILLISECONDS.sleep(50);
+	    	assertTrue(fileMonitor.retrieveNewTextFiles().isEmpty());
+	    	
+	    	// Files deleted while they are being written, one of them with its whole directory
+	    	Path newFile = Files.writeString(directory.resolve("new.txt"), "password");
+	    	Path nestedFile = Files.writeString(subdirectory.resolve("nested.txt"), "password");
+	    	TimeUnit.MILLISECONDS.sleep(50);
+	    	assertTrue(fileMonitor.retrieveNewTextFiles().isEmpty());
+	    	assertEquals(2, quiescence.getObservedFiles());
+	    	
+	    	Files.delete(newFile);
+	    	Files.delete(nestedFile);
+	    	Files.delete(subdirectory);
+	    	TimeUnit.MILLISECONDS.sleep(50);
+	    	assertTrue(fileMonitor.retrieveNewTextFiles().isEmpty());
+	    	assertEquals(0, quiescence.getObservedFiles());
+	    }
+	    
+	    @Test
+	    public void testRenameIntoPlace() throws IOException, InterruptedException {
+	    	Path directory = tempRootFolder.newFolder("files").toPath();
+	    	FileMonitor fileMonitor = new FileMonitorImpl(FileCompletionPolicy.renameIntoPlace());
+	    	fileMonitor.configure(directory);
+	    	
+	    	Path partialFile = directory.resolve("data.txt.part");
+	    	Files.writeString(partialFile, "password");
+	    	TimeUnit.MILLISECONDS.sleep(50);
+	    	assertTrue(fileMonitor.retrieveNewTextFiles().isEmpty());
+	    	
+	    	Path finalFile = Files.move(partialFile, directory.resolve("data.txt"), StandardCopyOption.ATOMIC_MOVE);
+	    	TimeUnit.MILLISECONDS.sleep(50);
+	    	assertEquals(Arrays.asList(finalFile), fileMonitor.retrieveNewTextFiles());
+	    }
+	    
+	    @Test
+	    public void testLock() throws IOException, InterruptedException {
+	    	Path directory = tempRootFolder.newFolder("files").toPath();
+	    	FileMonitor fileMonitor = new FileMonitorImpl(FileCompletionPolicy.sharedLock());
+	    	fileMonitor.configure(directory);
+	    	
+	    	Path lockedFile = directory.resolve("locked.txt");
+	    	// Closing the channel releases the lock as well, if an assertion fails
+	    	try (FileChannel channel = FileChannel.open(lockedFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+	    		FileLock lock = channel.lock();
+	    		channel.write(ByteBuffer.wrap("password".getBytes(StandardCharsets.UTF_8)));
+	    		TimeUnit.MILLISECONDS.sleep(50);
+	    		assertTrue(fileMonitor.retrieveNewTextFiles().isEmpty());
+	    		lock.release();
+	    	}
+	    	assertEquals(Arrays.asList(lockedFile), fileMonitor.retrieveNewTextFiles());
+	    }
+	    
+	    @Test
+	    public void testAwaitQuiescence() throws IOException, InterruptedException {
+	    	Path directory = tempRootFolder.newFolder("files").toPath();
+	    	FileMonitor fileMonitor = new FileMonitorImpl(FileCompletionPolicy.quiescence(300));
+	    	fileMonitor.configure(directory);
+	    	
+	    	// No more events come after the file is written, but it is checked again until complete
+	    	Path newFile = Files.writeString(directory.resolve("new.txt"), "password");
+	    	List<Path> newFiles = new ArrayList<>();
+	    	long startTime = System.nanoTime();
+	    	while (newFiles.isEmpty()) {
+	    		fileMonitor.awaitChanges();
+	    		newFiles = fileMonitor.retrieveNewTextFiles();
+	    	}
+	    	long waitMillis = (System.nanoTime() - startTime) / 1_000_000;
+	    	logger.info("New file complete after " + waitMillis + " ms");
+	    	assertEquals(Arrays.asList(newFile), newFiles);
+	    	assertTrue(waitMillis >= 250 && waitMillis < 2000);
+	    }
+	    
+	    @Test
+	    public void testTextDetection() throws IOException {
+	    	Path directory = tempRootFolder.newFolder("files").toPath();
+	    	Files.copy(Paths.get("src", "test", "resources", "alien.jpg"), directory.resolve("alien.dat"));
+	    	Files.write(directory.resolve("binary"), new byte[] {'a', 'b', 0, 1, 2, 3});
+	    	Files.writeString(directory.resolve("notes"), "password été again\r\n");
+	    	Path readOnlyFile = Files.writeString(directory.resolve("readonly.txt"), "password");
+	    	readOnlyFile.toFile().setReadOnly();
+	    	
+	    	FileMonitor fileMonitor = new FileMonitorImpl();
+	    	fileMonitor.configure(directory);
+	    	
+	    	assertEquals(Arrays.asList(directory.resolve("notes"), readOnlyFile), fileMonitor.retrieveCurrentTextFiles());
+	    }
+	    
+	    @Test(timeout = 10000)
+	    public void testAwaitChanges() throws IOException, InterruptedException, ExecutionException {
+	    	Path directory = tempRootFolder.newFolder("files").toPath();
+	    	FileMonitor fileMonitor = new FileMonitorImpl();
+	    	fileMonitor.configure(directory);
+	    	
+	    	ExecutorService waiter = Executors.newSingleThreadExecutor();
+	    	try {
+	    		Future<List<Path>> newFiles = waiter.submit(() -> {
+	    			fileMonitor.awaitChanges();
+	    			return fileMonitor.retrieveNewTextFiles();
+	    		});
+	    		
+	    		// Nothing happens, so it keeps waiting
+	    		TimeUnit.MILLISECONDS.sleep(300);
+	    		assertEquals(false, newFiles.isDone());
+	    		
+	    		Path newFile = Files.writeString(directory.resolve("new.txt"), "password");
+	    		assertEquals(Arrays.asList(newFile), newFiles.get());
+	    	} finally {
+	    		waiter.shutdownNow();
+	    	}
+	    }
+	}
+	
+	public static class TestIngestionQueue {
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+		
+		private static List<Path> paths(int first, int number) {
+			List<Path> paths = new ArrayList<>();
+			for (int i = first; i < first + number; i++) {
+				paths.add(Paths.get("file" + i + ".txt"));
+			}
+			return paths;
+		}
+		
+		private static List<Path> takeAll(IngestionQueue queue) throws InterruptedException, IOException {
+			List<Path> taken = new ArrayList<>();
+			for (List<IngestionQueue.Change> changes = queue.take(7, 0); !changes.isEmpty(); changes = queue.take(7, 0)) {
+				changes.forEach(change -> taken.add(change.getFileName()));
+			}
+			return taken;
+		}
+		
+		@Test
+		public void testBlock() throws Exception {
+			logger.info("Testing the producer waits while the ingestion queue is full");
+			
+			IngestionQueue queue = IngestionQueue.parse("block:10");
+			for (Path path: paths(0, 10)) {
+				assertTrue(queue.put(path, false));
+			}
+			
+			ExecutorService producer = Executors.newSingleThreadExecutor();
+			try {
+				Future<Boolean> blockedPut = producer.submit(() -> queue.put(Paths.get("file10.txt"), false));
+				TimeUnit.MILLISECONDS.sleep(300);
+				assertEquals(false, blockedPut.isDone());
+				assertTrue(queue.getLagMillis() >= 300);
+				
+				assertEquals(paths(0, 3), queue.take(3, 0).stream().map(IngestionQueue.Change::getFileName).collect(Collectors.toList()));
+				assertTrue(blockedPut.get());
+				assertEquals(8, queue.getDepth());
+				assertEquals(paths(3, 8), takeAll(queue));
+				assertEquals(0, queue.getLagMillis());
+			} finally {
+				producer.shutdownNow();
+				queue.close();
+			}
+		}
+		
+		@Test
+		public void testSpill() throws Exception {
+			logger.info("Testing a burst beyond the ingestion queue capacity spills to disk in order");
+			
+			IngestionQueue queue = IngestionQueue.parse("spill:100");
+			try {
+				List<Path> burst = paths(0, 1000);
+				for (Path path: burst) {
+					assertTrue(queue.put(path, path.toString().endsWith("7.txt")));
+				}
+				assertEquals(1000, queue.getDepth());
+				assertEquals(900, queue.getSpilledChanges());
+				
+				// Taking and putting interleaved keeps the order, with removals where they were
+				List<IngestionQueue.Change> changes = queue.take(550, 0);
+				assertEquals(100, changes.size());
+				queue.put(Paths.get("late.txt"), false);
+				List<Path> taken = changes.stream().map(IngestionQueue.Change::getFileName).collect(Collectors.toList());
+				taken.addAll(takeAll(queue));
+				
+				List<Path> expected = new ArrayList<>(burst);
+				expected.add(Paths.get("late.txt"));
+				assertEquals(expected, taken);
+				assertTrue(changes.get(7).isRemoval());
+				assertEquals(false, changes.get(8).isRemoval());
+				assertEquals(0, queue.getDepth());
+			} finally {
+				queue.close();
+			}
+		}
+		
+		@Test
+		public void testSpillFailure() throws Exception {
+			logger.info("Testing the producer waits for room when the ingestion queue can't spill");
+			
+			IngestionQueue queue = new IngestionQueue(IngestionQueue.Backpressure.SPILL, 10, Paths.get("missing", "directory"));
+			ExecutorService producer = Executors.newSingleThreadExecutor();
+			try {
+				for (Path path: paths(0, 10)) {
+					assertTrue(queue.put(path, false));
+				}
+				Future<Boolean> blockedPut = producer.submit(() -> queue.put(Paths.get("file10.txt"), false));
+				TimeUnit.MILLISECONDS.sleep(300);
+				assertEquals(false, blockedPut.isDone());
+				
+				assertEquals(paths(0, 3), queue.take(3, 0).stream().map(IngestionQueue.Change::getFileName).collect(Collectors.toList()));
+				assertTrue(blockedPut.get());
+				assertEquals(paths(3, 8), takeAll(queue));
+				assertEquals(0, queue.getSpilledChanges());
+			} finally {
+				producer.shutdownNow();
+				queue.close();
+			}
+		}
+		
+		@Test
+		public void testSpillFailureMidWrite() throws Exception {
+			logger.info("Testing changes are kept in order when the spill file fails partway through a write");
+			
+			Path spillDirectory = tempRootFolder.newFolder("spill").toPath();
+			IngestionQueue queue = new IngestionQueue(IngestionQueue.Backpressure.SPILL, 10, spillDirectory) {
+				@Override
+				protected OutputStream openSpillOutput(Path spillFile) throws IOException {
+					return new FilterOutputStream(super.openSpillOutput(spillFile)) {
+						private int written;
+						
+						@Override
+						public void write(int b) throws IOException {
+							if (written++ == 10000) {
+								throw new IOException("No space left on device");
+							}
+							super.write(b);
+						}
+					};
+				}
+			};
+			ExecutorService producer = Executors.newSingleThreadExecutor();
+			try {
+				List<Path> burst = paths(0, 1000);
+				Future<?> puts = producer.submit(() -> {
+					for (Path path: burst) {
+						queue.put(path, false);
+					}
+					return null;
+				});
+				TimeUnit.MILLISECONDS.sleep(300);
+				assertEquals(false, puts.isDone());
+				
+				// The whole records in the file come back first, then the ones the file didn't take
+				List<Path> taken = new ArrayList<>();
+				while (taken.size() < burst.size()) {
+					List<IngestionQueue.Change> changes = queue.take(7, 10000);
+					assertTrue(!changes.isEmpty());
+					changes.forEach(change -> taken.add(change.getFileName()));
+				}
+				puts.get();
+				assertEquals(burst, taken);
+				assertEquals(0, queue.getLostChanges());
+				assertTrue(queue.getSpilledChanges() > 0);
+				try (Stream<Path> spillFiles = Files.list(spillDirectory)) {
+					assertEquals(0, spillFiles.count());
+				}
+			} finally {
+				producer.shutdownNow();
+				queue.close();
+			}
+		}
+		
+		@Test
+		public void testUnreadableSpill() throws Exception {
+			logger.info("Testing changes spilled to a file that can't be read back are counted as lost");
+			
+			Path spillDirectory = tempRootFolder.newFolder("spill").toPath();
+			IngestionQueue queue = new IngestionQueue(IngestionQueue.Backpressure.SPILL, 10, spillDirectory);
+			try {
+				for (Path path: paths(0, 30)) {
+					assertTrue(queue.put(path, false));
+				}
+				try (Stream<Path> spillFiles = Files.list(spillDirectory)) {
+					for (Path spillFile: spillFiles.collect(Collectors.toList())) {
+						Files.delete(spillFile);
+					}
+				}
+				
+				// The changes in memory are taken, and the lost ones don't keep the consumer busy
+				assertEquals(paths(0, 10), takeAll(queue));
+				assertEquals(20, queue.getLostChanges());
+				assertEquals(0, queue.getDepth());
+				assertTrue(queue.take(10, 100).isEmpty());
+				
+				// Spilling starts again with a new file
+				for (Path path: paths(30, 20)) {
+					assertTrue(queue.put(path, false));
+				}
+				assertEquals(paths(30, 20), takeAll(queue));
+			} finally {
+				queue.close();
+			}
+		}
+		
+		@Test
+		public void testSample() throws Exception {
+			logger.info("Testing a burst beyond the ingestion queue capacity is sampled");
+			
+			IngestionQueue queue = IngestionQueue.parse("sample:100");
+			try {
+				queue.put(Paths.get("deleted.txt"), true);
+				List<Path> burst = paths(0, 10000);
+				for (Path path: burst) {
+					queue.put(path, false);
+				}
+				assertEquals(100, queue.getDepth());
+				assertEquals(10000 - 99, queue.getDroppedChanges());
+				
+				// The removal stays, and the sample isn't just the start of the burst
+				List<Path> taken = takeAll(queue);
+				assertEquals(Paths.get("deleted.txt"), taken.get(0));
+				assertTrue(burst.containsAll(taken.subList(1, taken.size())));
+				assertTrue(taken.stream().filter(path -> !paths(0, 1000).contains(path)).count() > 50);
+			} finally {
+				queue.close();
+			}
+		}
+		
+		@Test
+		public void testInvalidPolicies() {
+			for (String description: Arrays.asList("drop", "block:0", "spill:x")) {
+				try {
+					IngestionQueue.parse(description);
+					throw new AssertionError("Accepted backpressure policy " + description);
+				} catch (IllegalArgumentException iaEx) {
+					logger.info("Rejected backpressure policy " + description + ": " + iaEx.getMessage());
+				}
+			}
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,738 @@
+package com.kurtthealien.tfidf;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.apache.log4j.Logger;
+
+import com.kurtthealien.tfidf.impl.ByteTokenizer;
+import com.kurtthealien.tfidf.impl.ContentReader;
+import com.kurtthealien.tfidf.impl.FileMonitorImpl;
+import com.kurtthealien.tfidf.impl.ForkJoinTokenizer;
+import com.kurtthealien.tfidf.impl.KeywordMatcher;
+import com.kurtthealien.tfidf.impl.StringSplitTokenizer;
+import com.kurtthealien.tfidf.impl.TermFrequencyStore;
+import com.kurtthealien.tfidf.impl.TfIdfImpl;
+import com.kurtthealien.tfidf.impl.Tokenizer;
+
+/*
+ * Manual benchmarks, not run by surefire. Build the test classes and launch with:
+ *   java -cp target/classes:target/test-classes:<dependencies> com.kurtthealien.tfidf.TfIdfBenchmark <scenario>
+ */
+public class TfIdfBenchmark {
+
+	private static final Logger logger = Logger.getLogger("TfIdfLog");
+
+	private static final int VOCABULARY_SIZE = 5000;
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws IOException {
+		String scenario = (args.length > 0) ? args[0] : "keywords";
+
+		switch (scenario) {
+			case "keywords":
+				benchmarkKeywordCount();
+				break;
+			case "allocation":
+				benchmarkAllocation();
+				break;
+			case "terms":
+				benchmarkTermCount();
+				break;
+			case "scoring":
+				benchmarkScoring();
+				break;
+			case "workers":
+				benchmarkWorkers();
+				break;
+			case "log":
+				benchmarkIngestionLog();
+				break;
+			case "walk":
+				benchmarkDirectoryWalk();
+				break;
+			case "latency":
+				benchmarkReadLatency((args.length > 1) ? Long.parseLong(args[1]) : 5);
+				break;
+			case "dictionary":
+				benchmarkTokenDictionary((args.length > 1) ? Integer.parseInt(args[1]) : 1_000_000);
+				break;
+			case "sparse":
+				benchmarkSparseMatches((args.length > 1) ? Integer.parseInt(args[1]) : 200_000);
+				break;
+			case "profiles":
+				benchmarkProfiles((args.length > 1) ? Integer.parseInt(args[1]) : 20_000);
+				break;
+			case "queries":
+				benchmarkQueries((args.length > 1) ? Integer.parseInt(args[1]) : 20_000);
+				break;
+			case "listeners":
+				benchmarkListeners((args.length > 1) ? Integer.parseInt(args[1]) : 20_000);
+				break;
+			case "memory":
+				benchmarkStoreMemory((args.length > 1) ? Integer.parseInt(args[1]) : 1_000_000);
+				break;
+			case "hugefile":
+				benchmarkHugeFile((args.length > 1) ? Long.parseLong(args[1]) : 2048);
+				break;
+			default:
+				logger.error("Unknown benchmark scenario: " + scenario);
+		}
+	}
+
+	// Ingestion time must stay flat as the number of keywords grows
+	private static void benchmarkKeywordCount() throws IOException {
+		Path corpus = createCorpus(20, 2 * 1024 * 1024);
+
+		try {
+			for (int keywordCount: new int[] {1, 5, 10, 20, 40}) {
+				long bestTime = Long.MAX_VALUE;
+				for (int round = 0; round < ROUNDS; round++) {
+					TfIdf tfidf = new TfIdfImpl();
+					for (String keyword: vocabulary(keywordCount)) {
+						tfidf.addNewTerm(keyword);
+					}
+
+					long startTime = System.nanoTime();
+					for (Path fileName: listFiles(corpus)) {
+						tfidf.addNewFile(fileName);
+					}
+					bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+				}
+				logger.info(keywordCount + " keywords: " + bestTime / 1_000_000 + " ms");
+			}
+		} finally {
+			deleteCorpus(corpus);
+		}
+	}
+
+	// Bytes allocated by the ingesting thread with the original and the byte-level tokenizer
+	private static void benchmarkAllocation() throws IOException {
+		Path corpus = createCorpus(20, 2 * 1024 * 1024);
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+		try {
+			for (Tokenizer tokenizer: new Tokenizer[] {new StringSplitTokenizer(), new ByteTokenizer()}) {
+				long bestTime = Long.MAX_VALUE;
+				long bestAllocation = Long.MAX_VALUE;
+				for (int round = 0; round < ROUNDS; round++) {
+					TfIdf tfidf = new TfIdfImpl(() -> tokenizer);
+					for (String keyword: vocabulary(10)) {
+						tfidf.addNewTerm(keyword);
+					}
+
+					long startAllocation = threadBean.getCurrentThreadAllocatedBytes();
+					long startTime = System.nanoTime();
+					for (Path fileName: listFiles(corpus)) {
+						tfidf.addNewFile(fileName);
+					}
+					bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+					bestAllocation = Math.min(bestAllocation, threadBean.getCurrentThreadAllocatedBytes() - startAllocation);
+				}
+				double seconds = bestTime / 1e9;
+				logger.info(tokenizer.getClass().getSimpleName() + ": " + bestTime / 1_000_000 + " ms, "
+						+ bestAllocation / 1024 + " KB allocated, " + (long) (bestAllocation / seconds / (1024 * 1024)) + " MB/s");
+			}
+		} finally {
+			deleteCorpus(corpus);
+		}
+	}
+
+	// Matching cost per token must not depend on the size of the term list
+	private static void benchmarkTermCount() throws IOException {
+		Path corpus = createCorpus(20, 2 * 1024 * 1024);
+
+		try {
+			for (int termCount: new int[] {1, 10, 100, 1000, 10000}) {
+				long bestTime = Long.MAX_VALUE;
+				for (int round = 0; round < ROUNDS; round++) {
+					TfIdf tfidf = new TfIdfImpl();
+					for (String keyword: vocabulary(termCount)) {
+						tfidf.addNewTerm(keyword);
+					}
+
+					long startTime = System.nanoTime();
+					for (Path fileName: listFiles(corpus)) {
+						tfidf.addNewFile(fileName);
+					}
+					bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+				}
+				logger.info(termCount + " terms: " + bestTime / 1_000_000 + " ms");
+			}
+		} finally {
+			deleteCorpus(corpus);
+		}
+	}
+
+	// Report time over many small files, where scoring and not reading dominates
+	private static void benchmarkScoring() throws IOException {
+		Path corpus = createCorpus(20000, 2 * 1024);
+
+		try {
+			TfIdf tfidf = new TfIdfImpl();
+			for (String keyword: vocabulary(100)) {
+				tfidf.addNewTerm(keyword);
+			}
+			for (Path fileName: listFiles(corpus)) {
+				tfidf.addNewFile(fileName);
+			}
+
+			long bestTime = Long.MAX_VALUE;
+			Map<Path, Double> results = null;
+			for (int round = 0; round < 10 * ROUNDS; round++) {
+				long startTime = System.nanoTime();
+				results = tfidf.retrieveResults(true, 10);
+				bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+			}
+			logger.info("Report over " + tfidf.getFileList().size() + " files: " + bestTime / 1_000 + " us");
+			logger.info("Results: " + results.values());
+		} finally {
+			deleteCorpus(corpus);
+		}
+	}
+
+	// Ingestion time of a whole folder from 1 worker up to twice the available cores
+	private static void benchmarkWorkers() throws IOException {
+		Path corpus = createCorpus(400, 256 * 1024);
+		List<Path> fileNames = listFiles(corpus);
+		int maxWorkers = 2 * Runtime.getRuntime().availableProcessors();
+
+		try {
+			for (int workerNumber = 1; workerNumber <= maxWorkers; workerNumber *= 2) {
+				long bestTime = Long.MAX_VALUE;
+				for (int round = 0; round < ROUNDS; round++) {
+					TfIdf tfidf = new TfIdfImpl(workerNumber);
+					for (String keyword: vocabulary(10)) {
+						tfidf.addNewTerm(keyword);
+					}
+
+					long startTime = System.nanoTime();
+					tfidf.addNewFiles(fileNames);
+					bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+				}
+				logger.info(workerNumber + " workers: " + bestTime / 1_000_000 + " ms");
+			}
+		} finally {
+			deleteCorpus(corpus);
+		}
+	}
+
+	// Ingestion of many small files without a log, logging with group commit, and forcing the log after every file
+	private static void benchmarkIngestionLog() throws IOException {
+		Path corpus = createCorpus(20000, 2 * 1024);
+		List<Path> fileNames = listFiles(corpus);
+		Path logFile = Files.createTempFile("tfidf-bench", ".log");
+
+		try {
+			for (String mode: new String[] {"no log", "group commit", "fsync per file"}) {
+				long bestTime = Long.MAX_VALUE;
+				for (int round = 0; round < ROUNDS; round++) {
+					Files.deleteIfExists(logFile);
+					TfIdf tfidf = new TfIdfImpl();
+					for (String keyword: vocabulary(10)) {
+						tfidf.addNewTerm(keyword);
+					}
+					if (!mode.equals("no log")) {
+						tfidf.openLog(logFile);
+					}
+
+					long startTime = System.nanoTime();
+					if (mode.equals("fsync per file")) {
+						fileNames.forEach(tfidf::addNewFile);
+					} else {
+						tfidf.addNewFiles(fileNames);
+					}
+					bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+				}
+				logger.info(mode + ": " + bestTime / 1_000_000 + " ms for " + fileNames.size() + " files");
+			}
+		} finally {
+			Files.deleteIfExists(logFile);
+			deleteCorpus(corpus);
+		}
+	}
+
+	// Storage with a fixed latency per read, such as a network share, stood in by a sleep before every read.
+	// The worker pool only overlaps as many reads as it has threads, while the separate read stage overlaps
+	// as many as it keeps in flight with the same tokenizing workers
+	private static void benchmarkReadLatency(long latencyMillis) throws IOException {
+		Path corpus = createCorpus(2000, 8 * 1024);
+		List<Path> fileNames = listFiles(corpus);
+		int workerNumber = Runtime.getRuntime().availableProcessors();
+
+		Supplier<Tokenizer> slowTokenizer = () -> {
+			Tokenizer tokenizer = new ForkJoinTokenizer();
+			return (fileName, matcher, termCounts) -> {
+				sleep(latencyMillis);
+				tokenizer.countTerms(fileName, matcher, termCounts);
+			};
+		};
+		ContentReader slowReader = (fileName, fileSize) -> {
+			sleep(latencyMillis);
+			return ContentReader.fileChannel().read(fileName, fileSize);
+		};
+
+		try {
+			for (String mode: new String[] {"worker pool", "large worker pool", "read stage"}) {
+				long bestTime = Long.MAX_VALUE;
+				for (int round = 0; round < ROUNDS; round++) {
+					TfIdf tfidf;
+					if (mode.equals("worker pool")) {
+						tfidf = new TfIdfImpl(slowTokenizer, workerNumber);
+					} else if (mode.equals("large worker pool")) {
+						tfidf = new TfIdfImpl(slowTokenizer, 64);
+					} else {
+						tfidf = new TfIdfImpl(ForkJoinTokenizer::new, workerNumber, 256, slowReader);
+					}
+					for (String keyword: vocabulary(10)) {
+						tfidf.addNewTerm(keyword);
+					}
+
+					long startTime = System.nanoTime();
+					tfidf.addNewFiles(fileNames);
+					bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+				}
+				logger.info(mode + ": " + bestTime / 1_000_000 + " ms for " + fileNames.size() + " files with " + latencyMillis + " ms per read");
+			}
+		} finally {
+			deleteCorpus(corpus);
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException intEx) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Heap kept and ingestion time with and without a token dictionary, against the time to add a term from it.
+	// Without the dictionary a new term means ingesting the whole corpus again. Words are uniformly distributed,
+	// so files share fewer tokens than natural text and the rows are larger than they would usually be.
+	private static void benchmarkTokenDictionary(int fileNumber) throws IOException {
+		Path corpus = createCorpus(fileNumber, 1024);
+		List<Path> fileNames = listFiles(corpus);
+
+		try {
+			for (boolean keepDictionary: new boolean[] {false, true}) {
+				long heapBefore = usedHeap();
+				TfIdfImpl tfidf = new TfIdfImpl();
+				if (keepDictionary) {
+					tfidf.keepTokenDictionary();
+				}
+				for (String keyword: vocabulary(10)) {
+					tfidf.addNewTerm(keyword);
+				}
+
+				long startTime = System.nanoTime();
+				tfidf.addNewFiles(fileNames);
+				long ingestionTime = System.nanoTime() - startTime;
+				tfidf.retrieveResults(true, 10);
+				long heapUsed = usedHeap() - heapBefore;
+				logger.info((keepDictionary ? "Token dictionary: " : "No dictionary: ") + ingestionTime / 1_000_000 + " ms to ingest "
+						+ fileNames.size() + " files, " + heapUsed / (1024 * 1024) + " MB of heap (" + heapUsed / fileNames.size() + " bytes per file)");
+
+				if (keepDictionary) {
+					for (String newTerm: new String[] {"word4321", "word17", "missing"}) {
+						startTime = System.nanoTime();
+						tfidf.addNewTerm(newTerm);
+						long additionTime = System.nanoTime() - startTime;
+						startTime = System.nanoTime();
+						tfidf.retrieveResults(true, 10);
+						logger.info("  Term " + newTerm + " added in " + additionTime / 1_000_000 + " ms, results updated in "
+								+ (System.nanoTime() - startTime) / 1_000_000 + " ms");
+					}
+				}
+			}
+		} finally {
+			deleteCorpus(corpus);
+		}
+	}
+
+	// Report time when only 1% of the files have any keyword, and so most of the corpus can't be in the results
+	private static void benchmarkSparseMatches(int fileNumber) throws IOException {
+		Path corpus = createCorpus(fileNumber, 512);
+		List<Path> fileNames = listFiles(corpus);
+		List<String> keywords = Arrays.asList("needle0", "needle1", "needle2", "needle3", "needle4");
+
+		Random random = new Random(42);
+		for (int i = 0; i < fileNames.size(); i += 100) {
+			try (BufferedWriter writer = Files.newBufferedWriter(fileNames.get(i), StandardOpenOption.APPEND)) {
+				for (String keyword: keywords) {
+					int count = random.nextInt(8);
+					for (int j = 0; j < count; j++) {
+						writer.write(" " + keyword);
+					}
+				}
+			}
+		}
+
+		try {
+			TfIdf tfidf = new TfIdfImpl();
+			keywords.forEach(tfidf::addNewTerm);
+			tfidf.addNewFiles(fileNames);
+
+			for (int resultNumber: new int[] {10, 1000}) {
+				long bestTime = Long.MAX_VALUE;
+				for (int round = 0; round < 200; round++) {   //reports are short, so it takes many of them to warm up
+					long startTime = System.nanoTime();
+					tfidf.retrieveResults(true, resultNumber);
+					bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+				}
+				logger.info("Top " + resultNumber + " of " + fileNames.size() + " files, 1% matching: " + bestTime / 1000 + " us");
+			}
+		} finally {
+			deleteCorpus(corpus);
+		}
+	}
+
+	// Keyword profiles of 10 keywords each, all counted over one index in the same pass over every file,
+	// against an index per profile as separate processes would keep. Bytes read are counted by the read stage.
+	private static void benchmarkProfiles(int fileNumber) throws IOException {
+		Path corpus = createCorpus(fileNumber, 4 * 1024);
+		List<Path> fileNames = listFiles(corpus);
+		List<String> keywords = vocabulary(100);
+		AtomicLong bytesRead = new AtomicLong();
+		ContentReader countingReader = (fileName, fileSize) -> {
+			bytesRead.addAndGet(fileSize);
+			return ContentReader.fileChannel().read(fileName, fileSize);
+		};
+
+		try {
+			for (String mode: new String[] {"1 profile", "10 profiles", "10 separate indexes"}) {
+				int profileNumber = mode.equals("1 profile") ? 1 : 10;
+				int indexNumber = mode.equals("10 separate indexes") ? 10 : 1;
+				long bestTime = Long.MAX_VALUE;
+				long bestReportTime = Long.MAX_VALUE;
+				for (int round = 0; round < ROUNDS; round++) {
+					bytesRead.set(0);
+					List<TfIdf> indexes = new ArrayList<>();
+					for (int index = 0; index < indexNumber; index++) {
+						TfIdf tfidf = new TfIdfImpl(ForkJoinTokenizer::new, 1, 16, countingReader);
+						List<String> indexKeywords = (indexNumber == 1) ? keywords.subList(0, profileNumber * 10) : keywords.subList(index * 10, index * 10 + 10);
+						indexKeywords.forEach(tfidf::addNewTerm);
+						indexes.add(tfidf);
+					}
+
+					long startTime = System.nanoTime();
+					for (TfIdf tfidf: indexes) {
+						tfidf.addNewFiles(fileNames);
+					}
+					bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+
+					for (int report = 0; report < 50; report++) {   //reports are short, so it takes many of them to warm up
+						startTime = System.nanoTime();
+						for (int profile = 0; profile < profileNumber; profile++) {
+							TfIdf tfidf = indexes.get(profile % indexNumber);
+							tfidf.retrieveResults(keywords.subList(profile * 10, profile * 10 + 10), 10);
+						}
+						bestReportTime = Math.min(bestReportTime, System.nanoTime() - startTime);
+					}
+				}
+				logger.info(mode + ": " + bestTime / 1_000_000 + " ms and " + bytesRead.get() / (1024 * 1024) + " MB read to ingest "
+						+ fileNames.size() + " files, " + bestReportTime / 1000 + " us to report every profile");
+			}
+		} finally {
+			deleteCorpus(corpus);
+		}
+	}
+
+	// Load test of the query server: clients asking for random result numbers and keyword subsets as fast as
+	// they can, with a static index and with a file registered again every 100 ms, so cached answers expire.
+	// Launch with -Dsun.net.httpserver.nodelay=true, as the app sets it, or latencies show delayed ACKs.
+	private static void benchmarkQueries(int fileNumber) throws IOException {
+		Path corpus = createCorpus(fileNumber, 1024);
+		List<Path> fileNames = listFiles(corpus);
+		List<String> keywords = vocabulary(20);
+		int clientNumber = 8;
+		long durationMillis = 10_000;
+
+		Random random = new Random(42);
+		List<String> subsets = new ArrayList<>();
+		subsets.add("");
+		for (int subset = 0; subset < 15; subset++) {
+			List<String> subsetKeywords = new ArrayList<>(keywords);
+			Collections.shuffle(subsetKeywords, random);
+			subsets.add(String.join(",", subsetKeywords.subList(0, 1 + random.nextInt(5))));
+		}
+		int[] resultNumbers = {10, 100, 1000};
+
+		TfIdf tfidf = new TfIdfImpl();
+		keywords.forEach(tfidf::addNewTerm);
+		tfidf.addNewFiles(fileNames);
+		Object indexLock = new Object();
+
+		QueryServer queryServer = new QueryServer(tfidf, indexLock, 0);
+		queryServer.start();
+		try {
+			for (boolean changingIndex: new boolean[] {false, true}) {
+				long hitsBefore = queryServer.getCacheHits();
+				long missesBefore = queryServer.getCacheMisses();
+				long deadline = System.nanoTime() + durationMillis * 1_000_000;
+
+				List<Thread> clients = new ArrayList<>();
+				List<long[]> clientLatencies = new ArrayList<>();
+				int[] clientQueries = new int[clientNumber];
+				for (int client = 0; client < clientNumber; client++) {
+					int clientId = client;
+					long[] latencies = new long[1_000_000];
+					clientLatencies.add(latencies);
+					Thread clientThread = new Thread(() -> {
+						Random clientRandom = new Random(clientId);
+						while (System.nanoTime() < deadline && clientQueries[clientId] < latencies.length) {
+							String query = "/results?n=" + resultNumbers[clientRandom.nextInt(resultNumbers.length)]
+									+ "&terms=" + subsets.get(clientRandom.nextInt(subsets.size()));
+							long startTime = System.nanoTime();
+							try {
+								HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + queryServer.getPort() + query).openConnection();
+								try (InputStream body = connection.getInputStream()) {
+									body.readAllBytes();
+								}
+							} catch (IOException ioEx) {
+								logger.error("Error querying " + query + ": " + ioEx.getMessage());
+								return;
+							}
+							latencies[clientQueries[clientId]++] = System.nanoTime() - startTime;
+						}
+					});
+					clients.add(clientThread);
+					clientThread.start();
+				}
+
+				int registeredFiles = 0;
+				for (Thread clientThread: clients) {
+					while (clientThread.isAlive()) {
+						if (changingIndex) {
+							synchronized (indexLock) {
+								tfidf.addNewFile(fileNames.get(random.nextInt(fileNames.size())));
+							}
+							registeredFiles++;
+						}
+						sleep(100);
+					}
+				}
+
+				int queryNumber = 0;
+				for (int queries: clientQueries) {
+					queryNumber += queries;
+				}
+				long[] allLatencies = new long[queryNumber];
+				int position = 0;
+				for (int client = 0; client < clientNumber; client++) {
+					System.arraycopy(clientLatencies.get(client), 0, allLatencies, position, clientQueries[client]);
+					position += clientQueries[client];
+				}
+				Arrays.sort(allLatencies);
+
+				logger.info((changingIndex ? "Index changing every 100 ms (" + registeredFiles + " files registered again): " : "Static index: ")
+						+ queryNumber + " queries from " + clientNumber + " clients, " + queryNumber * 1000L / durationMillis + " per second, "
+						+ (queryServer.getCacheHits() - hitsBefore) + " cached and " + (queryServer.getCacheMisses() - missesBefore) + " computed");
+				logger.info("  p50 " + percentile(allLatencies, 0.50) / 1000 + " us, p99 " + percentile(allLatencies, 0.99) / 1000
+						+ " us, p99.9 " + percentile(allLatencies, 0.999) / 1000 + " us, max " + allLatencies[queryNumber - 1] / 1000 + " us");
+			}
+		} finally {
+			queryServer.stop();
+			deleteCorpus(corpus);
+		}
+	}
+
+	private static long percentile(long[] sortedValues, double fraction) {
+		return sortedValues[(int) Math.min(sortedValues.length - 1, Math.ceil(fraction * sortedValues.length) - 1)];
+	}
+
+	// Ingestion in batches of 256 files, as the app does, with listeners of the best 10 files. Results are computed
+	// once per batch for each listener, and a slow listener only gets fewer, larger deltas
+	private static void benchmarkListeners(int fileNumber) throws IOException {
+		Path corpus = createCorpus(fileNumber, 1024);
+		List<Path> fileNames = listFiles(corpus);
+		List<String> keywords = vocabulary(20);
+
+		try {
+			for (String mode: new String[] {"no listener", "1 listener", "10 listeners", "1 listener taking 100 ms"}) {
+				long bestTime = Long.MAX_VALUE;
+				AtomicLong calls = new AtomicLong();
+				for (int round = 0; round < ROUNDS; round++) {
+					TfIdf tfidf = new TfIdfImpl();
+					keywords.forEach(tfidf::addNewTerm);
+					calls.set(0);
+					int listenerNumber = mode.startsWith("10") ? 10 : mode.startsWith("1 ") ? 1 : 0;
+					for (int listener = 0; listener < listenerNumber; listener++) {
+						tfidf.addResultListener(keywords.subList(listener, listener + 5), 10, delta -> {
+							calls.incrementAndGet();
+							if (mode.endsWith("100 ms")) {
+								sleep(100);
+							}
+						});
+					}
+
+					long startTime = System.nanoTime();
+					for (int batchStart = 0; batchStart < fileNames.size(); batchStart += 256) {
+						tfidf.addNewFiles(fileNames.subList(batchStart, Math.min(fileNames.size(), batchStart + 256)));
+						tfidf.publishResults();
+					}
+					bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+				}
+				logger.info(mode + ": " + bestTime / 1_000_000 + " ms to ingest " + fileNames.size() + " files, " + calls.get() + " listener calls in the last round");
+			}
+		} finally {
+			deleteCorpus(corpus);
+		}
+	}
+
+	// Heap taken by the term frequency store with 10 of 100 terms per file, against what its arrays account for.
+	// The rest is the map of file ids and the file names.
+	private static void benchmarkStoreMemory(int fileNumber) {
+		int termNumber = 100;
+		List<Path> fileNames = new ArrayList<>(fileNumber);
+		for (int i = 0; i < fileNumber; i++) {
+			fileNames.add(Paths.get("files", "file" + i + ".txt"));
+		}
+
+		long heapBefore = usedHeap();
+		TermFrequencyStore store = new TermFrequencyStore(termNumber);
+		long[] termCounts = new long[termNumber];
+		for (int i = 0; i < fileNumber; i++) {
+			Arrays.fill(termCounts, 0);
+			for (int term = 0; term < 10; term++) {
+				termCounts[(i + term) % termNumber] = 1 + (i + term) % 7;
+			}
+			store.put(fileNames.get(i), termCounts);
+		}
+		long heapUsed = usedHeap() - heapBefore;
+		logger.info(store.size() + " files: " + heapUsed / fileNumber + " bytes per file of heap, "
+				+ store.getArrayBytes() / fileNumber + " of them in the arrays");
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	// Initial walk of date-partitioned trees, 100 subdirectories per parent and a file in each, and the
+	// time to notice a new file once all of them are watched
+	private static void benchmarkDirectoryWalk() throws IOException {
+		for (int directoryNumber: new int[] {1000, 5000, 10000, 20000}) {
+			Path root = Files.createTempDirectory("tfidf-bench");
+			try {
+				for (int i = 0; i < directoryNumber; i++) {
+					Path partition = Files.createDirectories(root.resolve("p" + i / 100).resolve("d" + i % 100));
+					Files.writeString(partition.resolve("file.txt"), "word1 word2");
+				}
+
+				long startTime = System.nanoTime();
+				FileMonitor fileMonitor = new FileMonitorImpl();
+				fileMonitor.configure(root);
+				long configureTime = System.nanoTime() - startTime;
+				startTime = System.nanoTime();
+				int fileNumber = fileMonitor.retrieveCurrentTextFiles().size();
+				long listTime = System.nanoTime() - startTime;
+
+				Files.writeString(root.resolve("p0").resolve("d0").resolve("new.txt"), "word1");
+				startTime = System.nanoTime();
+				List<Path> newFiles = new ArrayList<>();
+				while (newFiles.isEmpty()) {
+					newFiles = fileMonitor.retrieveNewTextFiles();
+				}
+				long noticeTime = System.nanoTime() - startTime;
+
+				logger.info(directoryNumber + " directories: watched in " + configureTime / 1_000_000 + " ms, " + fileNumber
+						+ " files listed in " + listTime / 1_000_000 + " ms, new file noticed in " + noticeTime / 1_000 + " us");
+			} finally {
+				deleteCorpus(root);
+			}
+		}
+	}
+
+	// A single huge file counted on one core and split in chunks on the common ForkJoinPool
+	private static void benchmarkHugeFile(long fileMegabytes) throws IOException {
+		Path corpus = createCorpus(1, fileMegabytes * 1024 * 1024);
+		Path fileName = listFiles(corpus).get(0);
+		KeywordMatcher matcher = new KeywordMatcher(vocabulary(10));
+
+		try {
+			logger.info("Common pool parallelism: " + ForkJoinPool.commonPool().getParallelism());
+			for (Tokenizer tokenizer: new Tokenizer[] {new ByteTokenizer(), new ForkJoinTokenizer()}) {
+				long bestTime = Long.MAX_VALUE;
+				long[] termCounts = null;
+				for (int round = 0; round < ROUNDS; round++) {
+					termCounts = new long[matcher.size()];
+					long startTime = System.nanoTime();
+					tokenizer.countTerms(fileName, matcher, termCounts);
+					bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+				}
+				logger.info(tokenizer.getClass().getSimpleName() + ": " + bestTime / 1_000_000 + " ms, counts " + Arrays.toString(termCounts));
+			}
+		} finally {
+			deleteCorpus(corpus);
+		}
+	}
+
+	static List<String> vocabulary(int size) {
+		List<String> words = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			words.add("word" + i);
+		}
+		return words;
+	}
+
+	static Path createCorpus(int fileNumber, long fileSize) throws IOException {
+		Path corpus = Files.createTempDirectory("tfidf-bench");
+		Random random = new Random(42);
+
+		for (int i = 0; i < fileNumber; i++) {
+			writeFile(corpus.resolve(String.format("file%07d.txt", i)), fileSize, random);
+		}
+		logger.info("Created " + fileNumber + " files of " + fileSize + " bytes in " + corpus);
+
+		return corpus;
+	}
+
+	static void writeFile(Path fileName, long fileSize, Random random) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(fileName)) {
+			long written = 0;
+			while (written < fileSize) {
+				String word = "word" + random.nextInt(VOCABULARY_SIZE);
+				String separator = (random.nextInt(12) == 0) ? "\r\n" : " ";
+				writer.write(word);
+				writer.write(separator);
+				written += word.length() + separator.length();
+			}
+		}
+	}
+
+	static List<Path> listFiles(Path corpus) throws IOException {
+		try (Stream<Path> files = Files.list(corpus)) {
+			List<Path> fileList = new ArrayList<>();
+			files.sorted().forEach(fileList::add);
+			return fileList;
+		}
+	}
+
+	static void deleteCorpus(Path corpus) throws IOException {
+		try (Stream<Path> files = Files.walk(corpus)) {
+			files.sorted(Comparator.reverseOrder()).forEach(fileName -> fileName.toFile().delete());
+		}
+	}
+}
@@ -1,18 +1,45 @@
 package com.kurtthealien.tfidf;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 import org.junit.Rule;
@@ -21,7 +48,15 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import com.kurtthealien.tfidf.TfIdf;
+import com.kurtthealien.tfidf.impl.ByteTokenizer;
+import com.kurtthealien.tfidf.impl.ConcurrentTfIdfImpl;
+import com.kurtthealien.tfidf.impl.ContentReader;
+import com.kurtthealien.tfidf.impl.ForkJoinTokenizer;
+import com.kurtthealien.tfidf.impl.KeywordMatcher;
+import com.kurtthealien.tfidf.impl.StringSplitTokenizer;
+import com.kurtthealien.tfidf.impl.TermFrequencyStore;
 import com.kurtthealien.tfidf.impl.TfIdfImpl;
+import com.kurtthealien.tfidf.impl.Tokenizer;
 
 import org.junit.experimental.runners.Enclosed;
 import org.junit.rules.TemporaryFolder;
@@ -31,6 +66,30 @@ public class TfIdfTest {
 	
 	private static final Logger logger = Logger.getLogger("TfIdfLog");
 	
+	// Copies the test resources to the folder, keeping their names, and returns the copies in the same order
+	private static List<Path> copyResources(TemporaryFolder folder, List<String> files) throws IOException {
+		return copyResources(folder, files, "");
+	}
+	
+	// Several copies of every test resource, named with their copy number as prefix
+	private static List<Path> copyResources(TemporaryFolder folder, List<String> files, int copies) throws IOException {
+		List<Path> fileNames = new ArrayList<>();
+		for (int i = 0; i < copies; i++) {
+			fileNames.addAll(copyResources(folder, files, i + "_"));
+		}
+		return fileNames;
+	}
+	
+	private static List<Path> copyResources(TemporaryFolder folder, List<String> files, String prefix) throws IOException {
+		List<Path> fileNames = new ArrayList<>();
+		for (String file: files) {
+			Path fileName = folder.getRoot().toPath().resolve(prefix + file);
+			Files.copy(Paths.get("src", "test", "resources", file), fileName);
+			fileNames.add(fileName);
+		}
+		return fileNames;
+	}
+	
 	public static class CheckParameterLists {
 		List<String> terms = Arrays.asList("word1", "word2", "word3");
 		List<String> files = Arrays.asList("file1.txt", "file2.txt", "file3.txt","file4.txt");
@@ -105,6 +164,1487 @@ public class TfIdfTest {
 		}
 	 }
 	
+	public static class CheckDocumentFrequencies {
+		List<String> terms = Arrays.asList("password", "try", "again");
+		List<String> files = Arrays.asList("file1.txt", "file2.txt", "file3.txt", "file4.txt");
+		
+		@Test
+		public void checkFileRegisteredTwice() {
+			logger.info("Testing idf when files are registered more than once: " + files.toString());
+			
+			TfIdf tfidf = new TfIdfImpl();
+			TfIdf expectedTfidf = new TfIdfImpl();
+			
+			for(String term: terms) {
+				tfidf.addNewTerm(term);
+				expectedTfidf.addNewTerm(term);
+			}
+			
+			for(String file: files) {
+				Path fileName = Paths.get("src", "test", "resources", file);
+				assertEquals(true, tfidf.addNewFile(fileName));
+				assertEquals(true, tfidf.addNewFile(fileName));
+				assertEquals(true, expectedTfidf.addNewFile(fileName));
+			}
+			
+			Map<Path,Double> expectedResults = expectedTfidf.retrieveResults(true, files.size());
+			Map<Path,Double> tfidfResults = tfidf.retrieveResults(true, files.size());
+			
+			logger.info("Comparing expected " + expectedResults.toString() + " with retrieved " + tfidfResults.toString());
+			assertEquals(expectedResults, tfidfResults);
+		}
+	}
+	
+	public static class CheckTermFrequencyStore {
+		int fileNumber = 100_000;
+		int termNumber = 100;
+		int termsPerFile = 10;
+		
+		// Keyword counts for a file: termsPerFile consecutive keywords, starting at a different one for each file
+		private long[] fileCounts(int fileIndex, long[] termCounts) {
+			Arrays.fill(termCounts, 0);
+			for (int i = 0; i < termsPerFile; i++) {
+				termCounts[(fileIndex + i) % termNumber] = 1 + (fileIndex + i) % 7;
+			}
+			return termCounts;
+		}
+		
+		// Every term's posting list has the files whose rows have it, in file id order, and a few stale entries
+		// with a count of 0 at most, never more than the live ones once there are enough of them
+		private void checkPostingLists(TermFrequencyStore store) {
+			for (int termId = 0; termId < store.getTermNumber(); termId++) {
+				int position = 0;
+				int liveEntries = 0;
+				int staleEntries = 0;
+				for (int fileId = 0; fileId < store.getFileIdLimit(); fileId++) {
+					long count = (store.getFileName(fileId) == null) ? 0 : store.getCount(fileId, termId);
+					if (position < store.getPostingLength(termId) && store.getPostingFileId(termId, position) == fileId) {
+						assertEquals(count, store.getPostingCount(termId, position));
+						assertTrue(count <= store.getMaxCount(termId));
+						if (count == 0) {
+							staleEntries++;
+						} else {
+							liveEntries++;
+						}
+						position++;
+					} else {
+						assertEquals(0, count);
+					}
+				}
+				assertEquals(position, store.getPostingLength(termId));
+				assertTrue(staleEntries < Math.max(64, liveEntries));
+			}
+		}
+		
+		@Test
+		public void checkMemoryFootprint() {
+			logger.info("Testing term frequency store footprint with " + fileNumber + " files and " + termNumber + " terms");
+			
+			TermFrequencyStore store = new TermFrequencyStore(termNumber);
+			long[] termCounts = new long[termNumber];
+			for (int i = 0; i < fileNumber; i++) {
+				store.put(Paths.get("files", "file" + i + ".txt"), fileCounts(i, termCounts));
+			}
+			
+			long bytesPerFile = store.getArrayBytes() / fileNumber;
+			logger.info("Term frequency store arrays take " + bytesPerFile + " bytes per file");
+			
+			assertEquals(fileNumber, store.size());
+			for (int i = 0; i < fileNumber; i += 9973) {
+				assertArrayEquals(fileCounts(i, termCounts), store.getCounts(Paths.get("files", "file" + i + ".txt")));
+			}
+			
+			// A map of boxed counts per file needs several KB per file for 100 terms, while the arrays need 28 bytes
+			// per file and 16 per term in it, twice that at most while they grow. The heap is measured by the benchmark.
+			assertTrue(bytesPerFile < 512);
+		}
+		
+		@Test
+		public void checkFilesRegisteredAgain() {
+			logger.info("Testing term frequency store when files are registered again");
+			
+			TermFrequencyStore store = new TermFrequencyStore(termNumber);
+			long[] termCounts = new long[termNumber];
+			for (int round = 0; round < 5; round++) {
+				for (int i = 0; i < 10000; i++) {
+					store.put(Paths.get("file" + i), fileCounts(i + round, termCounts));
+				}
+			}
+			
+			assertEquals(10000, store.size());
+			for (int i = 0; i < 10000; i++) {
+				assertArrayEquals(fileCounts(i + 4, termCounts), store.getCounts(Paths.get("file" + i)));
+			}
+			checkPostingLists(store);
+		}
+		
+		@Test
+		public void checkFilesRemoved() {
+			logger.info("Testing term frequency store when files are removed and added");
+			
+			TermFrequencyStore store = new TermFrequencyStore(termNumber);
+			long[] termCounts = new long[termNumber];
+			List<Path> expectedFiles = new ArrayList<>();
+			for (int i = 0; i < 50000; i++) {
+				Path fileName = Paths.get("file" + i);
+				store.put(fileName, fileCounts(i, termCounts));
+				expectedFiles.add(fileName);
+				
+				// Every other file added is removed later on, leaving ids to reclaim when compacting
+				if (i % 2 == 1) {
+					Path removedName = Paths.get("file" + (i / 2));
+					assertTrue(store.remove(removedName));
+					expectedFiles.remove(removedName);
+				}
+			}
+			
+			assertEquals(false, store.remove(Paths.get("file0")));
+			assertEquals(expectedFiles.size(), store.size());
+			assertEquals(expectedFiles, store.getFileList());
+			for (Path fileName: expectedFiles) {
+				int i = Integer.parseInt(fileName.toString().substring(4));
+				assertArrayEquals(fileCounts(i, termCounts), store.getCounts(fileName));
+				assertEquals(fileName, store.getFileName(store.getFileId(fileName)));
+			}
+			assertTrue(store.getFileIdLimit() < 50000);
+			checkPostingLists(store);
+			
+			// A new term keeps the postings of the others
+			long[] newTermCounts = new long[store.getFileIdLimit()];
+			for (int fileId = 0; fileId < newTermCounts.length; fileId += 3) {
+				newTermCounts[fileId] = fileId % 5;
+			}
+			TermFrequencyStore extendedStore = store.withNewTerm(newTermCounts);
+			assertEquals(termNumber + 1, extendedStore.getTermNumber());
+			assertEquals(store.getFileList(), extendedStore.getFileList());
+			checkPostingLists(extendedStore);
+		}
+	}
+	
+	public static class CompareRounding {
+		List<String> terms = Arrays.asList("password", "try", "again", "cositas", "mas");
+		List<String> vocabulary = Arrays.asList("password", "try", "again", "cositas", "mas", "y", "otros", "con");
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+		
+		private double roundValue(double inputValue) {
+			return new BigDecimal(inputValue).setScale(4, RoundingMode.HALF_UP).doubleValue();
+		}
+		
+		// Original algorithm: every idf, per-keyword tfidf and total rounded with BigDecimal
+		private Map<Path, Double> calculateExpectedResults(Map<Path, List<String>> fileContents) {
+			Map<String, Double> idfs = new HashMap<>();
+			for (String term: terms) {
+				double numDocsWithWord = fileContents.values().stream().filter(tokens -> tokens.contains(term)).count();
+				idfs.put(term, (numDocsWithWord == 0) ? 0.0 : roundValue(Math.log10(fileContents.size() / numDocsWithWord)));
+			}
+			
+			Map<Path, Double> expectedResults = new HashMap<>();
+			for (Map.Entry<Path, List<String>> file: fileContents.entrySet()) {
+				double totalTfIdf = 0.0;
+				for (String term: terms) {
+					long tf = file.getValue().stream().filter(term::equals).count();
+					totalTfIdf += roundValue(tf * idfs.get(term));
+				}
+				expectedResults.put(file.getKey(), roundValue(totalTfIdf / terms.size()));
+			}
+			return expectedResults;
+		}
+		
+		@Test
+		public void checkRandomCorpus() throws IOException {
+			logger.info("Testing tfidf rounding against the BigDecimal algorithm with a random corpus");
+			
+			TfIdf tfidf = new TfIdfImpl();
+			for (String term: terms) {
+				tfidf.addNewTerm(term);
+			}
+			
+			Random random = new Random(7);
+			Map<Path, List<String>> fileContents = new HashMap<>();
+			for (int i = 0; i < 300; i++) {
+				List<String> tokens = new ArrayList<>();
+				int tokenNumber = 1 + random.nextInt(40);
+				for (int j = 0; j < tokenNumber; j++) {
+					tokens.add(vocabulary.get(random.nextInt(vocabulary.size())));
+				}
+				
+				Path fileName = tempRootFolder.newFile("file" + i + ".txt").toPath();
+				Files.writeString(fileName, String.join(" ", tokens));
+				fileContents.put(fileName, tokens);
+				tfidf.addNewFile(fileName);
+			}
+			
+			Map<Path, Double> expectedResults = calculateExpectedResults(fileContents);
+			Map<Path, Double> tfidfResults = tfidf.retrieveResults(true, fileContents.size());
+			
+			assertEquals(expectedResults, tfidfResults);
+		}
+	}
+	
+	public static class CheckParallelIngestion {
+		List<String> terms = Arrays.asList("password", "try", "again");
+		List<String> files = Arrays.asList("file1.txt", "file2.txt", "file3.txt", "file4.txt");
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+		
+		@Test
+		public void checkSameResultsAsSequential() throws IOException {
+			logger.info("Testing parallel ingestion against sequential ingestion: " + files.toString());
+			
+			List<Path> fileNames = copyResources(tempRootFolder, files, 25);
+			
+			TfIdf sequentialTfidf = new TfIdfImpl();
+			TfIdf parallelTfidf = new TfIdfImpl(4);
+			for (String term: terms) {
+				sequentialTfidf.addNewTerm(term);
+				parallelTfidf.addNewTerm(term);
+			}
+			
+			for (Path fileName: fileNames) {
+				sequentialTfidf.addNewFile(fileName);
+			}
+			assertEquals(fileNames.size(), parallelTfidf.addNewFiles(fileNames));
+			
+			assertEquals(sequentialTfidf.getFileList(), parallelTfidf.getFileList());
+			assertEquals(sequentialTfidf.retrieveResults(true, fileNames.size()), parallelTfidf.retrieveResults(true, fileNames.size()));
+		}
+		
+		@Test
+		public void checkSeparateReadStage() throws IOException {
+			logger.info("Testing ingestion with a separate read stage against sequential ingestion: " + files.toString());
+			
+			List<Path> fileNames = copyResources(tempRootFolder, files, 25);
+			fileNames.add(tempRootFolder.getRoot().toPath().resolve("missing.txt"));
+			
+			//slow reads finishing out of order
+			ContentReader slowReader = (fileName, fileSize) -> {
+				try {
+					Thread.sleep(fileName.hashCode() & 7);
+				} catch (InterruptedException intEx) {
+					Thread.currentThread().interrupt();
+				}
+				return ContentReader.fileChannel().read(fileName, fileSize);
+			};
+			
+			TfIdf sequentialTfidf = new TfIdfImpl();
+			TfIdf splitTfidf = new TfIdfImpl(ForkJoinTokenizer::new, 2, 16, slowReader);
+			for (String term: terms) {
+				sequentialTfidf.addNewTerm(term);
+				splitTfidf.addNewTerm(term);
+			}
+			
+			for (Path fileName: fileNames) {
+				sequentialTfidf.addNewFile(fileName);
+			}
+			assertEquals(fileNames.size(), splitTfidf.addNewFiles(fileNames));
+			
+			assertEquals(sequentialTfidf.getFileList(), splitTfidf.getFileList());
+			assertEquals(sequentialTfidf.retrieveResults(true, fileNames.size()), splitTfidf.retrieveResults(true, fileNames.size()));
+		}
+	}
+	
+	public static class CheckSnapshots {
+		List<String> terms = Arrays.asList("password", "try", "again");
+		List<String> files = Arrays.asList("file1.txt", "file2.txt", "file3.txt", "file4.txt");
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+		
+		private TfIdf createTfIdf(List<String> termList) {
+			TfIdf tfidf = new TfIdfImpl();
+			for (String term: termList) {
+				tfidf.addNewTerm(term);
+			}
+			return tfidf;
+		}
+		
+		@Test
+		public void checkSameResultsAfterLoading() throws IOException {
+			logger.info("Testing results restored from a snapshot: " + files.toString());
+			
+			List<Path> fileNames = copyResources(tempRootFolder, files);
+			Path snapshotFile = tempRootFolder.getRoot().toPath().resolve("index.snapshot");
+			
+			TfIdf savedTfidf = createTfIdf(terms);
+			savedTfidf.addNewFiles(fileNames);
+			assertTrue(savedTfidf.saveSnapshot(snapshotFile));
+			
+			TfIdf loadedTfidf = createTfIdf(terms);
+			assertTrue(loadedTfidf.loadSnapshot(snapshotFile));
+			
+			assertEquals(savedTfidf.getFileList(), loadedTfidf.getFileList());
+			assertEquals(savedTfidf.retrieveResults(true, files.size()), loadedTfidf.retrieveResults(true, files.size()));
+		}
+		
+		@Test
+		public void checkChangedFilesAreLeftOut() throws IOException {
+			logger.info("Testing snapshot validation against modified and deleted files");
+			
+			List<Path> fileNames = copyResources(tempRootFolder, files);
+			Path snapshotFile = tempRootFolder.getRoot().toPath().resolve("index.snapshot");
+			
+			TfIdf savedTfidf = createTfIdf(terms);
+			savedTfidf.addNewFiles(fileNames);
+			assertTrue(savedTfidf.saveSnapshot(snapshotFile));
+			
+			Files.write(fileNames.get(0), " password".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+			Files.delete(fileNames.get(1));
+			
+			TfIdf loadedTfidf = createTfIdf(terms);
+			assertTrue(loadedTfidf.loadSnapshot(snapshotFile));
+			assertEquals(fileNames.subList(2, fileNames.size()), loadedTfidf.getFileList());
+			
+			// Reading the modified file again gives the same index as reading everything from scratch
+			loadedTfidf.addNewFile(fileNames.get(0));
+			TfIdf rebuiltTfidf = createTfIdf(terms);
+			rebuiltTfidf.addNewFiles(fileNames.subList(2, fileNames.size()));
+			rebuiltTfidf.addNewFile(fileNames.get(0));
+			assertEquals(rebuiltTfidf.retrieveResults(true, files.size()), loadedTfidf.retrieveResults(true, files.size()));
+		}
+		
+		@Test
+		public void checkInvalidSnapshotsAreRejected() throws IOException {
+			logger.info("Testing snapshots saved for other terms or damaged");
+			
+			List<Path> fileNames = copyResources(tempRootFolder, files);
+			Path snapshotFile = tempRootFolder.getRoot().toPath().resolve("index.snapshot");
+			
+			TfIdf savedTfidf = createTfIdf(terms);
+			savedTfidf.addNewFiles(fileNames);
+			assertTrue(savedTfidf.saveSnapshot(snapshotFile));
+			
+			TfIdf otherTermsTfidf = createTfIdf(Arrays.asList("password", "again", "try"));
+			assertEquals(false, otherTermsTfidf.loadSnapshot(snapshotFile));
+			assertTrue(otherTermsTfidf.getFileList().isEmpty());
+			
+			byte[] snapshotBytes = Files.readAllBytes(snapshotFile);
+			snapshotBytes[snapshotBytes.length / 2] ^= 1;
+			Files.write(snapshotFile, snapshotBytes);
+			
+			TfIdf damagedTfidf = createTfIdf(terms);
+			assertEquals(false, damagedTfidf.loadSnapshot(snapshotFile));
+			assertTrue(damagedTfidf.getFileList().isEmpty());
+		}
+		
+		@Test
+		public void checkLongStringsAreSaved() throws IOException {
+			logger.info("Testing snapshot strings longer than 64 KB once encoded");
+			
+			List<Path> fileNames = copyResources(tempRootFolder, files);
+			Path snapshotFile = tempRootFolder.getRoot().toPath().resolve("index.snapshot");
+			
+			// Terms are written like file names, and no file system takes a path this long
+			List<String> longTerms = new ArrayList<>(terms);
+			longTerms.add("contrase\u00f1a".repeat(8 * 1024));
+			
+			TfIdf savedTfidf = createTfIdf(longTerms);
+			savedTfidf.addNewFiles(fileNames);
+			assertTrue(savedTfidf.saveSnapshot(snapshotFile));
+			assertTrue(Files.size(snapshotFile) > 64 * 1024);
+			
+			TfIdf loadedTfidf = createTfIdf(longTerms);
+			assertTrue(loadedTfidf.loadSnapshot(snapshotFile));
+			assertEquals(savedTfidf.getFileList(), loadedTfidf.getFileList());
+			assertEquals(savedTfidf.retrieveResults(true, files.size()), loadedTfidf.retrieveResults(true, files.size()));
+		}
+	}
+	
+	public static class CheckIngestionLog {
+		List<String> terms = Arrays.asList("password", "try", "again");
+		List<String> files = Arrays.asList("file1.txt", "file2.txt", "file3.txt", "file4.txt");
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+		
+		private TfIdf createTfIdf() {
+			TfIdf tfidf = new TfIdfImpl();
+			for (String term: terms) {
+				tfidf.addNewTerm(term);
+			}
+			return tfidf;
+		}
+		
+		@Test
+		public void checkTornRecordIsDropped() throws IOException {
+			logger.info("Testing ingestion log replay with a record cut by a crash");
+			
+			List<Path> fileNames = copyResources(tempRootFolder, files);
+			Path logFile = tempRootFolder.getRoot().toPath().resolve("index.log");
+			
+			TfIdf loggedTfidf = createTfIdf();
+			assertTrue(loggedTfidf.openLog(logFile));
+			loggedTfidf.addNewFiles(fileNames);
+			
+			// Half a record, as left by a process killed while appending
+			Files.write(logFile, new byte[] {0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+			
+			TfIdf recoveredTfidf = createTfIdf();
+			assertTrue(recoveredTfidf.openLog(logFile));
+			assertEquals(loggedTfidf.getFileList(), recoveredTfidf.getFileList());
+			assertEquals(loggedTfidf.retrieveResults(true, files.size()), recoveredTfidf.retrieveResults(true, files.size()));
+			
+			// The torn record is gone, so files logged after it are recovered as well
+			Path newFile = tempRootFolder.getRoot().toPath().resolve("file5.txt");
+			Files.writeString(newFile, "password again");
+			recoveredTfidf.addNewFile(newFile);
+			assertEquals(recoveredTfidf.getFileList(), createRecovered(null, logFile).getFileList());
+		}
+		
+		@Test
+		public void checkLongTermIsLogged() throws IOException {
+			logger.info("Testing ingestion log strings longer than 64 KB once encoded");
+			
+			Path fileName = copyResources(tempRootFolder, files.subList(0, 1)).get(0);
+			Path logFile = tempRootFolder.getRoot().toPath().resolve("index.log");
+			String longTerm = "contrase\u00f1a".repeat(8 * 1024);
+			
+			TfIdf loggedTfidf = createTfIdf();
+			loggedTfidf.addNewTerm(longTerm);
+			assertTrue(loggedTfidf.openLog(logFile));
+			loggedTfidf.addNewFile(fileName);
+			
+			TfIdf recoveredTfidf = createTfIdf();
+			recoveredTfidf.addNewTerm(longTerm);
+			assertTrue(recoveredTfidf.openLog(logFile));
+			assertEquals(loggedTfidf.getFileList(), recoveredTfidf.getFileList());
+		}
+		
+		@Test(timeout = 300000)
+		public void checkRecoveryAfterKill() throws IOException, InterruptedException {
+			File tempFolder = tempRootFolder.newFolder("files");
+			Random random = new Random(13);
+			List<String> words = Arrays.asList("password", "try", "again", "other", "words", "here");
+			int fileNumber = 4000;
+			for (int fileOrder = 0; fileOrder < fileNumber; fileOrder++) {
+				StringBuilder content = new StringBuilder();
+				for (int wordOrder = 0; wordOrder < 200; wordOrder++) {
+					content.append(words.get(random.nextInt(words.size()))).append(' ');
+				}
+				Files.writeString(tempFolder.toPath().resolve("file" + fileOrder + ".txt"), content);
+			}
+			Path snapshotFile = tempRootFolder.getRoot().toPath().resolve("index.snapshot");
+			Path logFile = tempRootFolder.getRoot().toPath().resolve("index.snapshot.log");
+			
+			logger.info("Killing TfIdfApp while ingesting " + fileNumber + " files");
+			
+			String javaCommand = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+			ProcessBuilder processBuilder = new ProcessBuilder(javaCommand, "-cp", System.getProperty("java.class.path"),
+					TfIdfApp.class.getName(), "-d", tempFolder.getAbsolutePath(), "-n", "1", "-p", "60",
+					"-t", String.join(" ", terms), "-s", snapshotFile.toString());
+			processBuilder.redirectErrorStream(true);
+			processBuilder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+			Process process = processBuilder.start();
+			try {
+				while (process.isAlive() && !Files.exists(snapshotFile) && (!Files.exists(logFile) || Files.size(logFile) < 16 * 1024)) {
+					Thread.sleep(1);
+				}
+			} finally {
+				process.destroyForcibly().waitFor();
+			}
+			logger.info("  Killed with a " + Files.size(logFile) + " bytes log" + (Files.exists(snapshotFile) ? " after the first snapshot" : ""));
+			
+			TfIdf recoveredTfidf = createRecovered(snapshotFile, logFile);
+			int recoveredFiles = recoveredTfidf.getFileList().size();
+			logger.info("  Recovered " + recoveredFiles + " of " + fileNumber + " files");
+			assertTrue(recoveredFiles > 0);
+			
+			// Finishing the ingestion gives the same index as ingesting everything in one go
+			List<Path> allFiles = new ArrayList<>();
+			for (int fileOrder = 0; fileOrder < fileNumber; fileOrder++) {
+				allFiles.add(tempFolder.toPath().resolve("file" + fileOrder + ".txt"));
+			}
+			List<Path> remainingFiles = new ArrayList<>(allFiles);
+			remainingFiles.removeAll(new HashSet<>(recoveredTfidf.getFileList()));
+			recoveredTfidf.addNewFiles(remainingFiles);
+			
+			TfIdf expectedTfidf = createTfIdf();
+			expectedTfidf.addNewFiles(allFiles);
+			assertEquals(new HashSet<>(expectedTfidf.getFileList()), new HashSet<>(recoveredTfidf.getFileList()));
+			assertEquals(expectedTfidf.retrieveResults(true, fileNumber), recoveredTfidf.retrieveResults(true, fileNumber));
+		}
+		
+		private TfIdf createRecovered(Path snapshotFile, Path logFile) {
+			TfIdf tfidf = createTfIdf();
+			if (snapshotFile != null && Files.exists(snapshotFile)) {
+				assertTrue(tfidf.loadSnapshot(snapshotFile));
+			}
+			assertTrue(tfidf.openLog(logFile));
+			return tfidf;
+		}
+	}
+	
+	public static class CheckFileChanges {
+		List<String> terms = Arrays.asList("password", "try", "again");
+		List<String> files = Arrays.asList("file1.txt", "file2.txt", "file3.txt", "file4.txt");
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+		
+		// Removing and modifying files gives the same results as only adding the final files
+		private void checkSameResultsAsFromScratch(Supplier<TfIdf> tfidfFactory) throws IOException {
+			List<Path> fileNames = copyResources(tempRootFolder, files);
+			
+			TfIdf changedTfidf = tfidfFactory.get();
+			TfIdf expectedTfidf = tfidfFactory.get();
+			for (String term: terms) {
+				changedTfidf.addNewTerm(term);
+				expectedTfidf.addNewTerm(term);
+			}
+			changedTfidf.addNewFiles(fileNames);
+			changedTfidf.retrieveResults(true, files.size());
+			
+			assertTrue(changedTfidf.removeFile(fileNames.get(1)));
+			assertEquals(false, changedTfidf.removeFile(fileNames.get(1)));
+			Files.writeString(fileNames.get(2), "password password try");
+			changedTfidf.addNewFile(fileNames.get(2));
+			
+			expectedTfidf.addNewFiles(Arrays.asList(fileNames.get(0), fileNames.get(2), fileNames.get(3)));
+			
+			assertEquals(new HashSet<>(expectedTfidf.getFileList()), new HashSet<>(changedTfidf.getFileList()));
+			assertEquals(expectedTfidf.retrieveResults(true, files.size()), changedTfidf.retrieveResults(true, files.size()));
+		}
+		
+		@Test
+		public void checkTfIdfImpl() throws IOException {
+			logger.info("Testing removed and modified files with TfIdfImpl");
+			checkSameResultsAsFromScratch(TfIdfImpl::new);
+		}
+		
+		@Test
+		public void checkConcurrentTfIdfImpl() throws IOException {
+			logger.info("Testing removed and modified files with ConcurrentTfIdfImpl");
+			checkSameResultsAsFromScratch(ConcurrentTfIdfImpl::new);
+		}
+		
+		@Test
+		public void checkRemovalIsLogged() throws IOException {
+			logger.info("Testing removed files replayed from the ingestion log");
+			
+			List<Path> fileNames = copyResources(tempRootFolder, files.subList(0, 3));
+			Path logFile = tempRootFolder.getRoot().toPath().resolve("index.log");
+			
+			TfIdf loggedTfidf = new TfIdfImpl();
+			terms.forEach(loggedTfidf::addNewTerm);
+			assertTrue(loggedTfidf.openLog(logFile));
+			loggedTfidf.addNewFiles(fileNames);
+			assertTrue(loggedTfidf.removeFile(fileNames.get(0)));
+			assertEquals(2, loggedTfidf.removeFiles(fileNames));
+			
+			TfIdf recoveredTfidf = new TfIdfImpl();
+			terms.forEach(recoveredTfidf::addNewTerm);
+			assertTrue(recoveredTfidf.openLog(logFile));
+			assertTrue(recoveredTfidf.getFileList().isEmpty());
+		}
+		
+		@Test
+		public void checkUnsupportedPersistence() {
+			logger.info("Testing snapshots and logs refused by ConcurrentTfIdfImpl");
+			
+			Path snapshotFile = tempRootFolder.getRoot().toPath().resolve("index.snapshot");
+			Path logFile = tempRootFolder.getRoot().toPath().resolve("index.log");
+			TfIdf tfidf = new ConcurrentTfIdfImpl();
+			terms.forEach(tfidf::addNewTerm);
+			assertEquals(false, tfidf.saveSnapshot(snapshotFile));
+			assertTrue(Files.notExists(snapshotFile));
+			assertEquals(false, tfidf.loadSnapshot(snapshotFile));
+			assertEquals(false, tfidf.openLog(logFile));
+			assertTrue(Files.notExists(logFile));
+			assertTrue(tfidf.getFileList().isEmpty());
+		}
+		
+		@Test
+		public void checkConcurrentIndexOption() {
+			logger.info("Testing the app only takes the concurrent index without snapshots or a token dictionary");
+			
+			String directory = tempRootFolder.getRoot().getAbsolutePath();
+			String snapshotFile = tempRootFolder.getRoot().toPath().resolve("index.snapshot").toString();
+			assertTrue(new TfIdfApp().configure(new String[] {"-d", directory, "-n", "1", "-p", "60", "-t", "password", "-i", "concurrent"}));
+			assertEquals(false, new TfIdfApp().configure(new String[] {"-d", directory, "-n", "1", "-p", "60", "-t", "password", "-i", "concurrent", "-s", snapshotFile}));
+			assertEquals(false, new TfIdfApp().configure(new String[] {"-d", directory, "-n", "1", "-p", "60", "-t", "password", "-i", "sharded"}));
+			
+			// The token dictionary is only kept by the single threaded index
+			assertTrue(new TfIdfApp().configure(new String[] {"-d", directory, "-n", "1", "-p", "60", "-t", "password", "-x", "10"}));
+			assertEquals(false, new TfIdfApp().configure(new String[] {"-d", directory, "-n", "1", "-p", "60", "-t", "password", "-x", "0"}));
+			assertEquals(false, new TfIdfApp().configure(new String[] {"-d", directory, "-n", "1", "-p", "60", "-t", "password", "-i", "concurrent", "-x", "10"}));
+		}
+	}
+	
+	public static class CheckPrunedResults {
+		List<String> terms = Arrays.asList("rare", "uncommon", "frequent", "everywhere", "missing");
+		double[] termProbabilities = {0.01, 0.1, 0.5, 1.0, 0.0};
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+	    
+	    private void writeFile(Path fileName, Random random) throws IOException {
+	    	StringBuilder content = new StringBuilder();
+	    	for (int termId = 0; termId < terms.size(); termId++) {
+	    		if (random.nextDouble() < termProbabilities[termId]) {
+	    			int count = 1 + random.nextInt(random.nextBoolean() ? 3 : 40);
+	    			for (int i = 0; i < count; i++) {
+	    				content.append(terms.get(termId)).append(i % 9 == 0 ? "\r\n" : " ");
+	    			}
+	    		}
+	    		content.append("filler ");
+	    	}
+	    	Files.writeString(fileName, content.toString());
+	    }
+	    
+	    // Files sorted by their exact weight, with ties in file order, as scoring every file would give
+	    private List<Path> bestFilesByScanning(TfIdfImpl tfidf, int resultNumber) {
+	    	List<Path> fileList = tfidf.getFileList();
+	    	Map<Path, Long> weights = new HashMap<>();
+	    	for (Path fileName: fileList) {
+	    		long weight = 0;
+	    		for (String term: terms) {
+	    			weight += Math.round(tfidf.calculateTfIdf(fileName, term) * 10000);
+	    		}
+	    		weights.put(fileName, weight);
+	    	}
+	    	List<Path> sortedFiles = new ArrayList<>(fileList);
+	    	sortedFiles.sort(Comparator.comparing(weights::get).reversed());
+	    	return sortedFiles.subList(0, Math.min(resultNumber, sortedFiles.size()));
+	    }
+	    
+	    private void checkResults(TfIdfImpl tfidf) {
+	    	for (int resultNumber: new int[] {1, 3, 10, 100, 5000}) {
+	    		Map<Path, Double> results = tfidf.retrieveResults(true, resultNumber);
+	    		assertEquals(bestFilesByScanning(tfidf, resultNumber), new ArrayList<>(results.keySet()));
+	    	}
+	    }
+		
+		@Test
+		public void checkSameResultsAsScanning() throws IOException {
+			logger.info("Testing results from the posting lists against scoring every file");
+			
+			Random random = new Random(7);
+			List<Path> fileNames = new ArrayList<>();
+			for (int i = 0; i < 1500; i++) {
+				Path fileName = tempRootFolder.getRoot().toPath().resolve("file" + i + ".txt");
+				writeFile(fileName, random);
+				fileNames.add(fileName);
+			}
+			
+			TfIdfImpl tfidf = new TfIdfImpl();
+			terms.forEach(tfidf::addNewTerm);
+			tfidf.addNewFiles(fileNames);
+			checkResults(tfidf);
+			
+			// Removed files leave ids to reclaim, and modified ones keep theirs
+			for (int i = 0; i < 1500; i += 4) {
+				assertTrue(tfidf.removeFile(fileNames.get(i)));
+			}
+			for (int i = 1; i < 1500; i += 7) {
+				writeFile(fileNames.get(i), random);
+				tfidf.addNewFile(fileNames.get(i));
+			}
+			List<Path> newFiles = new ArrayList<>();
+			for (int i = 1500; i < 2100; i++) {
+				Path fileName = tempRootFolder.getRoot().toPath().resolve("file" + i + ".txt");
+				writeFile(fileName, random);
+				newFiles.add(fileName);
+			}
+			tfidf.addNewFiles(newFiles);
+			checkResults(tfidf);
+		}
+	}
+	
+	public static class CheckKeywordProfiles {
+		List<String> unionTerms = Arrays.asList("password", "again", "invoice", "refund", "missing", "deploy");
+		List<List<String>> profileTerms = Arrays.asList(Arrays.asList("password", "again"),
+				Arrays.asList("invoice", "refund", "invoice", "password"), Arrays.asList("deploy", "missing"));
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+	    
+	    private void writeFile(Path fileName, Random random) throws IOException {
+	    	StringBuilder content = new StringBuilder();
+	    	for (String term: unionTerms) {
+	    		if (!term.equals("missing") && random.nextInt(3) == 0) {
+	    			int count = 1 + random.nextInt(20);
+	    			for (int i = 0; i < count; i++) {
+	    				content.append(term).append(" ");
+	    			}
+	    		}
+	    		content.append("filler\n");
+	    	}
+	    	Files.writeString(fileName, content.toString());
+	    }
+	    
+	    // Every profile ranked over the shared index must match an index with just its terms
+	    private void checkProfiles(TfIdf sharedTfidf, List<Path> fileNames, List<Path> removedFiles) {
+	    	for (List<String> terms: profileTerms) {
+	    		TfIdfImpl profileTfidf = new TfIdfImpl();
+	    		terms.forEach(profileTfidf::addNewTerm);
+	    		profileTfidf.addNewFiles(fileNames);
+	    		removedFiles.forEach(profileTfidf::removeFile);
+	    		
+	    		for (int resultNumber: new int[] {1, 10, 1000}) {
+	    			Map<Path, Double> expectedResults = profileTfidf.retrieveResults(true, resultNumber);
+	    			Map<Path, Double> results = sharedTfidf.retrieveResults(terms, resultNumber);
+	    			assertEquals(new ArrayList<>(expectedResults.entrySet()), new ArrayList<>(results.entrySet()));
+	    		}
+	    	}
+	    }
+	    
+	    private void checkSharedIndex(TfIdf sharedTfidf) throws IOException {
+			Random random = new Random(23);
+			List<Path> fileNames = new ArrayList<>();
+			for (int i = 0; i < 400; i++) {
+				Path fileName = tempRootFolder.getRoot().toPath().resolve("file" + i + ".txt");
+				writeFile(fileName, random);
+				fileNames.add(fileName);
+			}
+			
+			unionTerms.forEach(sharedTfidf::addNewTerm);
+			sharedTfidf.addNewFiles(fileNames);
+			Map<Path, Double> allTermsResults = new HashMap<>(sharedTfidf.retrieveResults(true, 10));
+			checkProfiles(sharedTfidf, fileNames, new ArrayList<>());
+			
+			// Ranking a profile leaves the results of all the terms as they were
+			assertEquals(allTermsResults, sharedTfidf.retrieveResults(false, 10));
+			assertEquals(allTermsResults, sharedTfidf.retrieveResults(unionTerms, 10));
+			
+			List<Path> removedFiles = new ArrayList<>();
+			for (int i = 0; i < 400; i += 3) {
+				assertTrue(sharedTfidf.removeFile(fileNames.get(i)));
+				removedFiles.add(fileNames.get(i));
+			}
+			checkProfiles(sharedTfidf, fileNames, removedFiles);
+			
+			assertTrue(sharedTfidf.retrieveResults(new ArrayList<>(), 10).isEmpty());
+	    }
+		
+		@Test
+		public void checkSameResultsAsSeparateIndexes() throws IOException {
+			logger.info("Testing keyword profiles over one index against an index per profile");
+			checkSharedIndex(new TfIdfImpl());
+		}
+		
+		@Test
+		public void checkSameResultsAsSeparateIndexesConcurrent() throws IOException {
+			logger.info("Testing keyword profiles over one concurrent index against an index per profile");
+			checkSharedIndex(new ConcurrentTfIdfImpl());
+		}
+		
+		@Test
+		public void checkProfileParsing() {
+			logger.info("Testing keyword profile parsing");
+			
+			KeywordProfile profile = KeywordProfile.parse("security:5:60:password try  again");
+			assertEquals("security", profile.getName());
+			assertEquals(5, profile.getResultNumber());
+			assertEquals(60, profile.getReportPeriod());
+			assertEquals(Arrays.asList("password", "try", "again"), profile.getTerms());
+			
+			for (String description: new String[] {"security:5:60", "security:5:60: ", ":5:60:password", "security:five:60:password",
+					"security:0:60:password", "security:5:-1:password"}) {
+				try {
+					KeywordProfile.parse(description);
+					throw new AssertionError("Accepted keyword profile " + description);
+				} catch (IllegalArgumentException iaEx) {
+					logger.info("  Refused " + description + ": " + iaEx.getMessage());
+				}
+			}
+		}
+	}
+	
+	public static class CheckQueryServer {
+		List<String> terms = Arrays.asList("password", "try", "again");
+		List<String> files = Arrays.asList("file1.txt", "file2.txt", "file3.txt", "file4.txt");
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+	    
+	    private String query(QueryServer queryServer, String method, String query, int expectedStatus) throws IOException {
+	    	HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + queryServer.getPort() + query).openConnection();
+	    	connection.setRequestMethod(method);
+	    	assertEquals(expectedStatus, connection.getResponseCode());
+	    	try (InputStream body = (expectedStatus == 200) ? connection.getInputStream() : connection.getErrorStream()) {
+	    		return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+	    	}
+	    }
+	    
+	    // Files and tfidfs of the answer, in order
+	    private Map<Path, Double> parseResults(String json) {
+	    	Map<Path, Double> results = new LinkedHashMap<>();
+	    	Matcher resultMatcher = Pattern.compile("\\{\"file\":\"([^\"]*)\",\"tfidf\":([0-9.E-]+)\\}").matcher(json);
+	    	while (resultMatcher.find()) {
+	    		results.put(Paths.get(resultMatcher.group(1)), Double.valueOf(resultMatcher.group(2)));
+	    	}
+	    	return results;
+	    }
+		
+		@Test
+		public void checkQueries() throws IOException {
+			logger.info("Testing the query server and its cache");
+			
+			TfIdfImpl tfidf = new TfIdfImpl();
+			terms.forEach(tfidf::addNewTerm);
+			for (Path fileName: copyResources(tempRootFolder, files)) {
+				tfidf.addNewFile(fileName);
+			}
+			
+			QueryServer queryServer = new QueryServer(tfidf, new Object(), 0);
+			queryServer.start();
+			try {
+				String json = query(queryServer, "GET", "/results?n=3", 200);
+				assertTrue(json.startsWith("{\"version\":" + tfidf.getIndexVersion() + ",\"terms\":[\"password\",\"try\",\"again\"]"));
+				assertEquals(new ArrayList<>(tfidf.retrieveResults(terms, 3).entrySet()), new ArrayList<>(parseResults(json).entrySet()));
+				
+				// The same subset in any order is answered from the cache until the index changes
+				List<String> subset = Arrays.asList("again", "password");
+				Map<Path, Double> expectedResults = tfidf.retrieveResults(subset, 2);
+				assertEquals(expectedResults, parseResults(query(queryServer, "GET", "/results?n=2&terms=password,again", 200)));
+				assertEquals(2, queryServer.getCacheMisses());
+				assertEquals(expectedResults, parseResults(query(queryServer, "GET", "/results?terms=again+password&n=2", 200)));
+				assertEquals(1, queryServer.getCacheHits());
+				
+				Path newFile = tempRootFolder.getRoot().toPath().resolve("new.txt");
+				Files.writeString(newFile, "password password password again");
+				tfidf.addNewFile(newFile);
+				Map<Path, Double> results = parseResults(query(queryServer, "GET", "/results?n=2&terms=password,again", 200));
+				assertEquals(3, queryServer.getCacheMisses());
+				assertEquals(newFile, results.keySet().iterator().next());
+				assertEquals(tfidf.retrieveResults(subset, 2), results);
+				
+				query(queryServer, "GET", "/results?n=0", 400);
+				query(queryServer, "GET", "/results?n=ten", 400);
+				query(queryServer, "GET", "/results?terms=password,unknown", 400);
+				query(queryServer, "POST", "/results", 405);
+				query(queryServer, "GET", "/results/other", 404);
+			} finally {
+				queryServer.stop();
+			}
+		}
+		
+		@Test
+		public void checkQueriedTerms() throws IOException {
+			logger.info("Testing query terms added from the token dictionary");
+			
+			TfIdfImpl tfidf = new TfIdfImpl();
+			tfidf.keepTokenDictionary();
+			tfidf.addNewTerm("password");
+			TfIdfImpl expectedTfidf = new TfIdfImpl();
+			expectedTfidf.addNewTerm("password");
+			expectedTfidf.addNewTerm("again");
+			for (Path fileName: copyResources(tempRootFolder, files)) {
+				tfidf.addNewFile(fileName);
+				expectedTfidf.addNewFile(fileName);
+			}
+			
+			QueryServer queryServer = new QueryServer(tfidf, new Object(), 0, 2);
+			queryServer.start();
+			try {
+				Map<Path, Double> results = parseResults(query(queryServer, "GET", "/results?n=3&terms=again", 200));
+				assertEquals(expectedTfidf.retrieveResults(Arrays.asList("again"), 3), results);
+				assertEquals(Arrays.asList("password", "again"), tfidf.getTermList());
+				
+				// No more terms than the maximum are added
+				query(queryServer, "GET", "/results?terms=try", 400);
+				assertEquals(Arrays.asList("password", "again"), tfidf.getTermList());
+			} finally {
+				queryServer.stop();
+			}
+		}
+	}
+	
+	public static class CheckResultListeners {
+		List<String> terms = Arrays.asList("password", "try", "again");
+		List<String> files = Arrays.asList("file1.txt", "file2.txt", "file3.txt", "file4.txt");
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+	    
+	    // Applies the deltas it gets, so they must lead to the same results as asking for them
+	    private static class DeltaCollector implements ResultListener {
+	    	final Map<Path, Double> results = new HashMap<>();
+	    	final List<ResultDelta> deltas = new ArrayList<>();
+	    	volatile boolean concurrentCall;
+	    	private boolean inCall;
+	    	
+	    	public void resultsChanged(ResultDelta delta) {
+	    		synchronized (this) {
+	    			concurrentCall |= inCall;
+	    			inCall = true;
+	    		}
+	    		awaitRelease();
+	    		synchronized (this) {
+	    			delta.getLeftFiles().keySet().forEach(results::remove);
+	    			results.putAll(delta.getEnteredFiles());
+	    			results.putAll(delta.getChangedFiles());
+	    			assertEquals(delta.getResults(), results);
+	    			deltas.add(delta);
+	    			inCall = false;
+	    			notifyAll();
+	    		}
+	    	}
+	    	
+	    	void awaitRelease() {
+	    	}
+	    	
+	    	synchronized void awaitResults(Map<Path, Double> expectedResults) throws InterruptedException {
+	    		long deadline = System.currentTimeMillis() + 10000;
+	    		while (!results.equals(expectedResults) && System.currentTimeMillis() < deadline) {
+	    			wait(100);
+	    		}
+	    		assertEquals(expectedResults, results);
+	    	}
+	    }
+	    
+	    private Path writeFile(String name, String content) throws IOException {
+	    	Path fileName = tempRootFolder.getRoot().toPath().resolve(name);
+	    	Files.writeString(fileName, content);
+	    	return fileName;
+	    }
+		
+		private void checkDeltas(TfIdf tfidf) throws IOException, InterruptedException {
+			terms.forEach(tfidf::addNewTerm);
+			tfidf.addNewFiles(copyResources(tempRootFolder, files));
+			
+			DeltaCollector allTerms = new DeltaCollector();
+			DeltaCollector subset = new DeltaCollector();
+			assertTrue(tfidf.addResultListener(new ArrayList<>(), 2, allTerms));
+			assertTrue(tfidf.addResultListener(Arrays.asList("password", "again"), 3, subset));
+			assertTrue(!tfidf.addResultListener(new ArrayList<>(), 2, allTerms));
+			assertTrue(!tfidf.addResultListener(new ArrayList<>(), 0, new DeltaCollector()));
+			allTerms.awaitResults(tfidf.retrieveResults(terms, 2));
+			subset.awaitResults(tfidf.retrieveResults(Arrays.asList("password", "again"), 3));
+			assertEquals(2, allTerms.deltas.get(0).getEnteredFiles().size());
+			
+			// A file entering the best ones pushes another one out, and changes the idfs of the rest
+			Path newFile = writeFile("new.txt", "password password password again try");
+			tfidf.addNewFile(newFile);
+			tfidf.publishResults();
+			allTerms.awaitResults(tfidf.retrieveResults(terms, 2));
+			subset.awaitResults(tfidf.retrieveResults(Arrays.asList("password", "again"), 3));
+			ResultDelta lastDelta = allTerms.deltas.get(allTerms.deltas.size() - 1);
+			assertTrue(lastDelta.getEnteredFiles().containsKey(newFile));
+			assertEquals(1, lastDelta.getLeftFiles().size());
+			
+			tfidf.removeFile(newFile);
+			tfidf.publishResults();
+			allTerms.awaitResults(tfidf.retrieveResults(terms, 2));
+			subset.awaitResults(tfidf.retrieveResults(Arrays.asList("password", "again"), 3));
+			
+			// Nothing is delivered when the best files don't change, as for a file registered again as it was
+			int deltaNumber = allTerms.deltas.size();
+			tfidf.addNewFile(tempRootFolder.getRoot().toPath().resolve(files.get(0)));
+			tfidf.publishResults();
+			allTerms.awaitResults(tfidf.retrieveResults(terms, 2));
+			
+			assertTrue(tfidf.removeResultListener(allTerms));
+			assertTrue(!tfidf.removeResultListener(allTerms));
+			tfidf.addNewFile(writeFile("late.txt", "again again again again"));
+			tfidf.publishResults();
+			subset.awaitResults(tfidf.retrieveResults(Arrays.asList("password", "again"), 3));
+			Thread.sleep(200);
+			assertEquals(deltaNumber, allTerms.deltas.size());
+		}
+		
+		@Test
+		public void checkDeltas() throws IOException, InterruptedException {
+			logger.info("Testing result listeners");
+			checkDeltas(new TfIdfImpl());
+		}
+		
+		@Test
+		public void checkPublishedOncePerBatch() throws IOException, InterruptedException {
+			logger.info("Testing results are only computed when published");
+			
+			TfIdfImpl tfidf = new TfIdfImpl();
+			terms.forEach(tfidf::addNewTerm);
+			tfidf.addNewFiles(copyResources(tempRootFolder, files));
+			DeltaCollector listener = new DeltaCollector();
+			assertTrue(tfidf.addResultListener(new ArrayList<>(), 2, listener));
+			listener.awaitResults(tfidf.retrieveResults(terms, 2));
+			
+			// Changes wait for the end of the batch, and are delivered in a single call
+			int deltaNumber = listener.deltas.size();
+			for (int i = 0; i < 5; i++) {
+				tfidf.addNewFile(writeFile("new" + i + ".txt", "password ".repeat(10 + i) + "again try"));
+			}
+			Thread.sleep(200);
+			assertEquals(deltaNumber, listener.deltas.size());
+			tfidf.publishResults();
+			listener.awaitResults(tfidf.retrieveResults(terms, 2));
+			assertEquals(deltaNumber + 1, listener.deltas.size());
+		}
+		
+		@Test(timeout = 60000)
+		public void checkFailingListener() throws IOException, InterruptedException {
+			logger.info("Testing a listener throwing an error still gets the next results");
+			
+			List<ResultDelta> deltas = new ArrayList<>();
+			ResultListener failingListener = delta -> {
+				synchronized (deltas) {
+					deltas.add(delta);
+					deltas.notifyAll();
+					if (deltas.size() == 1) {
+						throw new AssertionError("First call fails");
+					}
+				}
+			};
+			
+			TfIdfImpl tfidf = new TfIdfImpl();
+			terms.forEach(tfidf::addNewTerm);
+			tfidf.addNewFiles(copyResources(tempRootFolder, files));
+			assertTrue(tfidf.addResultListener(new ArrayList<>(), 2, failingListener));
+			synchronized (deltas) {
+				while (deltas.isEmpty()) {
+					deltas.wait();
+				}
+			}
+			
+			Path newFile = writeFile("new.txt", "password password password again try");
+			tfidf.addNewFile(newFile);
+			tfidf.publishResults();
+			synchronized (deltas) {
+				while (deltas.size() < 2) {
+					deltas.wait();
+				}
+				assertEquals(tfidf.retrieveResults(terms, 2), deltas.get(1).getResults());
+			}
+			assertTrue(tfidf.removeResultListener(failingListener));
+		}
+		
+		@Test
+		public void checkDeltasConcurrent() throws IOException, InterruptedException {
+			logger.info("Testing result listeners of a concurrent index");
+			checkDeltas(new ConcurrentTfIdfImpl());
+		}
+		
+		@Test(timeout = 60000)
+		public void checkSlowListener() throws IOException, InterruptedException {
+			logger.info("Testing a slow result listener doesn't hold back ingestion");
+			
+			CountDownLatch firstCall = new CountDownLatch(1);
+			CountDownLatch release = new CountDownLatch(1);
+			DeltaCollector slowListener = new DeltaCollector() {
+				void awaitRelease() {
+					firstCall.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException intEx) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			
+			TfIdfImpl tfidf = new TfIdfImpl();
+			terms.forEach(tfidf::addNewTerm);
+			tfidf.addNewFiles(copyResources(tempRootFolder, files));
+			assertTrue(tfidf.addResultListener(new ArrayList<>(), 3, slowListener));
+			firstCall.await();
+			
+			// The first call is blocked, and every change meanwhile is merged into a single call
+			for (int i = 0; i < 20; i++) {
+				tfidf.addNewFile(writeFile("new" + i + ".txt", "password ".repeat(i + 1) + "again"));
+				tfidf.publishResults();
+			}
+			release.countDown();
+			slowListener.awaitResults(tfidf.retrieveResults(terms, 3));
+			assertEquals(2, slowListener.deltas.size());
+			assertTrue(!slowListener.concurrentCall);
+		}
+	}
+	
+	public static class CheckTokenDictionary {
+		List<String> terms = Arrays.asList("password", "try", "again");
+		List<String> files = Arrays.asList("file1.txt", "file2.txt", "file3.txt", "file4.txt");
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+	    
+		
+		// Terms added after the files, once some were removed or modified, give the same results as from the start
+		private void checkSameResultsAsFromStart(Supplier<TfIdfImpl> tfidfFactory) throws IOException {
+			List<Path> fileNames = copyResources(tempRootFolder, files, 5);
+			
+			TfIdfImpl dictionaryTfidf = tfidfFactory.get();
+			assertTrue(dictionaryTfidf.keepTokenDictionary());
+			dictionaryTfidf.addNewTerm(terms.get(0));
+			dictionaryTfidf.addNewFiles(fileNames);
+			
+			assertTrue(dictionaryTfidf.removeFile(fileNames.get(1)));
+			Files.writeString(fileNames.get(2), "password again try again\r\n");
+			dictionaryTfidf.addNewFile(fileNames.get(2));
+			for (String term: terms.subList(1, terms.size())) {
+				assertTrue(dictionaryTfidf.addNewTerm(term));
+			}
+			assertTrue(dictionaryTfidf.addNewTerm("never_found"));
+			
+			TfIdfImpl expectedTfidf = new TfIdfImpl();
+			terms.forEach(expectedTfidf::addNewTerm);
+			expectedTfidf.addNewTerm("never_found");
+			List<Path> remainingFiles = new ArrayList<>(fileNames);
+			remainingFiles.remove(1);
+			expectedTfidf.addNewFiles(remainingFiles);
+			
+			assertEquals(expectedTfidf.getTermList(), dictionaryTfidf.getTermList());
+			assertEquals(expectedTfidf.retrieveResults(true, fileNames.size()), dictionaryTfidf.retrieveResults(true, fileNames.size()));
+			for (Path fileName: remainingFiles) {
+				assertEquals(expectedTfidf.calculateTfIdf(fileName, "again"), dictionaryTfidf.calculateTfIdf(fileName, "again"));
+			}
+			
+			// Files added after the new terms are counted for them as usual
+			Path newFile = tempRootFolder.getRoot().toPath().resolve("new.txt");
+			Files.writeString(newFile, "try try never_found");
+			dictionaryTfidf.addNewFile(newFile);
+			expectedTfidf.addNewFile(newFile);
+			assertEquals(expectedTfidf.retrieveResults(true, fileNames.size()), dictionaryTfidf.retrieveResults(true, fileNames.size()));
+		}
+		
+		@Test
+		public void checkSequential() throws IOException {
+			logger.info("Testing terms added from the token dictionary");
+			checkSameResultsAsFromStart(TfIdfImpl::new);
+		}
+		
+		@Test
+		public void checkParallel() throws IOException {
+			logger.info("Testing terms added from the token dictionary built by parallel workers");
+			checkSameResultsAsFromStart(() -> new TfIdfImpl(4));
+		}
+		
+		@Test
+		public void checkSeparateReadStage() throws IOException {
+			logger.info("Testing terms added from the token dictionary built with a separate read stage");
+			checkSameResultsAsFromStart(() -> new TfIdfImpl(ForkJoinTokenizer::new, 2, 8));
+		}
+		
+		@Test
+		public void checkUnusedTokensDropped() throws IOException {
+			logger.info("Testing tokens of removed files dropped from the token dictionary");
+			
+			// Every file has a token of its own, and most of them are removed
+			List<Path> fileNames = new ArrayList<>();
+			for (int i = 0; i < 3000; i++) {
+				fileNames.add(Files.writeString(tempRootFolder.getRoot().toPath().resolve("file" + i + ".txt"), "password token" + i));
+			}
+			TfIdfImpl dictionaryTfidf = new TfIdfImpl(4);
+			dictionaryTfidf.keepTokenDictionary();
+			dictionaryTfidf.addNewTerm("password");
+			dictionaryTfidf.addNewFiles(fileNames);
+			assertEquals(3001, dictionaryTfidf.getDictionaryTokens());
+			
+			// Unused tokens are dropped once they are as many as the used ones, unless there are few tokens
+			for (Path fileName: fileNames.subList(0, 2900)) {
+				assertTrue(dictionaryTfidf.removeFile(fileName));
+			}
+			assertTrue(dictionaryTfidf.getDictionaryTokens() <= 1024);
+			
+			// The tokens kept still give the counts of the new terms, and the dropped ones are never found
+			List<Path> remainingFiles = fileNames.subList(2900, fileNames.size());
+			TfIdfImpl expectedTfidf = new TfIdfImpl();
+			for (String term: Arrays.asList("password", "token7", "token2950", "token2999")) {
+				assertTrue(dictionaryTfidf.addNewTerm(term));
+				expectedTfidf.addNewTerm(term);
+			}
+			expectedTfidf.addNewFiles(remainingFiles);
+			assertEquals(expectedTfidf.retrieveResults(true, 10), dictionaryTfidf.retrieveResults(true, 10));
+			for (Path fileName: remainingFiles) {
+				assertEquals(expectedTfidf.calculateTfIdf(fileName, "token2950"), dictionaryTfidf.calculateTfIdf(fileName, "token2950"));
+			}
+		}
+		
+		@Test
+		public void checkRefusedTerms() throws IOException {
+			logger.info("Testing terms that can't be added from the token dictionary");
+			List<Path> fileNames = copyResources(tempRootFolder, files, 1);
+			
+			TfIdfImpl withoutDictionary = new TfIdfImpl();
+			withoutDictionary.addNewTerm("password");
+			withoutDictionary.addNewFiles(fileNames);
+			assertEquals(false, withoutDictionary.addNewTerm("try"));
+			assertEquals(false, withoutDictionary.keepTokenDictionary());
+			
+			TfIdfImpl dictionaryTfidf = new TfIdfImpl();
+			dictionaryTfidf.keepTokenDictionary();
+			dictionaryTfidf.addNewTerm("password");
+			dictionaryTfidf.addNewFiles(fileNames);
+			assertEquals(false, dictionaryTfidf.addNewTerm(String.join("", Collections.nCopies(65, "a"))));
+			
+			// Files restored from a snapshot have no tokens
+			Path snapshotFile = tempRootFolder.getRoot().toPath().resolve("index.snapshot");
+			assertTrue(dictionaryTfidf.saveSnapshot(snapshotFile));
+			TfIdfImpl restoredTfidf = new TfIdfImpl();
+			restoredTfidf.keepTokenDictionary();
+			restoredTfidf.addNewTerm("password");
+			assertTrue(restoredTfidf.loadSnapshot(snapshotFile));
+			assertEquals(false, restoredTfidf.addNewTerm("try"));
+		}
+		
+		@Test
+		public void checkTermLogged() throws IOException {
+			logger.info("Testing terms added from the token dictionary while the ingestion log is open");
+			List<Path> fileNames = copyResources(tempRootFolder, files, 2);
+			Path logFile = tempRootFolder.getRoot().toPath().resolve("index.log");
+			
+			TfIdfImpl dictionaryTfidf = new TfIdfImpl();
+			dictionaryTfidf.keepTokenDictionary();
+			dictionaryTfidf.addNewTerm("password");
+			assertTrue(dictionaryTfidf.openLog(logFile));
+			dictionaryTfidf.addNewFiles(fileNames.subList(0, 6));
+			assertTrue(dictionaryTfidf.removeFile(fileNames.get(1)));
+			assertTrue(dictionaryTfidf.addNewTerm("try"));
+			dictionaryTfidf.addNewFiles(fileNames.subList(6, 8));
+			
+			// The log is written again for the new term list, with the counts of the new term for every file
+			TfIdfImpl recoveredTfidf = new TfIdfImpl();
+			recoveredTfidf.addNewTerm("password");
+			recoveredTfidf.addNewTerm("try");
+			assertTrue(recoveredTfidf.openLog(logFile));
+			assertEquals(dictionaryTfidf.getFileList(), recoveredTfidf.getFileList());
+			assertEquals(dictionaryTfidf.retrieveResults(true, fileNames.size()), recoveredTfidf.retrieveResults(true, fileNames.size()));
+			for (Path fileName: recoveredTfidf.getFileList()) {
+				assertEquals(dictionaryTfidf.calculateTfIdf(fileName, "try"), recoveredTfidf.calculateTfIdf(fileName, "try"));
+			}
+		}
+	}
+	
+	public static class CheckConcurrentAccess {
+		List<String> terms = Arrays.asList("password", "try", "again");
+		List<String> files = Arrays.asList("file1.txt", "file2.txt", "file3.txt", "file4.txt");
+		int writerNumber = 4;
+		int readerNumber = 4;
+		int rounds = 8;
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+		
+		@Test
+		public void checkConcurrentIngestAndReports() throws Exception {
+			logger.info("Testing " + writerNumber + " writers and " + readerNumber + " readers sharing the same tfidf");
+			
+			List<Path> fileNames = copyResources(tempRootFolder, files, 50);
+			
+			TfIdf tfidf = new ConcurrentTfIdfImpl();
+			TfIdf expectedTfidf = new TfIdfImpl();
+			for (String term: terms) {
+				tfidf.addNewTerm(term);
+				expectedTfidf.addNewTerm(term);
+			}
+			
+			ExecutorService pool = Executors.newFixedThreadPool(writerNumber + readerNumber);
+			AtomicBoolean writing = new AtomicBoolean(true);
+			try {
+				List<Future<?>> writers = new ArrayList<>();
+				for (int writer = 0; writer < writerNumber; writer++) {
+					int firstFile = writer;
+					writers.add(pool.submit(() -> {
+						// Every file is registered again in each round, replacing its previous counts
+						for (int round = 0; round < rounds; round++) {
+							for (int i = firstFile; i < fileNames.size(); i += writerNumber) {
+								assertTrue(tfidf.addNewFile(fileNames.get(i)));
+							}
+						}
+					}));
+				}
+				
+				List<Future<Long>> readers = new ArrayList<>();
+				for (int reader = 0; reader < readerNumber; reader++) {
+					readers.add(pool.submit(() -> {
+						long reports = 0;
+						do {
+							Map<Path,Double> results = tfidf.retrieveResults(true, 5);
+							assertTrue(results.size() <= 5);
+							
+							double previousValue = Double.MAX_VALUE;
+							for (double value: results.values()) {
+								assertTrue(value >= 0.0 && value <= previousValue);
+								previousValue = value;
+							}
+							reports++;
+						} while (writing.get());
+						return reports;
+					}));
+				}
+				
+				for (Future<?> writer: writers) {
+					writer.get();
+				}
+				writing.set(false);
+				for (Future<Long> reader: readers) {
+					logger.info("Reader finished after " + reader.get() + " reports");
+				}
+			} finally {
+				pool.shutdown();
+			}
+			
+			for (Path fileName: fileNames) {
+				expectedTfidf.addNewFile(fileName);
+			}
+			
+			assertEquals(new HashSet<>(fileNames), new HashSet<>(tfidf.getFileList()));
+			assertEquals(expectedTfidf.retrieveResults(true, fileNames.size()), tfidf.retrieveResults(true, fileNames.size()));
+		}
+	}
+	
+	public static class CheckLargeFiles {
+		int maxHeapMegabytes = 32;
+		byte[] line = "password \u00e9t\u00e9 again\r\n".getBytes(StandardCharsets.UTF_8);
+		byte[] malformedLine = {'p', 'a', 's', 's', 'w', 'o', 'r', 'd', ' ', (byte) 0xff, (byte) 0xfe, ' ', 'a', 'g', 'a', 'i', 'n', '\n'};
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+		
+		// Writes lines up to the size, returning how many of them were written
+		private long writeLargeFile(Path fileName, long fileSize) throws IOException {
+			long lineNumber = 0;
+			try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(fileName))) {
+				for (long written = 0; written < fileSize; lineNumber++) {
+					byte[] currentLine = (lineNumber % 10 == 0) ? malformedLine : line;
+					output.write(currentLine);
+					written += currentLine.length;
+				}
+			}
+			return lineNumber;
+		}
+		
+		@Test(timeout = 300000)
+		public void checkFileLargerThanHeap() throws IOException {
+			File tempFolder = tempRootFolder.newFolder("files");
+			long fileSize = 3L * maxHeapMegabytes * 1024 * 1024;
+			long passwordCount = writeLargeFile(tempFolder.toPath().resolve("large.txt"), fileSize);
+			Files.writeString(tempFolder.toPath().resolve("small.txt"), "again");
+			
+			logger.info("Ingesting a " + fileSize + " bytes file with -Xmx" + maxHeapMegabytes + "m");
+			
+			String javaCommand = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+			ProcessBuilder processBuilder = new ProcessBuilder(javaCommand, "-Xmx" + maxHeapMegabytes + "m",
+					"-cp", System.getProperty("java.class.path"), TfIdfApp.class.getName(),
+					"-d", tempFolder.getAbsolutePath(), "-n", "1", "-p", "60", "-t", "password again");
+			processBuilder.redirectErrorStream(true);
+			Process process = processBuilder.start();
+			
+			String resultLine = null;
+			try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+				for (String outputLine = output.readLine(); outputLine != null; outputLine = output.readLine()) {
+					logger.info("  TfIdfApp: " + outputLine);
+					if (outputLine.contains("large.txt")) {
+						resultLine = outputLine;
+						break;
+					}
+				}
+			} finally {
+				process.destroy();
+			}
+			
+			assertTrue(resultLine != null);
+			
+			// password is only in the large file, so its idf is log10(2) = 0.301, and again is everywhere
+			double expectedTfIdf = passwordCount * 0.301 / 2;
+			double realTfIdf = Double.parseDouble(resultLine.substring(resultLine.lastIndexOf(' ') + 1));
+			logger.info("Expecting " + expectedTfIdf + ", retrieved " + realTfIdf);
+			assertEquals(expectedTfIdf, realTfIdf, 0.0001);
+		}
+		
+		@Test
+		public void checkMappedFileAgainstStringSplit() throws IOException {
+			Path fileName = tempRootFolder.newFile("mapped.txt").toPath();
+			writeLargeFile(fileName, 6 * 1024 * 1024);
+			
+			KeywordMatcher matcher = new KeywordMatcher(Arrays.asList("password", "again", "\u00e9t\u00e9"));
+			long[] expectedCounts = new long[matcher.size()];
+			new StringSplitTokenizer().countTerms(fileName, matcher, expectedCounts);
+			long[] realCounts = new long[matcher.size()];
+			new ByteTokenizer().countTerms(fileName, matcher, realCounts);
+			
+			logger.info("Expecting " + Arrays.toString(expectedCounts) + ", retrieved " + Arrays.toString(realCounts));
+			assertTrue(expectedCounts[0] > 0 && expectedCounts[2] > 0);
+			assertArrayEquals(expectedCounts, realCounts);
+		}
+	}
+	
+	public static class CompareTokenizers {
+		List<String> terms = Arrays.asList("password", "try", "again", "again.", "password.", "cositas");
+		
+		/* This folder and the files created in it will be deleted after
+	     * tests are run, even in the event of failures or exceptions.
+	     */
+	    @Rule
+	    public TemporaryFolder tempRootFolder = new TemporaryFolder();
+		
+		private void compareTokenizers(Path fileName) throws IOException {
+			KeywordMatcher matcher = new KeywordMatcher(terms);
+			
+			long[] expectedCounts = new long[terms.size()];
+			new StringSplitTokenizer().countTerms(fileName, matcher, expectedCounts);
+			
+			// Forcing tiny chunks, so most of them end in the middle of the line
+			List<Tokenizer> tokenizers = Arrays.asList(new ByteTokenizer(), new ForkJoinTokenizer(new ForkJoinPool(4), 0, 100));
+			for (Tokenizer tokenizer: tokenizers) {
+				long[] realCounts = new long[terms.size()];
+				tokenizer.countTerms(fileName, matcher, realCounts);
+				
+				logger.info("File " + fileName.getFileName() + " with " + tokenizer.getClass().getSimpleName() + ": expecting " + Arrays.toString(expectedCounts) + ", retrieved " + Arrays.toString(realCounts));
+				assertArrayEquals(expectedCounts, realCounts);
+			}
+		}
+		
+		@Test
+		public void checkResourceFiles() throws IOException {
+			for (String file: Arrays.asList("file1.txt", "file2.txt", "file3.txt", "file4.txt")) {
+				compareTokenizers(Paths.get("src", "test", "resources", file));
+			}
+		}
+		
+		@Test
+		public void checkBufferBoundariesAndSeparators() throws IOException {
+			StringBuilder contents = new StringBuilder();
+			String[] tokens = {"password", "pass\rword", "try\r\n", "again.", "cositascositas", "", "again", "tr\ny"};
+			for (int i = 0; contents.length() < 300 * 1024; i++) {
+				contents.append(tokens[i % tokens.length]).append((i % 3 == 0) ? " " : "\n");
+			}
+			contents.append("again");
+			
+			File tempFile = tempRootFolder.newFile("boundaries.txt");
+			Files.writeString(tempFile.toPath(), contents);
+			
+			compareTokenizers(tempFile.toPath());
+		}
+	}
+	
 	@RunWith(Parameterized.class)
 	public static class TestAlgorithm {
 		